@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.samsungsami.example.SAMInBLEws;
+
+import android.util.LruCache;
+
+import java.util.Arrays;
+
+/**
+ * The last advertisement of the most recently seen devices, parsed, by device address.
+ *
+ * A device repeats the same advertisement over and over; it is only parsed again when its
+ * bytes change. The device list and the reconnect logic read names and services from here
+ * instead of asking the Bluetooth service through {@code BluetoothDevice.getName()}.
+ * Thread safe.
+ */
+public class AdvertisementCache {
+    public static final int MAX_DEVICES = 64;
+
+    private static AdvertisementCache sInstance;
+
+    private final LruCache<String, AdvertisementRecord> mRecords =
+            new LruCache<String, AdvertisementRecord>(MAX_DEVICES);
+
+    public static synchronized AdvertisementCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new AdvertisementCache();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Records the advertisement of {@code address} and returns it parsed. Returns the cached
+     * record if the bytes are the same as last time or {@code scanRecord} is null.
+     */
+    public AdvertisementRecord put(String address, byte[] scanRecord) {
+        if (scanRecord == null) {
+            return mRecords.get(address);
+        }
+        final AdvertisementRecord cached = mRecords.get(address);
+        if (cached != null && Arrays.equals(cached.getBytes(), scanRecord)) {
+            return cached;
+        }
+        final AdvertisementRecord record = AdvertisementRecord.parse(scanRecord);
+        mRecords.put(address, record);
+        return record;
+    }
+
+    /**
+     * The last advertisement of {@code address}, or null if it has not been seen lately.
+     */
+    public AdvertisementRecord get(String address) {
+        return mRecords.get(address);
+    }
+
+    /**
+     * The advertised name of {@code address}, or null.
+     */
+    public String getName(String address) {
+        final AdvertisementRecord record = mRecords.get(address);
+        return record != null ? record.getLocalName() : null;
+    }
+
+    public void clear() {
+        mRecords.evictAll();
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.samsungsami.example.SAMInBLEws;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The AD structures of a raw BLE advertisement, as handed to a scan callback: the
+ * advertising data followed by the scan response, each a run of
+ * {@code [length][type][length - 1 bytes of data]} padded with zeros.
+ *
+ * Parsing only walks the record once and remembers where the local name, service UUIDs, TX
+ * power level and manufacturer data are; nothing is copied. The name and the UUIDs are
+ * decoded when first asked for. The record must not be modified afterwards.
+ */
+public class AdvertisementRecord {
+    public static final int NO_TX_POWER = Integer.MIN_VALUE;
+    public static final int NO_MANUFACTURER = -1;
+
+    private static final int TYPE_UUID16_INCOMPLETE = 0x02;
+    private static final int TYPE_UUID16 = 0x03;
+    private static final int TYPE_UUID32_INCOMPLETE = 0x04;
+    private static final int TYPE_UUID32 = 0x05;
+    private static final int TYPE_UUID128_INCOMPLETE = 0x06;
+    private static final int TYPE_UUID128 = 0x07;
+    private static final int TYPE_NAME_SHORT = 0x08;
+    private static final int TYPE_NAME_COMPLETE = 0x09;
+    private static final int TYPE_TX_POWER = 0x0A;
+    private static final int TYPE_MANUFACTURER = 0xFF;
+
+    // Bluetooth Base UUID, 00000000-0000-1000-8000-00805F9B34FB, into which 16 and 32 bit
+    // UUIDs are placed.
+    private static final long BASE_UUID_MSB = 0x0000000000001000L;
+    private static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final byte[] mBytes;
+
+    private int mNameOffset = -1;
+    private int mNameLength;
+    private boolean mNameComplete;
+    private int mTxPower = NO_TX_POWER;
+    private int mManufacturerOffset = -1;
+    private int mManufacturerLength;
+
+    // Each UUID list structure: where its data starts, how long it is, and the UUID width.
+    private int[] mUuidOffsets = new int[2];
+    private int[] mUuidLengths = new int[2];
+    private int[] mUuidWidths = new int[2];
+    private int mUuidLists = 0;
+
+    private String mName;
+    private List<UUID> mServiceUuids;
+
+    private AdvertisementRecord(byte[] bytes) {
+        mBytes = bytes;
+    }
+
+    /**
+     * Parses {@code scanRecord}. A truncated last structure ends the record, so what came
+     * before it is still available. Returns null only if {@code scanRecord} is null.
+     */
+    public static AdvertisementRecord parse(byte[] scanRecord) {
+        if (scanRecord == null) {
+            return null;
+        }
+        final AdvertisementRecord record = new AdvertisementRecord(scanRecord);
+        int i = 0;
+        while (i < scanRecord.length) {
+            final int length = scanRecord[i] & 0xFF;
+            // A zero length is the padding after the last structure.
+            if (length == 0 || i + 1 + length > scanRecord.length) {
+                break;
+            }
+            final int type = scanRecord[i + 1] & 0xFF;
+            final int data = i + 2;
+            final int dataLength = length - 1;
+            switch (type) {
+                case TYPE_UUID16_INCOMPLETE:
+                case TYPE_UUID16:
+                    record.addUuidList(data, dataLength, 2);
+                    break;
+                case TYPE_UUID32_INCOMPLETE:
+                case TYPE_UUID32:
+                    record.addUuidList(data, dataLength, 4);
+                    break;
+                case TYPE_UUID128_INCOMPLETE:
+                case TYPE_UUID128:
+                    record.addUuidList(data, dataLength, 16);
+                    break;
+                case TYPE_NAME_SHORT:
+                    // A complete name, e.g. in the scan response, wins over a shortened one.
+                    if (!record.mNameComplete) {
+                        record.mNameOffset = data;
+                        record.mNameLength = dataLength;
+                    }
+                    break;
+                case TYPE_NAME_COMPLETE:
+                    record.mNameOffset = data;
+                    record.mNameLength = dataLength;
+                    record.mNameComplete = true;
+                    break;
+                case TYPE_TX_POWER:
+                    if (dataLength >= 1) {
+                        record.mTxPower = scanRecord[data];
+                    }
+                    break;
+                case TYPE_MANUFACTURER:
+                    // The first two bytes are the company identifier.
+                    if (dataLength >= 2) {
+                        record.mManufacturerOffset = data;
+                        record.mManufacturerLength = dataLength;
+                    }
+                    break;
+            }
+            i += 1 + length;
+        }
+        return record;
+    }
+
+    private void addUuidList(int offset, int length, int width) {
+        if (mUuidLists == mUuidOffsets.length) {
+            mUuidOffsets = Arrays.copyOf(mUuidOffsets, mUuidLists * 2);
+            mUuidLengths = Arrays.copyOf(mUuidLengths, mUuidLists * 2);
+            mUuidWidths = Arrays.copyOf(mUuidWidths, mUuidLists * 2);
+        }
+        mUuidOffsets[mUuidLists] = offset;
+        mUuidLengths[mUuidLists] = length - length % width;
+        mUuidWidths[mUuidLists] = width;
+        mUuidLists++;
+    }
+
+    /**
+     * The raw record this was parsed from. Not a copy.
+     */
+    public byte[] getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * The complete local name, else the shortened one, else null.
+     */
+    public synchronized String getLocalName() {
+        if (mName == null && mNameOffset >= 0) {
+            mName = new String(mBytes, mNameOffset, mNameLength, UTF_8);
+        }
+        return mName;
+    }
+
+    public boolean isNameComplete() {
+        return mNameComplete;
+    }
+
+    /**
+     * The TX power level in dBm, or {@link #NO_TX_POWER}.
+     */
+    public int getTxPowerLevel() {
+        return mTxPower;
+    }
+
+    /**
+     * The advertised service UUIDs, 16 and 32 bit ones expanded with the Bluetooth Base UUID.
+     */
+    public synchronized List<UUID> getServiceUuids() {
+        if (mServiceUuids == null) {
+            final ArrayList<UUID> uuids = new ArrayList<UUID>();
+            for (int l = 0; l < mUuidLists; l++) {
+                final int width = mUuidWidths[l];
+                final int end = mUuidOffsets[l] + mUuidLengths[l];
+                for (int i = mUuidOffsets[l]; i < end; i += width) {
+                    uuids.add(uuidAt(i, width));
+                }
+            }
+            mServiceUuids = uuids;
+        }
+        return mServiceUuids;
+    }
+
+    /**
+     * Whether {@code uuid} is advertised. Compares in place without decoding the others.
+     */
+    public boolean hasServiceUuid(UUID uuid) {
+        for (int l = 0; l < mUuidLists; l++) {
+            final int width = mUuidWidths[l];
+            final int end = mUuidOffsets[l] + mUuidLengths[l];
+            for (int i = mUuidOffsets[l]; i < end; i += width) {
+                if (width == 16) {
+                    if (readLong(i + 8) == uuid.getMostSignificantBits()
+                            && readLong(i) == uuid.getLeastSignificantBits()) {
+                        return true;
+                    }
+                } else if (uuid.getLeastSignificantBits() == BASE_UUID_LSB
+                        && uuid.getMostSignificantBits() == shortUuidMsb(i, width)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The Bluetooth SIG company identifier of the manufacturer specific data, or
+     * {@link #NO_MANUFACTURER}.
+     */
+    public int getManufacturerId() {
+        if (mManufacturerOffset < 0) {
+            return NO_MANUFACTURER;
+        }
+        return (mBytes[mManufacturerOffset] & 0xFF)
+                | (mBytes[mManufacturerOffset + 1] & 0xFF) << 8;
+    }
+
+    /**
+     * Where the manufacturer specific data after the company identifier starts in
+     * {@link #getBytes()}, or -1.
+     */
+    public int getManufacturerDataOffset() {
+        return mManufacturerOffset < 0 ? -1 : mManufacturerOffset + 2;
+    }
+
+    public int getManufacturerDataLength() {
+        return mManufacturerOffset < 0 ? 0 : mManufacturerLength - 2;
+    }
+
+    /**
+     * A copy of the manufacturer specific data after the company identifier, or null.
+     */
+    public byte[] getManufacturerData() {
+        if (mManufacturerOffset < 0) {
+            return null;
+        }
+        final int offset = getManufacturerDataOffset();
+        return Arrays.copyOfRange(mBytes, offset, offset + getManufacturerDataLength());
+    }
+
+    private UUID uuidAt(int offset, int width) {
+        if (width == 16) {
+            return new UUID(readLong(offset + 8), readLong(offset));
+        }
+        return new UUID(shortUuidMsb(offset, width), BASE_UUID_LSB);
+    }
+
+    private long shortUuidMsb(int offset, int width) {
+        long value = 0;
+        for (int i = width - 1; i >= 0; i--) {
+            value = value << 8 | (mBytes[offset + i] & 0xFF);
+        }
+        return value << 32 | BASE_UUID_MSB;
+    }
+
+    // Reads 8 little endian bytes.
+    private long readLong(int offset) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = value << 8 | (mBytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.samsungsami.example.SAMInBLEws;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+import android.os.Handler;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Scans for BLE devices advertising given services, by default the Heart Rate Service, and
+ * scans in a duty cycle: {@code windowMs} on, then off for the rest of {@code intervalMs}.
+ *
+ * From API 21 the filters and the scan mode are handed to {@link BluetoothLeScanner}, so
+ * advertisements of other devices are dropped by the Bluetooth stack, or by the controller
+ * where it can filter, without waking the app. With a report delay and a controller that
+ * supports batching, results are held back and delivered in batches. Before API 21,
+ * {@link BluetoothAdapter#startLeScan(UUID[], BluetoothAdapter.LeScanCallback)} filters by
+ * service; there is no scan mode nor batching, so the duty cycle is what saves power.
+ *
+ * All methods must be called on the thread of the handler given to the constructor.
+ */
+public class BleScanner {
+    private static final String TAG = BleScanner.class.getSimpleName();
+
+    /** Lowest duty cycle of the controller; the one to use in the background. */
+    public static final int MODE_LOW_POWER = 0;
+    public static final int MODE_BALANCED = 1;
+    /** Scans all the time; for a user waiting on a device list. */
+    public static final int MODE_LOW_LATENCY = 2;
+
+    public interface Callback {
+        /**
+         * Called for every advertisement, on a Bluetooth binder thread.
+         */
+        public void onScanResult(BluetoothDevice device, int rssi, byte[] scanRecord);
+
+        /**
+         * Called on the handler thread when the scan ends on its own after its last window,
+         * i.e. without an interval; not after {@link BleScanner#stop()}.
+         */
+        public void onScanFinished();
+    }
+
+    public static class Config {
+        /** Only devices advertising one of these are reported; null for every device. */
+        public UUID[] serviceUuids = {
+                UUID.fromString(SampleGattAttributes.HEART_RATE_SERVICE)
+        };
+        /** One of the MODE_ constants; ignored before API 21. */
+        public int mode = MODE_BALANCED;
+        /** How long results may be held back and batched, if the controller can; 0 for none. */
+        public long reportDelayMs = 0;
+        /** How long each scan of the duty cycle lasts. */
+        public long windowMs = 10000;
+        /** Time from the start of a scan to the start of the next; 0 to scan only once. */
+        public long intervalMs = 0;
+    }
+
+    private final BluetoothAdapter mAdapter;
+    private final Handler mHandler;
+    private final Callback mCallback;
+    private Config mConfig = new Config();
+
+    // True between start() and stop(); the radio is only on during the window of each cycle.
+    private boolean mStarted = false;
+    private boolean mScanning = false;
+    private LollipopScan mLollipopScan;
+
+    private final Runnable mWindowEnd = new Runnable() {
+        @Override
+        public void run() {
+            stopScan();
+            if (mConfig.intervalMs > mConfig.windowMs) {
+                mHandler.postDelayed(mWindowStart, mConfig.intervalMs - mConfig.windowMs);
+            } else {
+                mStarted = false;
+                mCallback.onScanFinished();
+            }
+        }
+    };
+
+    private final Runnable mWindowStart = new Runnable() {
+        @Override
+        public void run() {
+            startScan();
+            mHandler.postDelayed(mWindowEnd, mConfig.windowMs);
+        }
+    };
+
+    private final BluetoothAdapter.LeScanCallback mLeScanCallback =
+            new BluetoothAdapter.LeScanCallback() {
+        @Override
+        public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+            mCallback.onScanResult(device, rssi, scanRecord);
+        }
+    };
+
+    public BleScanner(BluetoothAdapter adapter, Handler handler, Callback callback) {
+        mAdapter = adapter;
+        mHandler = handler;
+        mCallback = callback;
+    }
+
+    /**
+     * Sets how the next {@link #start()} scans.
+     */
+    public void setConfig(Config config) {
+        mConfig = config;
+    }
+
+    /**
+     * True from {@link #start()} until {@link #stop()} or the end of the last window, scan
+     * pauses of the duty cycle included.
+     */
+    public boolean isStarted() {
+        return mStarted;
+    }
+
+    public void start() {
+        stop();
+        mStarted = true;
+        mWindowStart.run();
+    }
+
+    public void stop() {
+        mHandler.removeCallbacks(mWindowStart);
+        mHandler.removeCallbacks(mWindowEnd);
+        stopScan();
+        mStarted = false;
+    }
+
+    private void startScan() {
+        if (mScanning || !mAdapter.isEnabled()) {
+            return;
+        }
+        mScanning = true;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            mLollipopScan = new LollipopScan(mAdapter, mConfig, mCallback);
+            if (mLollipopScan.start()) {
+                return;
+            }
+            mLollipopScan = null;
+        }
+        if (!mAdapter.startLeScan(mConfig.serviceUuids, mLeScanCallback)) {
+            Log.w(TAG, "startLeScan failed");
+            mScanning = false;
+        }
+    }
+
+    private void stopScan() {
+        if (!mScanning) {
+            return;
+        }
+        mScanning = false;
+        if (mLollipopScan != null) {
+            mLollipopScan.stop();
+            mLollipopScan = null;
+        } else {
+            mAdapter.stopLeScan(mLeScanCallback);
+        }
+    }
+
+    /**
+     * A scan through {@link BluetoothLeScanner}. Kept apart so that no API 21 class is
+     * loaded on older devices.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static class LollipopScan extends ScanCallback {
+        private final BluetoothAdapter mAdapter;
+        private final Config mConfig;
+        private final Callback mCallback;
+        private BluetoothLeScanner mScanner;
+
+        LollipopScan(BluetoothAdapter adapter, Config config, Callback callback) {
+            mAdapter = adapter;
+            mConfig = config;
+            mCallback = callback;
+        }
+
+        boolean start() {
+            mScanner = mAdapter.getBluetoothLeScanner();
+            if (mScanner == null) {
+                return false;
+            }
+            final ScanSettings.Builder settings = new ScanSettings.Builder();
+            switch (mConfig.mode) {
+                case MODE_LOW_POWER:
+                    settings.setScanMode(ScanSettings.SCAN_MODE_LOW_POWER);
+                    break;
+                case MODE_LOW_LATENCY:
+                    settings.setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY);
+                    break;
+                default:
+                    settings.setScanMode(ScanSettings.SCAN_MODE_BALANCED);
+                    break;
+            }
+            if (mConfig.reportDelayMs > 0 && mAdapter.isOffloadedScanBatchingSupported()) {
+                settings.setReportDelay(mConfig.reportDelayMs);
+            }
+            List<ScanFilter> filters = null;
+            if (mConfig.serviceUuids != null) {
+                filters = new ArrayList<ScanFilter>();
+                for (UUID uuid : mConfig.serviceUuids) {
+                    filters.add(new ScanFilter.Builder()
+                            .setServiceUuid(new ParcelUuid(uuid)).build());
+                }
+            }
+            mScanner.startScan(filters, settings.build(), this);
+            return true;
+        }
+
+        void stop() {
+            // Throws if Bluetooth was turned off meanwhile, when the scan is over anyway.
+            try {
+                // Results the controller still holds back would be lost with the scan.
+                if (mConfig.reportDelayMs > 0) {
+                    mScanner.flushPendingScanResults(this);
+                }
+                mScanner.stopScan(this);
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "stopScan: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            deliver(result);
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            for (int i = 0; i < results.size(); i++) {
+                deliver(results.get(i));
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.w(TAG, "onScanFailed: " + errorCode);
+        }
+
+        private void deliver(ScanResult result) {
+            final ScanRecord record = result.getScanRecord();
+            mCallback.onScanResult(result.getDevice(), result.getRssi(),
+                    record != null ? record.getBytes() : null);
+        }
+    }
+}
@@ -17,6 +17,9 @@
 
 package io.samsungsami.example.SAMInBLEws;
 
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
@@ -29,79 +32,129 @@ import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
-import android.os.AsyncTask;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
 
-import java.math.BigDecimal;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
-
-import io.samsungsami.model.Message;
-import io.samsungsami.model.MessageIDEnvelope;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Service for managing connection and data communication with a GATT server hosted on a
- * given Bluetooth LE device.
+ * Service for managing connections and data communication with GATT servers hosted on
+ * Bluetooth LE devices. Several straps can be connected at once; each one is tracked by a
+ * {@link GattConnection} keyed by its address, and its readings go to its own SAMI device.
+ *
+ * A strap that drops without being asked to is reconnected in the background with
+ * autoConnect, and its notifications are enabled again from the services its
+ * {@link BluetoothGatt} discovered before, without another service discovery.
+ *
+ * Straps are streamed with {@link #startStreaming(Context, String, String)}: the service
+ * is then started and in the foreground, so the connections, the uplink journal and the
+ * websocket of {@link SAMISession} live on with the screen off or no activity at all.
+ * Activities bind to it only to look at the connections; unbinding does not close them
+ * until {@link #stopStreaming(Context, String)} has stopped every strap.
  */
 public class BluetoothLeService extends Service {
     private final static String TAG = BluetoothLeService.class.getSimpleName();
 
+    public static final String ACTION_START_STREAMING =
+            "io.samsungsami.example.SAMInBLEws.action.START_STREAMING";
+    public static final String ACTION_STOP_STREAMING =
+            "io.samsungsami.example.SAMInBLEws.action.STOP_STREAMING";
+    public static final String EXTRA_ADDRESS = "io.samsungsami.example.SAMInBLEws.extra.ADDRESS";
+    public static final String EXTRA_SDID = "io.samsungsami.example.SAMInBLEws.extra.SDID";
+
+    private static final int NOTIFICATION_ID = 1;
+
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
-    private String mBluetoothDeviceAddress;
-    private BluetoothGatt mBluetoothGatt;
-    private int mConnectionState = STATE_DISCONNECTED;
-
-    private static final int STATE_DISCONNECTED = 0;
-    private static final int STATE_CONNECTING = 1;
-    private static final int STATE_CONNECTED = 2;
-
-    public final static String ACTION_GATT_CONNECTED =
-            "com.example.bluetooth.le.ACTION_GATT_CONNECTED";
-    public final static String ACTION_GATT_DISCONNECTED =
-            "com.example.bluetooth.le.ACTION_GATT_DISCONNECTED";
-    public final static String ACTION_GATT_SERVICES_DISCOVERED =
-            "com.example.bluetooth.le.ACTION_GATT_SERVICES_DISCOVERED";
-    public final static String ACTION_DATA_AVAILABLE =
-            "com.example.bluetooth.le.ACTION_DATA_AVAILABLE";
-    public final static String EXTRA_DATA =
-            "com.example.bluetooth.le.EXTRA_DATA";
+
+    // Connection pool keyed by device address. GATT callbacks for every device arrive through
+    // the single mGattCallback and are dispatched to the matching entry.
+    private final ConcurrentHashMap<String, GattConnection> mConnections =
+            new ConcurrentHashMap<String, GattConnection>();
+
+    // Runs GATT operation timeouts and retries for every connection.
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // Delivers connection changes and readings to the activities in this process.
+    private final GattEventBus mEventBus = GattEventBus.getInstance();
+
+    // True while started in the foreground. Main thread only.
+    private boolean mStreaming = false;
+    // The strap most recently started, opened from the notification.
+    private String mStreamingAddress;
+
+    private final Runnable mUpdateNotification = new Runnable() {
+        @Override
+        public void run() {
+            if (mStreaming) {
+                final NotificationManager manager =
+                        (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+                manager.notify(NOTIFICATION_ID, buildNotification());
+            }
+        }
+    };
 
     public final static UUID UUID_HEART_RATE_MEASUREMENT =
             UUID.fromString(SampleGattAttributes.HEART_RATE_MEASUREMENT);
 
-    private Integer mHeartRateForSAMI = null;
-
     // Implements callback methods for GATT events that the app cares about.  For example,
     // connection change and services discovered.
     private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
         @Override
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            String intentAction;
+            final GattConnection connection = connectionFor(gatt);
+            if (connection == null) {
+                return;
+            }
             if (newState == BluetoothProfile.STATE_CONNECTED) {
-                intentAction = ACTION_GATT_CONNECTED;
-                mConnectionState = STATE_CONNECTED;
-                broadcastUpdate(intentAction);
-                Log.i(TAG, "Connected to GATT server.");
-                // Attempts to discover services after successful connection.
-                Log.i(TAG, "Attempting to start service discovery:" +
-                        mBluetoothGatt.discoverServices());
+                connection.setState(GattConnection.STATE_CONNECTED);
+                publishUpdate(GattEvent.TYPE_CONNECTED, connection.address);
+                mHandler.post(mUpdateNotification);
+                Log.i(TAG, "Connected to GATT server " + connection.address);
+                if (!resubscribe(connection)) {
+                    // Attempts to discover services after successful connection.
+                    Log.i(TAG, "Attempting to start service discovery:" +
+                            gatt.discoverServices());
+                }
 
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                intentAction = ACTION_GATT_DISCONNECTED;
-                mConnectionState = STATE_DISCONNECTED;
-                Log.i(TAG, "Disconnected from GATT server.");
-                broadcastUpdate(intentAction);
+                connection.setState(GattConnection.STATE_DISCONNECTED);
+                connection.setResubscribing(false);
+                Log.i(TAG, "Disconnected from GATT server " + connection.address);
+                logOperationStats(connection);
+                publishUpdate(GattEvent.TYPE_DISCONNECTED, connection.address);
+                mHandler.post(mUpdateNotification);
+                if (!connection.isDisconnectRequested()) {
+                    reconnect(connection);
+                }
             }
         }
 
         @Override
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            final GattConnection connection = connectionFor(gatt);
+            if (connection == null) {
+                return;
+            }
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
+                connection.setState(GattConnection.STATE_READY);
+                connection.setResubscribing(false);
+                // Once the user picked a characteristic, it keeps notifying across
+                // rediscoveries too.
+                final List<BluetoothGattCharacteristic> subscribed =
+                        connection.getSubscribedCharacteristics();
+                if (subscribed != null) {
+                    for (BluetoothGattCharacteristic characteristic : subscribed) {
+                        enableNotification(connection, characteristic, true);
+                    }
+                }
+                publishUpdate(GattEvent.TYPE_SERVICES_DISCOVERED, connection.address);
             } else {
                 Log.w(TAG, "onServicesDiscovered received: " + status);
             }
@@ -111,66 +164,152 @@ public class BluetoothLeService extends Service {
         public void onCharacteristicRead(BluetoothGatt gatt,
                                          BluetoothGattCharacteristic characteristic,
                                          int status) {
+            final GattConnection connection = connectionFor(gatt);
+            if (connection == null) {
+                return;
+            }
+            connection.operations.onOperationComplete(characteristic, status);
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+                publishUpdate(connection, characteristic);
+            }
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt,
+                                          BluetoothGattCharacteristic characteristic,
+                                          int status) {
+            final GattConnection connection = connectionFor(gatt);
+            if (connection == null) {
+                return;
+            }
+            connection.operations.onOperationComplete(characteristic, status);
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.w(TAG, "onCharacteristicWrite received: " + status);
+            }
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                                      int status) {
+            final GattConnection connection = connectionFor(gatt);
+            if (connection == null) {
+                return;
+            }
+            connection.operations.onOperationComplete(descriptor, status);
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.w(TAG, "onDescriptorWrite received: " + status);
+                if (connection.isResubscribing()) {
+                    // The cached services no longer match the device's; discover them again
+                    // and subscribe from there.
+                    connection.setResubscribing(false);
+                    Log.i(TAG, "Attempting to start service discovery:" +
+                            gatt.discoverServices());
+                }
+            } else {
+                connection.setResubscribing(false);
             }
         }
 
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt,
                                             BluetoothGattCharacteristic characteristic) {
-            broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+            final GattConnection connection = connectionFor(gatt);
+            if (connection == null) {
+                return;
+            }
+            publishUpdate(connection, characteristic);
         }
     };
 
-    private void broadcastUpdate(final String action) {
-        final Intent intent = new Intent(action);
-        sendBroadcast(intent);
+    /**
+     * Enables notifications again on a reconnected device using the services its GATT handle
+     * discovered before the drop. Returns false if there is nothing to enable or the services
+     * are not known, in which case they must be discovered.
+     */
+    private boolean resubscribe(GattConnection connection) {
+        if (!connection.hasSubscriptions()) {
+            return false;
+        }
+        final List<BluetoothGattCharacteristic> subscribed =
+                connection.getSubscribedCharacteristics();
+        if (subscribed == null) {
+            return false;
+        }
+        Log.i(TAG, "Re-enabling " + subscribed.size() + " notifications on "
+                + connection.address + " from cached services");
+        connection.setResubscribing(true);
+        connection.setState(GattConnection.STATE_READY);
+        for (BluetoothGattCharacteristic characteristic : subscribed) {
+            enableNotification(connection, characteristic, true);
+        }
+        publishUpdate(GattEvent.TYPE_SERVICES_DISCOVERED, connection.address);
+        return true;
     }
 
-    private void broadcastUpdate(final String action,
-                                 final BluetoothGattCharacteristic characteristic) {
-        final Intent intent = new Intent(action);
+    /**
+     * Reconnects a device that dropped. {@link BluetoothGatt#connect()} reconnects with
+     * autoConnect: the controller connects whenever the device advertises again, with no
+     * timeout and without the app scanning.
+     */
+    private void reconnect(final GattConnection connection) {
+        connection.onDropped();
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                // Closed or disconnected meanwhile.
+                if (mConnections.get(connection.address) != connection
+                        || connection.isDisconnectRequested()) {
+                    return;
+                }
+                if (connection.gatt.connect()) {
+                    connection.setState(GattConnection.STATE_CONNECTING);
+                    Log.i(TAG, "Waiting for " + connection.address + " to reconnect");
+                } else {
+                    Log.w(TAG, "Unable to reconnect to " + connection.address);
+                }
+            }
+        });
+    }
 
+    private GattConnection connectionFor(BluetoothGatt gatt) {
+        final GattConnection connection = mConnections.get(gatt.getDevice().getAddress());
+        if (connection == null || connection.gatt != gatt) {
+            Log.w(TAG, "Callback for unknown connection " + gatt.getDevice().getAddress());
+            return null;
+        }
+        return connection;
+    }
+
+    private void publishUpdate(final int type, final String address) {
+        mEventBus.publish(type, address);
+    }
+
+    private void publishUpdate(final GattConnection connection,
+                               final BluetoothGattCharacteristic characteristic) {
         // This is special handling for the Heart Rate Measurement profile.  Data parsing is
-        // carried out as per profile specifications:
-        // http://developer.bluetooth.org/gatt/characteristics/Pages/CharacteristicViewer.aspx?u=org.bluetooth.characteristic.heart_rate_measurement.xml
+        // carried out as per profile specifications by HeartRateMeasurementDecoder, which reads
+        // the format from the flags in the first payload byte.  Only heart rate data is sent
+        // to the UI and then to SAMI.
         if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
-            int flag = characteristic.getProperties();
-            int format = -1;
-            if ((flag & 0x01) != 0) {
-                format = BluetoothGattCharacteristic.FORMAT_UINT16;
-                Log.d(TAG, "Heart rate format UINT16.");
-            } else {
-                format = BluetoothGattCharacteristic.FORMAT_UINT8;
-                Log.d(TAG, "Heart rate format UINT8.");
+            final HeartRateSample sample = connection.heartRateSample;
+            if (!HeartRateMeasurementDecoder.decode(characteristic.getValue(), sample)) {
+                Log.w(TAG, "Malformed heart rate measurement from " + connection.address);
+                return;
+            }
+            final int heartRate = sample.heartRate;
+            final long ts = System.currentTimeMillis();
+            connection.hrvWindow.add(sample);
+
+            final long recoveryMs = connection.onSample();
+            if (recoveryMs >= 0) {
+                Log.i(TAG, "First reading from " + connection.address + " " + recoveryMs
+                        + " ms after the drop, " + connection.getRecoveryStats());
             }
-            final int heartRate = characteristic.getIntValue(format, 1);
-            Log.d(TAG, String.format("Received heart rate: %d", heartRate));
-
-            intent.putExtra(EXTRA_DATA, String.valueOf(heartRate));
-            sendBroadcast(intent);
-
-            mHeartRateForSAMI = heartRate;
-
-            sendHeartRateToSami();
-        }
-        // Comment out the original code that sends other measurement data to UI so that
-        // only heart rate data is sent to UI and then to SAMI
-//        else {
-//            // For all other profiles, writes the data formatted in HEX.
-//            Log.d(TAG, "broadcastUpdate(action, characteristic): characteristics.getUuid = " + characteristic.getUuid());
-//
-//            final byte[] data = characteristic.getValue();
-//            if (data != null && data.length > 0) {
-//                final StringBuilder stringBuilder = new StringBuilder(data.length);
-//                for(byte byteChar : data)
-//                    stringBuilder.append(String.format("%02X ", byteChar));
-//                intent.putExtra(EXTRA_DATA, new String(data) + "\n" + stringBuilder.toString());
-//            }
-//            sendBroadcast(intent);
-//        }
 
+            mEventBus.publish(GattEvent.TYPE_HEART_RATE, connection.address, heartRate, ts);
+
+            sendHeartRateToSami(connection, heartRate, ts);
+        }
     }
 
     public class LocalBinder extends Binder {
@@ -179,6 +318,108 @@ public class BluetoothLeService extends Service {
         }
     }
 
+    /**
+     * Starts streaming {@code address} as SAMI device {@code sdid}, in addition to any strap
+     * already streaming, and puts the service in the foreground. A null {@code sdid} leaves
+     * the SAMI device of a strap already streaming as it is.
+     */
+    public static void startStreaming(Context context, String address, String sdid) {
+        final Intent intent = new Intent(context, BluetoothLeService.class);
+        intent.setAction(ACTION_START_STREAMING);
+        intent.putExtra(EXTRA_ADDRESS, address);
+        intent.putExtra(EXTRA_SDID, sdid);
+        context.startService(intent);
+    }
+
+    /**
+     * Stops streaming {@code address}, or every strap if it is null. The service leaves the
+     * foreground when no strap is left.
+     */
+    public static void stopStreaming(Context context, String address) {
+        final Intent intent = new Intent(context, BluetoothLeService.class);
+        intent.setAction(ACTION_STOP_STREAMING);
+        intent.putExtra(EXTRA_ADDRESS, address);
+        context.startService(intent);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        final String action = intent != null ? intent.getAction() : null;
+        if (ACTION_START_STREAMING.equals(action)) {
+            final String address = intent.getStringExtra(EXTRA_ADDRESS);
+            // Without a token, e.g. a start sent before logging in, the readings would all be
+            // refused.
+            if (SAMISession.getInstance().getAccessToken() == null) {
+                Log.w(TAG, "Not logged in to SAMI, not streaming " + address);
+                if (mConnections.isEmpty()) {
+                    stopForegroundStreaming();
+                }
+                return START_NOT_STICKY;
+            }
+            if (!initialize() || !connect(address, intent.getStringExtra(EXTRA_SDID))) {
+                Log.w(TAG, "Unable to stream " + address);
+                if (mConnections.isEmpty()) {
+                    stopForegroundStreaming();
+                }
+                return START_NOT_STICKY;
+            }
+            mStreamingAddress = address;
+            SAMISession.getInstance().setupWebsocket();
+            if (!mStreaming) {
+                mStreaming = true;
+                startForeground(NOTIFICATION_ID, buildNotification());
+            } else {
+                mUpdateNotification.run();
+            }
+        } else if (ACTION_STOP_STREAMING.equals(action)) {
+            final String address = intent.getStringExtra(EXTRA_ADDRESS);
+            if (address != null) {
+                close(address);
+            } else {
+                close();
+            }
+            if (mConnections.isEmpty()) {
+                stopForegroundStreaming();
+            } else {
+                mUpdateNotification.run();
+            }
+        }
+        // Not restarted after the process is killed: the SAMI token is only kept in memory, so
+        // a redelivered start would be refused anyway. Streaming resumes once the user logs in
+        // and picks the strap again.
+        return START_NOT_STICKY;
+    }
+
+    private void stopForegroundStreaming() {
+        mStreaming = false;
+        stopForeground(true);
+        // Stays alive until the last activity unbinds.
+        stopSelf();
+    }
+
+    private Notification buildNotification() {
+        final Intent intent = new Intent(this, DeviceControlActivity.class);
+        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_NAME,
+                AdvertisementCache.getInstance().getName(mStreamingAddress));
+        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESS, mStreamingAddress);
+        return new Notification.Builder(this)
+                .setSmallIcon(R.drawable.ic_launcher)
+                .setContentTitle(getString(R.string.streaming_title))
+                .setContentText(getString(R.string.streaming_text,
+                        getConnectedAddresses().size(), mConnections.size()))
+                .setContentIntent(PendingIntent.getActivity(this, 0, intent,
+                        PendingIntent.FLAG_UPDATE_CURRENT))
+                .setOngoing(true)
+                .build();
+    }
+
+    /**
+     * Whether the service is streaming in the foreground.
+     */
+    public boolean isStreaming() {
+        return mStreaming;
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return mBinder;
@@ -188,11 +429,20 @@ public class BluetoothLeService extends Service {
     public boolean onUnbind(Intent intent) {
         // After using a given device, you should make sure that BluetoothGatt.close() is called
         // such that resources are cleaned up properly.  In this particular example, close() is
-        // invoked when the UI is disconnected from the Service.
-        close();
+        // invoked when the UI is disconnected from the Service, unless the straps are streaming
+        // in the foreground; they are then closed by stopStreaming().
+        if (!mStreaming) {
+            close();
+        }
         return super.onUnbind(intent);
     }
 
+    @Override
+    public void onDestroy() {
+        close();
+        super.onDestroy();
+    }
+
     private final IBinder mBinder = new LocalBinder();
 
     /**
@@ -217,11 +467,15 @@ public class BluetoothLeService extends Service {
             return false;
         }
 
+        // Readings are journaled on disk so none are lost while the websocket is down.
+        SAMISession.getInstance().openJournal(getFilesDir());
+
         return true;
     }
 
     /**
-     * Connects to the GATT server hosted on the Bluetooth LE device.
+     * Connects to the GATT server hosted on the Bluetooth LE device. Readings are sent as the
+     * SAMI device currently selected in {@link SAMISession}.
      *
      * @param address The device address of the destination device.
      *
@@ -231,17 +485,39 @@ public class BluetoothLeService extends Service {
      *         callback.
      */
     public boolean connect(final String address) {
+        return connect(address, SAMISession.getInstance().getDeviceId());
+    }
+
+    /**
+     * Connects to the GATT server hosted on the Bluetooth LE device, in addition to any device
+     * that is already connected.
+     *
+     * @param address The device address of the destination device.
+     * @param sdid The SAMI device id that readings from this device are sent as; if null, an
+     *             existing connection keeps its own, and a new one uses the device selected
+     *             in {@link SAMISession} when readings are sent.
+     *
+     * @return Return true if the connection is initiated successfully.
+     */
+    public boolean connect(final String address, final String sdid) {
         if (mBluetoothAdapter == null || address == null) {
             Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
             return false;
         }
 
         // Previously connected device.  Try to reconnect.
-        if (mBluetoothDeviceAddress != null && address.equals(mBluetoothDeviceAddress)
-                && mBluetoothGatt != null) {
-            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
-            if (mBluetoothGatt.connect()) {
-                mConnectionState = STATE_CONNECTING;
+        final GattConnection existing = mConnections.get(address);
+        if (existing != null) {
+            if (sdid != null) {
+                existing.setSdid(sdid);
+            }
+            existing.setDisconnectRequested(false);
+            if (existing.isConnected()) {
+                return true;
+            }
+            Log.d(TAG, "Trying to use an existing BluetoothGatt for connection to " + address);
+            if (existing.gatt.connect()) {
+                existing.setState(GattConnection.STATE_CONNECTING);
                 return true;
             } else {
                 return false;
@@ -254,11 +530,13 @@ public class BluetoothLeService extends Service {
             return false;
         }
         // We want to directly connect to the device, so we are setting the autoConnect
-        // parameter to false.
-        mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
-        Log.d(TAG, "Trying to create a new connection.");
-        mBluetoothDeviceAddress = address;
-        mConnectionState = STATE_CONNECTING;
+        // parameter to false. Reconnects after a drop use autoConnect, see reconnect().
+        final BluetoothGatt gatt = device.connectGatt(this, false, mGattCallback);
+        if (gatt == null) {
+            return false;
+        }
+        Log.d(TAG, "Trying to create a new connection to " + address);
+        mConnections.put(address, new GattConnection(address, gatt, sdid, mHandler));
         return true;
     }
 
@@ -268,24 +546,78 @@ public class BluetoothLeService extends Service {
      * {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
      * callback.
      */
-    public void disconnect() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
+    public void disconnect(String address) {
+        final GattConnection connection = getConnection(address);
+        if (connection == null) {
             return;
         }
-        mBluetoothGatt.disconnect();
+        connection.setDisconnectRequested(true);
+        connection.gatt.disconnect();
+    }
+
+    /**
+     * Disconnects every device.
+     */
+    public void disconnect() {
+        for (GattConnection connection : mConnections.values()) {
+            connection.setDisconnectRequested(true);
+            connection.gatt.disconnect();
+        }
     }
 
     /**
      * After using a given BLE device, the app must call this method to ensure resources are
      * released properly.
      */
-    public void close() {
-        if (mBluetoothGatt == null) {
+    public void close(String address) {
+        final GattConnection connection = mConnections.remove(address);
+        if (connection == null) {
             return;
         }
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
+        connection.setDisconnectRequested(true);
+        // No callback comes after close(), so observers are told here.
+        if (connection.isConnected()) {
+            publishUpdate(GattEvent.TYPE_DISCONNECTED, address);
+        }
+        connection.setState(GattConnection.STATE_DISCONNECTED);
+        connection.gatt.close();
+    }
+
+    /**
+     * Closes every connection.
+     */
+    public void close() {
+        for (String address : new ArrayList<String>(mConnections.keySet())) {
+            close(address);
+        }
+    }
+
+    /**
+     * Returns the connection to {@code address}, or null if there is none.
+     */
+    public GattConnection getConnection(String address) {
+        if (mBluetoothAdapter == null || address == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
+            return null;
+        }
+        final GattConnection connection = mConnections.get(address);
+        if (connection == null) {
+            Log.w(TAG, "No connection to " + address);
+        }
+        return connection;
+    }
+
+    /**
+     * Returns the addresses of every device in the connection pool.
+     */
+    public List<String> getConnectedAddresses() {
+        final ArrayList<String> addresses = new ArrayList<String>();
+        for (GattConnection connection : mConnections.values()) {
+            if (connection.isConnected()) {
+                addresses.add(connection.address);
+            }
+        }
+        return addresses;
     }
 
     /**
@@ -293,36 +625,64 @@ public class BluetoothLeService extends Service {
      * asynchronously through the {@code BluetoothGattCallback#onCharacteristicRead(android.bluetooth.BluetoothGatt, android.bluetooth.BluetoothGattCharacteristic, int)}
      * callback.
      *
+     * @param address The device to read from.
      * @param characteristic The characteristic to read from.
      */
-    public void readCharacteristic(BluetoothGattCharacteristic characteristic) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
+    public void readCharacteristic(String address, BluetoothGattCharacteristic characteristic) {
+        final GattConnection connection = getConnection(address);
+        if (connection == null) {
+            return;
+        }
+        connection.operations.enqueue(GattOperationQueue.read(characteristic));
+    }
+
+    /**
+     * Request a write of {@code value} to a given {@code BluetoothGattCharacteristic}. The
+     * write is queued behind any other operation on the same device.
+     *
+     * @param address The device to write to.
+     * @param characteristic The characteristic to write to.
+     * @param value The bytes to write.
+     */
+    public void writeCharacteristic(String address, BluetoothGattCharacteristic characteristic,
+                                    byte[] value) {
+        final GattConnection connection = getConnection(address);
+        if (connection == null) {
             return;
         }
-        mBluetoothGatt.readCharacteristic(characteristic);
+        connection.operations.enqueue(GattOperationQueue.write(characteristic, value));
     }
 
     /**
      * Enables or disables notification on a give characteristic.
      *
+     * @param address The device the characteristic belongs to.
      * @param characteristic Characteristic to act on.
      * @param enabled If true, enable notification.  False otherwise.
      */
-    public void setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+    public void setCharacteristicNotification(String address,
+                                              BluetoothGattCharacteristic characteristic,
                                               boolean enabled) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
+        final GattConnection connection = getConnection(address);
+        if (connection == null) {
             return;
         }
-        mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
+        connection.setSubscribed(characteristic, enabled);
+        enableNotification(connection, characteristic, enabled);
+    }
+
+    private void enableNotification(GattConnection connection,
+                                    BluetoothGattCharacteristic characteristic,
+                                    boolean enabled) {
+        connection.gatt.setCharacteristicNotification(characteristic, enabled);
 
         // This is specific to Heart Rate Measurement.
         if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
             BluetoothGattDescriptor descriptor = characteristic.getDescriptor(
                     UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG));
-            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            mBluetoothGatt.writeDescriptor(descriptor);
+            connection.operations.enqueue(GattOperationQueue.writeDescriptor(descriptor,
+                    enabled ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE
+                            : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE));
         }
     }
 
@@ -332,51 +692,26 @@ public class BluetoothLeService extends Service {
      *
      * @return A {@code List} of supported services.
      */
-    public List<BluetoothGattService> getSupportedGattServices() {
-        if (mBluetoothGatt == null) return null;
+    public List<BluetoothGattService> getSupportedGattServices(String address) {
+        final GattConnection connection = getConnection(address);
+        if (connection == null) return null;
 
-        return mBluetoothGatt.getServices();
+        return connection.gatt.getServices();
     }
 
-    private void sendHeartRateToSami() {
-
-        // Choose one of the two ways to send heart rates: REST POST call or websocket.
-        // Comment out the one that you are not using.
-        SAMISession.getInstance().onNewHeartRate(mHeartRateForSAMI, System.currentTimeMillis());
-//       new PostMsgInBackground().execute();
-
+    private void logOperationStats(GattConnection connection) {
+        Log.i(TAG, connection.address + " reads: "
+                + connection.operations.getStats(GattOperationQueue.TYPE_READ));
+        Log.i(TAG, connection.address + " writes: "
+                + connection.operations.getStats(GattOperationQueue.TYPE_WRITE));
+        Log.i(TAG, connection.address + " descriptor writes: "
+                + connection.operations.getStats(GattOperationQueue.TYPE_WRITE_DESCRIPTOR));
     }
 
-    private class PostMsgInBackground extends AsyncTask<Void, Void, MessageIDEnvelope> {
-        final static String TAG = "PostMsgInBackground";
-        @Override
-        protected MessageIDEnvelope doInBackground(Void... params) {
-            MessageIDEnvelope retVal = null;
-            try {
-                HashMap<String, Object> data = new HashMap<String, Object>();
-                data.put("heart_rate", mHeartRateForSAMI);
-                Message msg = new Message();
-                msg.setSdid(SAMISession.getInstance().getDeviceId());
-                msg.setData(data);
-                msg.setTs(BigDecimal.valueOf(System.currentTimeMillis()));
-                retVal= SAMISession.getInstance().getMessagesApi().postMessage(msg);
-                Log.v(TAG, "::onPostExecute sending heart rate " + mHeartRateForSAMI);
-            } catch (Exception e) {
-                Log.w(TAG, "::doInBackground run into Exception");
-                e.printStackTrace();
-            }
-
-            return retVal;
-        }
-
-        @Override
-        protected void onPostExecute(MessageIDEnvelope result) {
-            if (result == null) {
-                Log.v(TAG, "::onPostExecute latestMessage is null!");
-                return;
-            }
-            Log.v(TAG, "::onPostExecute response to sending message = " + result.getData().toString());
-        }
+    private void sendHeartRateToSami(GattConnection connection, int heartRate, long ts) {
+        // Goes out over the websocket or REST, see SAMISession.setUplinkTransport().
+        SAMISession.getInstance().onNewHeartRate(connection.getSdid(), heartRate, ts,
+                connection.hrvWindow);
     }
 
 }
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.samsungsami.example.SAMInBLEws;
+
+import android.os.Build;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.Deflater;
+
+/**
+ * Packs readings into compact, deflated binary websocket frames for a relay we run in front
+ * of SAMI.
+ *
+ * Each frame is one header byte followed by raw DEFLATE data. The inflated body is a list of
+ * records:
+ * <ul>
+ * <li>{@code 0x01 varint index, varint length, utf8 sdid} assigns an index to an sdid the
+ *     first time it appears on the connection, so the string is sent only once;</li>
+ * <li>{@code 0x02 varint index, zigzag varint ts delta, varint heart rate} is a reading;</li>
+ * <li>{@code 0x03} is a reading followed by {@code varint rmssd*10, varint sdnn*10,
+ *     varint pnn50*100}.</li>
+ * </ul>
+ * Timestamps are deltas from the previous reading on the connection.
+ *
+ * If bit 0 of the header byte is set, the frame continues one deflate stream that spans the
+ * whole connection (context takeover, ended with a sync flush), so later frames reuse what
+ * earlier ones taught the compressor; otherwise the frame is a complete stream of its own.
+ * Context takeover needs {@code Deflater.SYNC_FLUSH}, which Android only has from API 19.
+ *
+ * Call {@link #reset()} for every new connection. Not thread safe.
+ */
+public class CompactFrameEncoder {
+
+    public static final int FLAG_CONTEXT_TAKEOVER = 0x01;
+
+    private static final int RECORD_DEFINE_SDID = 0x01;
+    private static final int RECORD_READING = 0x02;
+    private static final int RECORD_READING_HRV = 0x03;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final boolean CONTEXT_TAKEOVER =
+            Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+
+    private final Deflater mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final HashMap<String, Integer> mSdidIndices = new HashMap<String, Integer>();
+    private final ArrayList<String> mSdids = new ArrayList<String>();
+    private long mLastTs = 0;
+
+    // Dictionary size and timestamp base as of the last finished frame, for discardFrame().
+    private int mFrameStartSdids = 0;
+    private long mFrameStartTs = 0;
+
+    private byte[] mBody = new byte[512];
+    private int mBodyLength = 0;
+    private byte[] mOut = new byte[512];
+
+    private int mPendingReadings = 0;
+    private long mReadings = 0;
+    private long mBodyBytes = 0;
+    private long mWireBytes = 0;
+
+    /**
+     * Forgets the sdid dictionary, the timestamp base and the compression context; the relay
+     * starts from scratch on every connection too.
+     */
+    public void reset() {
+        mDeflater.reset();
+        mSdidIndices.clear();
+        mSdids.clear();
+        mLastTs = 0;
+        mFrameStartSdids = 0;
+        mFrameStartTs = 0;
+        mBodyLength = 0;
+        mPendingReadings = 0;
+    }
+
+    /**
+     * Drops the readings added since the last frame, including any sdid they introduced, as if
+     * they had never been added.
+     */
+    public void discardFrame() {
+        while (mSdids.size() > mFrameStartSdids) {
+            mSdidIndices.remove(mSdids.remove(mSdids.size() - 1));
+        }
+        mLastTs = mFrameStartTs;
+        mBodyLength = 0;
+        mPendingReadings = 0;
+    }
+
+    public boolean isEmpty() {
+        return mPendingReadings == 0;
+    }
+
+    /**
+     * Adds a reading to the frame being built. NaN HRV metrics mean there are none.
+     */
+    public void add(String sdid, int heartRate, long ts, float rmssd, float sdnn, float pnn50) {
+        if (sdid == null) {
+            sdid = "";
+        }
+        Integer index = mSdidIndices.get(sdid);
+        if (index == null) {
+            index = mSdidIndices.size();
+            mSdidIndices.put(sdid, index);
+            mSdids.add(sdid);
+            final byte[] bytes = sdid.getBytes(UTF8);
+            writeByte(RECORD_DEFINE_SDID);
+            writeVarint(index);
+            writeVarint(bytes.length);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, mBody, mBodyLength, bytes.length);
+            mBodyLength += bytes.length;
+        }
+
+        final boolean hasHrv = !Float.isNaN(rmssd) && !Float.isNaN(sdnn) && !Float.isNaN(pnn50);
+        writeByte(hasHrv ? RECORD_READING_HRV : RECORD_READING);
+        writeVarint(index);
+        final long delta = ts - mLastTs;
+        writeVarint((delta << 1) ^ (delta >> 63));
+        mLastTs = ts;
+        writeVarint(heartRate);
+        if (hasHrv) {
+            writeVarint(Math.round(rmssd * 10));
+            writeVarint(Math.round(sdnn * 10));
+            writeVarint(Math.round(pnn50 * 100));
+        }
+        mPendingReadings++;
+    }
+
+    /**
+     * Compresses the readings added since the last frame and returns the frame to send.
+     */
+    public byte[] finishFrame() {
+        int outLength = 1;
+        mOut[0] = (byte) (CONTEXT_TAKEOVER ? FLAG_CONTEXT_TAKEOVER : 0);
+
+        if (!CONTEXT_TAKEOVER) {
+            mDeflater.reset();
+        }
+        mDeflater.setInput(mBody, 0, mBodyLength);
+        if (CONTEXT_TAKEOVER) {
+            while (true) {
+                final int n = mDeflater.deflate(mOut, outLength, mOut.length - outLength,
+                        Deflater.SYNC_FLUSH);
+                outLength += n;
+                if (outLength < mOut.length) {
+                    break;
+                }
+                mOut = Arrays.copyOf(mOut, mOut.length * 2);
+            }
+        } else {
+            mDeflater.finish();
+            while (!mDeflater.finished()) {
+                if (outLength == mOut.length) {
+                    mOut = Arrays.copyOf(mOut, mOut.length * 2);
+                }
+                outLength += mDeflater.deflate(mOut, outLength, mOut.length - outLength);
+            }
+        }
+
+        mReadings += mPendingReadings;
+        mBodyBytes += mBodyLength;
+        mWireBytes += outLength;
+        mBodyLength = 0;
+        mPendingReadings = 0;
+        mFrameStartSdids = mSdids.size();
+        mFrameStartTs = mLastTs;
+        return Arrays.copyOf(mOut, outLength);
+    }
+
+    public long getReadingCount() {
+        return mReadings;
+    }
+
+    /**
+     * Bytes of binary records before compression, across all frames so far.
+     */
+    public long getBodyBytes() {
+        return mBodyBytes;
+    }
+
+    /**
+     * Bytes of frame payload actually sent, across all frames so far.
+     */
+    public long getWireBytes() {
+        return mWireBytes;
+    }
+
+    private void writeByte(int b) {
+        ensureCapacity(1);
+        mBody[mBodyLength++] = (byte) b;
+    }
+
+    private void writeVarint(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7fL) != 0) {
+            mBody[mBodyLength++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        mBody[mBodyLength++] = (byte) value;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (mBodyLength + extra > mBody.length) {
+            mBody = Arrays.copyOf(mBody, Math.max(mBody.length * 2, mBodyLength + extra));
+        }
+    }
+}
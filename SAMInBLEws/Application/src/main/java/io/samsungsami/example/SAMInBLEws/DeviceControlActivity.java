@@ -19,11 +19,8 @@ package io.samsungsami.example.SAMInBLEws;
 import android.app.Activity;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattService;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.IBinder;
@@ -79,8 +76,9 @@ public class DeviceControlActivity extends Activity {
                 Log.e(TAG, "Unable to initialize Bluetooth");
                 finish();
             }
-            // Automatically connects to the device upon successful start-up initialization.
-            mBluetoothLeService.connect(mDeviceAddress);
+            // Streaming was started by the scan screen or the connect menu; the binding is
+            // only used to show the connection, which may have been up for a while.
+            showConnectionState();
         }
 
         @Override
@@ -89,34 +87,47 @@ public class DeviceControlActivity extends Activity {
         }
     };
 
-    // Handles various events fired by the Service.
-    // ACTION_GATT_CONNECTED: connected to a GATT server.
-    // ACTION_GATT_DISCONNECTED: disconnected from a GATT server.
-    // ACTION_GATT_SERVICES_DISCOVERED: discovered GATT services.
-    // ACTION_DATA_AVAILABLE: received data from the device.  This can be a result of read
-    //                        or notification operations.
-    private final BroadcastReceiver mGattUpdateReceiver = new BroadcastReceiver() {
+    // Handles various events published by the Service on the GattEventBus, on the main thread.
+    // TYPE_CONNECTED: connected to a GATT server.
+    // TYPE_DISCONNECTED: disconnected from a GATT server.
+    // TYPE_SERVICES_DISCOVERED: discovered GATT services.
+    // TYPE_HEART_RATE: received a heart rate from the device.  This can be a result of read
+    //                  or notification operations.
+    private final GattEventBus.Subscriber mGattUpdateSubscriber = new GattEventBus.Subscriber() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            final String action = intent.getAction();
-            if (BluetoothLeService.ACTION_GATT_CONNECTED.equals(action)) {
-                mConnected = true;
-                updateConnectionState(R.string.connected);
-                invalidateOptionsMenu();
-            } else if (BluetoothLeService.ACTION_GATT_DISCONNECTED.equals(action)) {
-                mConnected = false;
-                updateConnectionState(R.string.disconnected);
-                invalidateOptionsMenu();
-                clearUI();
-            } else if (BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
-                // Show all the supported services and characteristics on the user interface.
-                displayGattServices(mBluetoothLeService.getSupportedGattServices());
-            } else if (BluetoothLeService.ACTION_DATA_AVAILABLE.equals(action)) {
-                displayData(intent.getStringExtra(BluetoothLeService.EXTRA_DATA));
+        public void onGattEvent(GattEvent event) {
+            // The service may be talking to several devices; only show this one.
+            if (!mDeviceAddress.equals(event.getAddress())) {
+                return;
+            }
+            switch (event.getType()) {
+                case GattEvent.TYPE_CONNECTED:
+                    mConnected = true;
+                    updateConnectionState(R.string.connected);
+                    invalidateOptionsMenu();
+                    break;
+                case GattEvent.TYPE_DISCONNECTED:
+                    mConnected = false;
+                    updateConnectionState(R.string.disconnected);
+                    invalidateOptionsMenu();
+                    clearUI();
+                    break;
+                case GattEvent.TYPE_SERVICES_DISCOVERED:
+                    // Show all the supported services and characteristics on the user interface.
+                    if (mBluetoothLeService != null) {
+                        displayGattServices(
+                                mBluetoothLeService.getSupportedGattServices(mDeviceAddress));
+                    }
+                    break;
+                case GattEvent.TYPE_HEART_RATE:
+                    displayData(String.valueOf(event.getHeartRate()));
+                    break;
             }
         }
     };
 
+    private GattEventBus.Subscription mGattUpdateSubscription;
+
     // If a given GATT characteristic is selected, check for supported features.  This sample
     // demonstrates 'Read' and 'Notify' features.  See
     // http://d.android.com/reference/android/bluetooth/BluetoothGatt.html for the complete
@@ -141,15 +152,15 @@ public class DeviceControlActivity extends Activity {
                             // it first so it doesn't update the data field on the user interface.
                             if (mNotifyCharacteristic != null) {
                                 mBluetoothLeService.setCharacteristicNotification(
-                                        mNotifyCharacteristic, false);
+                                        mDeviceAddress, mNotifyCharacteristic, false);
                                 mNotifyCharacteristic = null;
                             }
-                            mBluetoothLeService.readCharacteristic(characteristic);
+                            mBluetoothLeService.readCharacteristic(mDeviceAddress, characteristic);
                         }
                         if ((charaProp | BluetoothGattCharacteristic.PROPERTY_NOTIFY) > 0) {
                             mNotifyCharacteristic = characteristic;
                             mBluetoothLeService.setCharacteristicNotification(
-                                    characteristic, true);
+                                    mDeviceAddress, characteristic, true);
                         }
                         return true;
                     }
@@ -189,17 +200,38 @@ public class DeviceControlActivity extends Activity {
     @Override
     protected void onResume() {
         super.onResume();
-        registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter());
-        if (mBluetoothLeService != null) {
-            final boolean result = mBluetoothLeService.connect(mDeviceAddress);
-            Log.d(TAG, "Connect request result=" + result);
+        mGattUpdateSubscription = GattEventBus.getInstance().subscribe(mGattUpdateSubscriber, true);
+        // Events published while paused were missed.
+        showConnectionState();
+    }
+
+    /**
+     * Shows the state of the connection as the service has it. The event bus only delivers
+     * what happens after subscribing, and the service streams with or without this activity.
+     */
+    private void showConnectionState() {
+        if (mBluetoothLeService == null) {
+            return;
+        }
+        final GattConnection connection = mBluetoothLeService.getConnection(mDeviceAddress);
+        mConnected = connection != null && connection.isConnected();
+        if (connection != null && connection.getSdid() != null) {
+            mSamiDeviceId = connection.getSdid();
+        }
+        updateConnectionState(mConnected ? R.string.connected : R.string.disconnected);
+        invalidateOptionsMenu();
+        if (connection != null && connection.getState() == GattConnection.STATE_READY) {
+            displayGattServices(mBluetoothLeService.getSupportedGattServices(mDeviceAddress));
+        } else {
+            clearUI();
         }
     }
 
     @Override
     protected void onPause() {
         super.onPause();
-        unregisterReceiver(mGattUpdateReceiver);
+        GattEventBus.getInstance().unsubscribe(mGattUpdateSubscription);
+        mGattUpdateSubscription = null;
     }
 
     @Override
@@ -226,10 +258,10 @@ public class DeviceControlActivity extends Activity {
     public boolean onOptionsItemSelected(MenuItem item) {
         switch(item.getItemId()) {
             case R.id.menu_connect:
-                mBluetoothLeService.connect(mDeviceAddress);
+                BluetoothLeService.startStreaming(this, mDeviceAddress, mSamiDeviceId);
                 return true;
             case R.id.menu_disconnect:
-                mBluetoothLeService.disconnect();
+                BluetoothLeService.stopStreaming(this, mDeviceAddress);
                 return true;
             case android.R.id.home:
                 onBackPressed();
@@ -310,13 +342,4 @@ public class DeviceControlActivity extends Activity {
         mGattServicesList.setAdapter(gattServiceAdapter);
     }
 
-    private static IntentFilter makeGattUpdateIntentFilter() {
-        final IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_CONNECTED);
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_DISCONNECTED);
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED);
-        intentFilter.addAction(BluetoothLeService.ACTION_DATA_AVAILABLE);
-        return intentFilter;
-    }
-
 }
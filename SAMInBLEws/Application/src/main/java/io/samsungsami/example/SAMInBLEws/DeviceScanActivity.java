@@ -37,7 +37,8 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Activity for scanning and displaying available Bluetooth LE devices.
@@ -46,7 +47,9 @@ public class DeviceScanActivity extends ListActivity {
     private static final String TAG = DeviceScanActivity.class.getSimpleName();
 
     private LeDeviceListAdapter mLeDeviceListAdapter;
+    private ScanAggregator mScanAggregator;
     private BluetoothAdapter mBluetoothAdapter;
+    private BleScanner mScanner;
     private boolean mScanning;
     private Handler mHandler;
 
@@ -63,6 +66,14 @@ public class DeviceScanActivity extends ListActivity {
         final Intent intent = getIntent();
 
         mHandler = new Handler();
+        mScanAggregator = new ScanAggregator(new ScanAggregator.Listener() {
+            @Override
+            public void onScanUpdate(ScanAggregator.Update update) {
+                if (mLeDeviceListAdapter != null) {
+                    mLeDeviceListAdapter.setDevices(update);
+                }
+            }
+        });
 
         // Use this check to determine whether BLE is supported on the device.  Then you can
         // selectively disable BLE-related features.
@@ -83,6 +94,28 @@ public class DeviceScanActivity extends ListActivity {
             finish();
             return;
         }
+
+        // The user is waiting on the list, so scan all the time for the whole period, and
+        // have every result reported as it comes: a duty cycle could miss a strap that
+        // advertises slowly, and batching would hold the list back by the report delay. The
+        // scan is short and ends on its own, so it costs little power anyway; duty cycling and
+        // batching are for scans that run in the background for long.
+        final BleScanner.Config config = new BleScanner.Config();
+        config.mode = BleScanner.MODE_LOW_LATENCY;
+        config.windowMs = SCAN_PERIOD;
+        mScanner = new BleScanner(mBluetoothAdapter, mHandler, new BleScanner.Callback() {
+            @Override
+            public void onScanResult(BluetoothDevice device, int rssi, byte[] scanRecord) {
+                mScanAggregator.onScanResult(device, rssi, scanRecord);
+            }
+
+            @Override
+            public void onScanFinished() {
+                mScanning = false;
+                invalidateOptionsMenu();
+            }
+        });
+        mScanner.setConfig(config);
     }
 
     @Override
@@ -105,7 +138,7 @@ public class DeviceScanActivity extends ListActivity {
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case R.id.menu_scan:
-                mLeDeviceListAdapter.clear();
+                mScanAggregator.clear();
                 scanLeDevice(true);
                 break;
             case R.id.menu_stop:
@@ -151,69 +184,74 @@ public class DeviceScanActivity extends ListActivity {
     protected void onPause() {
         super.onPause();
         scanLeDevice(false);
-        mLeDeviceListAdapter.clear();
+        mScanAggregator.clear();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mScanAggregator != null) {
+            mScanAggregator.quit();
+        }
     }
 
     @Override
     protected void onListItemClick(ListView l, View v, int position, long id) {
-        final BluetoothDevice device = mLeDeviceListAdapter.getDevice(position);
-        if (device == null) return;
+        final ScanAggregator.ScanEntry entry = mLeDeviceListAdapter.getEntry(position);
+        if (entry == null) return;
+        final BluetoothDevice device = entry.device;
         final Intent intent = new Intent(this, DeviceControlActivity.class);
-        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_NAME, device.getName());
+        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_NAME, entry.name);
         intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESS, device.getAddress());
         if (mScanning) {
-            mBluetoothAdapter.stopLeScan(mLeScanCallback);
-            mScanning = false;
+            scanLeDevice(false);
         }
+        // Picking a strap is what connects it; it keeps streaming after the control screen
+        // is gone.
+        BluetoothLeService.startStreaming(this, device.getAddress(),
+                SAMISession.getInstance().getDeviceId());
         startActivity(intent);
     }
 
     private void scanLeDevice(final boolean enable) {
         if (enable) {
-            // Stops scanning after a pre-defined scan period.
-            mHandler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    mScanning = false;
-                    mBluetoothAdapter.stopLeScan(mLeScanCallback);
-                    invalidateOptionsMenu();
-                }
-            }, SCAN_PERIOD);
-
+            // The scanner stops after SCAN_PERIOD and calls onScanFinished().
             mScanning = true;
-            mBluetoothAdapter.startLeScan(mLeScanCallback);
+            mScanner.start();
         } else {
             mScanning = false;
-            mBluetoothAdapter.stopLeScan(mLeScanCallback);
+            mScanner.stop();
         }
         invalidateOptionsMenu();
     }
 
-    // Adapter for holding devices found through scanning.
+    // Adapter for holding devices found through scanning. It shows the snapshots published by
+    // mScanAggregator, which are already deduplicated by address.
     private class LeDeviceListAdapter extends BaseAdapter {
-        private ArrayList<BluetoothDevice> mSAMIDevices;
+        private List<ScanAggregator.ScanEntry> mSAMIDevices;
         private LayoutInflater mInflator;
 
         public LeDeviceListAdapter() {
             super();
-            mSAMIDevices = new ArrayList<BluetoothDevice>();
+            mSAMIDevices = Collections.emptyList();
             mInflator = DeviceScanActivity.this.getLayoutInflater();
         }
 
-        public void addDevice(BluetoothDevice device) {
-            if(!mSAMIDevices.contains(device)) {
-                mSAMIDevices.add(device);
+        public void setDevices(ScanAggregator.Update update) {
+            // Only names and addresses are shown, so devices advertising again change nothing
+            // unless they advertise another name.
+            final boolean listChanged = update.added > 0 || update.renamed > 0
+                    || update.devices.size() != mSAMIDevices.size();
+            mSAMIDevices = update.devices;
+            if (listChanged) {
+                notifyDataSetChanged();
             }
         }
 
-        public BluetoothDevice getDevice(int position) {
+        public ScanAggregator.ScanEntry getEntry(int position) {
             return mSAMIDevices.get(position);
         }
 
-        public void clear() {
-            mSAMIDevices.clear();
-        }
-
         @Override
         public int getCount() {
             return mSAMIDevices.size();
@@ -243,34 +281,19 @@ public class DeviceScanActivity extends ListActivity {
                 viewHolder = (ViewHolder) view.getTag();
             }
 
-            BluetoothDevice device = mSAMIDevices.get(i);
-            final String deviceName = device.getName();
+            // The name comes from the advertisement; device.getName() would be a binder call.
+            final ScanAggregator.ScanEntry entry = mSAMIDevices.get(i);
+            final String deviceName = entry.name;
             if (deviceName != null && deviceName.length() > 0)
                 viewHolder.deviceName.setText(deviceName);
             else
                 viewHolder.deviceName.setText(R.string.unknown_device);
-            viewHolder.deviceAddress.setText(device.getAddress());
+            viewHolder.deviceAddress.setText(entry.address);
 
             return view;
         }
     }
 
-    // Device scan callback.
-    private BluetoothAdapter.LeScanCallback mLeScanCallback =
-            new BluetoothAdapter.LeScanCallback() {
-
-        @Override
-        public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    mLeDeviceListAdapter.addDevice(device);
-                    mLeDeviceListAdapter.notifyDataSetChanged();
-                }
-            });
-        }
-    };
-
     static class ViewHolder {
         TextView deviceName;
         TextView deviceAddress;
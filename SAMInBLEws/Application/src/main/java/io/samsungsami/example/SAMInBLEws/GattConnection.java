@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.samsungsami.example.SAMInBLEws;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * State of one connected heart rate strap in {@link BluetoothLeService}: its GATT handle,
+ * the SAMI device its readings are sent as, its operation queue and its decoding buffers.
+ *
+ * It outlives link drops: the {@link BluetoothGatt} keeps the services it discovered, and
+ * the characteristics notifications were enabled on are remembered, so that after a
+ * reconnect notifications are enabled again without another service discovery. The time
+ * from a drop to the first reading after it is measured.
+ */
+public class GattConnection {
+
+    public static final int STATE_DISCONNECTED = 0;
+    public static final int STATE_CONNECTING = 1;
+    public static final int STATE_CONNECTED = 2;
+    public static final int STATE_READY = 3;
+
+    public final String address;
+    public final BluetoothGatt gatt;
+    public final GattOperationQueue operations;
+
+    // Reused for every notification; only touched on the GATT callback thread.
+    final HeartRateSample heartRateSample = new HeartRateSample();
+    final HrvWindow hrvWindow = new HrvWindow();
+
+    private volatile String mSdid;
+    private volatile int mState = STATE_CONNECTING;
+    // Set when the app disconnects; a drop with this unset is reconnected.
+    private volatile boolean mDisconnectRequested = false;
+    // Notifications were enabled again from the cached services and not confirmed yet.
+    private volatile boolean mResubscribing = false;
+
+    // Service and characteristic UUIDs of the characteristics notifying.
+    private final ArrayList<UUID[]> mSubscriptions = new ArrayList<UUID[]>();
+
+    // SystemClock.elapsedRealtime() of the last drop not followed by a reading yet, or 0.
+    private long mDroppedAt = 0;
+    private int mRecoveries = 0;
+    private long mLastRecoveryMs = 0;
+    private long mTotalRecoveryMs = 0;
+    private long mMaxRecoveryMs = 0;
+
+    /**
+     * @param handler handler used by the operation queue for timeouts and retries
+     */
+    public GattConnection(String address, BluetoothGatt gatt, String sdid, Handler handler) {
+        this.address = address;
+        this.gatt = gatt;
+        this.operations = new GattOperationQueue(gatt, handler);
+        mSdid = sdid;
+    }
+
+    /**
+     * SAMI device id that readings from this strap are sent as.
+     */
+    public String getSdid() {
+        return mSdid;
+    }
+
+    public void setSdid(String sdid) {
+        mSdid = sdid;
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    /**
+     * Moves to {@code state}. Dropping to {@link #STATE_DISCONNECTED} discards queued
+     * operations and the RR history, since intervals on either side of a gap are not
+     * successive beats.
+     */
+    void setState(int state) {
+        mState = state;
+        if (state == STATE_DISCONNECTED) {
+            operations.clear();
+            hrvWindow.reset();
+        }
+    }
+
+    public boolean isConnected() {
+        return mState == STATE_CONNECTED || mState == STATE_READY;
+    }
+
+    boolean isDisconnectRequested() {
+        return mDisconnectRequested;
+    }
+
+    void setDisconnectRequested(boolean requested) {
+        mDisconnectRequested = requested;
+    }
+
+    boolean isResubscribing() {
+        return mResubscribing;
+    }
+
+    void setResubscribing(boolean resubscribing) {
+        mResubscribing = resubscribing;
+    }
+
+    /**
+     * Remembers whether notifications are enabled on {@code characteristic}.
+     */
+    synchronized void setSubscribed(BluetoothGattCharacteristic characteristic,
+                                    boolean subscribed) {
+        final UUID service = characteristic.getService().getUuid();
+        final UUID uuid = characteristic.getUuid();
+        for (int i = 0; i < mSubscriptions.size(); i++) {
+            final UUID[] subscription = mSubscriptions.get(i);
+            if (subscription[0].equals(service) && subscription[1].equals(uuid)) {
+                if (!subscribed) {
+                    mSubscriptions.remove(i);
+                }
+                return;
+            }
+        }
+        if (subscribed) {
+            mSubscriptions.add(new UUID[] { service, uuid });
+        }
+    }
+
+    synchronized boolean hasSubscriptions() {
+        return !mSubscriptions.isEmpty();
+    }
+
+    /**
+     * The characteristics notifications were enabled on, looked up in the services the GATT
+     * handle currently knows. Returns null if any of them is missing, e.g. because services
+     * have not been discovered on this handle yet.
+     */
+    synchronized List<BluetoothGattCharacteristic> getSubscribedCharacteristics() {
+        final ArrayList<BluetoothGattCharacteristic> characteristics =
+                new ArrayList<BluetoothGattCharacteristic>(mSubscriptions.size());
+        for (int i = 0; i < mSubscriptions.size(); i++) {
+            final UUID[] subscription = mSubscriptions.get(i);
+            final BluetoothGattService service = gatt.getService(subscription[0]);
+            final BluetoothGattCharacteristic characteristic =
+                    service != null ? service.getCharacteristic(subscription[1]) : null;
+            if (characteristic == null) {
+                return null;
+            }
+            characteristics.add(characteristic);
+        }
+        return characteristics;
+    }
+
+    /**
+     * Starts the clock on a drop that is going to be reconnected.
+     */
+    synchronized void onDropped() {
+        if (mDroppedAt == 0) {
+            mDroppedAt = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Called for every reading. Returns the time since the drop it is the first reading
+     * after, or -1.
+     */
+    synchronized long onSample() {
+        if (mDroppedAt == 0) {
+            return -1;
+        }
+        final long recoveryMs = SystemClock.elapsedRealtime() - mDroppedAt;
+        mDroppedAt = 0;
+        mRecoveries++;
+        mLastRecoveryMs = recoveryMs;
+        mTotalRecoveryMs += recoveryMs;
+        mMaxRecoveryMs = Math.max(mMaxRecoveryMs, recoveryMs);
+        return recoveryMs;
+    }
+
+    /**
+     * Time from the last drop to the first reading after it, or 0 if there was none.
+     */
+    public synchronized long getLastRecoveryMs() {
+        return mLastRecoveryMs;
+    }
+
+    public synchronized String getRecoveryStats() {
+        return "recoveries=" + mRecoveries + " last=" + mLastRecoveryMs + "ms avg="
+                + (mRecoveries > 0 ? mTotalRecoveryMs / mRecoveries : 0) + "ms max="
+                + mMaxRecoveryMs + "ms";
+    }
+}
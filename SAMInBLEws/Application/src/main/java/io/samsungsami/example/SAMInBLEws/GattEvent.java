@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.samsungsami.example.SAMInBLEws;
+
+/**
+ * An event published by {@link BluetoothLeService} on the {@link GattEventBus}.
+ *
+ * Instances are slots of the bus's ring buffer or per-subscriber copies of them and are
+ * reused, so subscribers must copy out whatever they need before returning.
+ */
+public class GattEvent {
+    public static final int TYPE_CONNECTED = 1;
+    public static final int TYPE_DISCONNECTED = 2;
+    public static final int TYPE_SERVICES_DISCOVERED = 3;
+    public static final int TYPE_HEART_RATE = 4;
+
+    // Written by the publisher under the bus's sequence protocol, hence volatile.
+    volatile int type;
+    volatile String address;
+    volatile int heartRate;
+    volatile long ts;
+
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * Address of the BLE device the event is about.
+     */
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * Beats per minute; only meaningful for {@link #TYPE_HEART_RATE}.
+     */
+    public int getHeartRate() {
+        return heartRate;
+    }
+
+    public long getTimestamp() {
+        return ts;
+    }
+
+    void copyFrom(GattEvent other) {
+        type = other.type;
+        address = other.address;
+        heartRate = other.heartRate;
+        ts = other.ts;
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.samsungsami.example.SAMInBLEws;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-process publish/subscribe bus for GATT events, replacing system-wide Intent broadcasts
+ * between {@link BluetoothLeService} and the activities bound to it.
+ *
+ * Events are written into a fixed ring of preallocated {@link GattEvent} slots, so publishing
+ * allocates nothing and takes no lock. Each subscriber reads the ring at its own pace on its
+ * own dispatch thread, or on the main thread if it asks for it. A subscriber that falls more
+ * than a ring's length behind skips the events it missed rather than holding up the
+ * publisher.
+ */
+public class GattEventBus {
+    private static final String TAG = GattEventBus.class.getSimpleName();
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    public interface Subscriber {
+        /**
+         * Called on the subscriber's dispatch thread. {@code event} is reused after this
+         * returns.
+         */
+        public void onGattEvent(GattEvent event);
+    }
+
+    private static GattEventBus instance;
+
+    public static synchronized GattEventBus getInstance() {
+        if (instance == null) {
+            instance = new GattEventBus(DEFAULT_CAPACITY);
+        }
+        return instance;
+    }
+
+    private final GattEvent[] mSlots;
+    // Sequence number of the event held by each slot, or -1 while the slot is being written.
+    private final AtomicLongArray mPublished;
+    private final int mMask;
+    private final AtomicLong mCursor = new AtomicLong(0);
+    private final CopyOnWriteArrayList<Subscription> mSubscriptions =
+            new CopyOnWriteArrayList<Subscription>();
+    private int mThreadCount = 0;
+
+    public class Subscription {
+        private final Subscriber mSubscriber;
+        private final Handler mHandler;
+        private final HandlerThread mThread;
+        private final GattEvent mEvent = new GattEvent();
+        private final AtomicBoolean mDrainScheduled = new AtomicBoolean(false);
+        private volatile boolean mActive = true;
+        private long mNext;
+        private long mDropped = 0;
+
+        private final Runnable mDrain = new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+
+        Subscription(Subscriber subscriber, Looper looper, HandlerThread thread) {
+            mSubscriber = subscriber;
+            mHandler = new Handler(looper);
+            mThread = thread;
+            mNext = mCursor.get();
+        }
+
+        /**
+         * Number of events this subscriber missed because it fell too far behind.
+         */
+        public long getDroppedCount() {
+            return mDropped;
+        }
+
+        void wake() {
+            if (mDrainScheduled.compareAndSet(false, true)) {
+                mHandler.post(mDrain);
+            }
+        }
+
+        void cancel() {
+            mActive = false;
+            mHandler.removeCallbacks(mDrain);
+            if (mThread != null) {
+                mThread.quit();
+            }
+        }
+
+        private void drain() {
+            // Clear the flag first so an event published while draining schedules another pass.
+            mDrainScheduled.set(false);
+            while (mActive) {
+                final long next = mNext;
+                final int index = (int) (next & mMask);
+                final long published = mPublished.get(index);
+                if (published < next) {
+                    // Not written yet (or being written); its publisher will wake us.
+                    return;
+                }
+                if (published == next) {
+                    mEvent.copyFrom(mSlots[index]);
+                    if (mPublished.get(index) != next) {
+                        // Overwritten while we were copying; handle it as a lap below.
+                        continue;
+                    }
+                    mNext = next + 1;
+                    mSubscriber.onGattEvent(mEvent);
+                } else {
+                    final long oldest = Math.max(next + 1, mCursor.get() - mSlots.length);
+                    mDropped += oldest - next;
+                    mNext = oldest;
+                }
+            }
+        }
+    }
+
+    public GattEventBus(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two");
+        }
+        mSlots = new GattEvent[capacity];
+        mPublished = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            mSlots[i] = new GattEvent();
+            mPublished.set(i, -1);
+        }
+        mMask = capacity - 1;
+    }
+
+    /**
+     * Subscribes to events published from now on.
+     *
+     * @param onMainThread true to receive events on the main thread, false to get a dedicated
+     *                     dispatch thread
+     */
+    public Subscription subscribe(Subscriber subscriber, boolean onMainThread) {
+        final Subscription subscription;
+        if (onMainThread) {
+            subscription = new Subscription(subscriber, Looper.getMainLooper(), null);
+        } else {
+            final HandlerThread thread;
+            synchronized (this) {
+                thread = new HandlerThread(TAG + "-" + (mThreadCount++));
+            }
+            thread.start();
+            subscription = new Subscription(subscriber, thread.getLooper(), thread);
+        }
+        mSubscriptions.add(subscription);
+        return subscription;
+    }
+
+    public void unsubscribe(Subscription subscription) {
+        if (subscription == null) {
+            return;
+        }
+        mSubscriptions.remove(subscription);
+        subscription.cancel();
+        if (subscription.getDroppedCount() > 0) {
+            Log.w(TAG, "Subscriber dropped " + subscription.getDroppedCount() + " events");
+        }
+    }
+
+    public void publish(int type, String address) {
+        publish(type, address, 0, System.currentTimeMillis());
+    }
+
+    /**
+     * Publishes an event to every subscriber. Safe to call from any thread.
+     */
+    public void publish(int type, String address, int heartRate, long ts) {
+        final long sequence = mCursor.getAndIncrement();
+        final int index = (int) (sequence & mMask);
+        final GattEvent slot = mSlots[index];
+
+        mPublished.set(index, -1);
+        slot.type = type;
+        slot.address = address;
+        slot.heartRate = heartRate;
+        slot.ts = ts;
+        mPublished.set(index, sequence);
+
+        for (Subscription subscription : mSubscriptions) {
+            subscription.wake();
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.samsungsami.example.SAMInBLEws;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.LinkedList;
+
+/**
+ * Runs the GATT operations of one connection one at a time.
+ *
+ * Android only allows a single outstanding read or write per {@code BluetoothGatt}; a second
+ * request issued before the first one's callback fails silently. Operations are therefore
+ * queued here and the next one is started only when {@link #onOperationComplete} is called
+ * from the matching {@code BluetoothGattCallback} method. The next operation is issued right
+ * from that callback, so the link never idles waiting for another thread, and each
+ * connection has its own queue so devices do not wait on each other.
+ *
+ * An operation that gets no callback within its timeout is abandoned. One that the stack
+ * refuses to start, or that completes with {@link #GATT_BUSY}, is retried a few times after a
+ * short delay. Latency, failures, timeouts and retries are counted per operation type.
+ */
+public class GattOperationQueue {
+    private final static String TAG = GattOperationQueue.class.getSimpleName();
+
+    public static final int TYPE_READ = 0;
+    public static final int TYPE_WRITE = 1;
+    public static final int TYPE_WRITE_DESCRIPTOR = 2;
+    private static final int TYPE_COUNT = 3;
+
+    // Status reported by the Bluetooth stack when it is still handling another request.
+    // Not exposed as a constant by BluetoothGatt.
+    public static final int GATT_BUSY = 0x84;
+
+    public static final long DEFAULT_TIMEOUT_MS = 5000;
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    private static final long RETRY_DELAY_MS = 50;
+
+    public static abstract class Operation {
+        final int type;
+        // The characteristic or descriptor the operation acts on, used to match callbacks.
+        final Object target;
+        int retries = 0;
+        long startedAt;
+
+        Operation(int type, Object target) {
+            this.type = type;
+            this.target = target;
+        }
+
+        /**
+         * Starts the operation on {@code gatt}.
+         *
+         * @return false if the stack refused to start it
+         */
+        abstract boolean execute(BluetoothGatt gatt);
+    }
+
+    /**
+     * Counters for one operation type. Latencies are measured from the moment the operation
+     * is started on the stack to its callback.
+     */
+    public static class Stats {
+        public long completed;
+        public long failed;
+        public long timedOut;
+        public long retried;
+        public long totalLatencyMs;
+        public long maxLatencyMs;
+
+        public long averageLatencyMs() {
+            return completed == 0 ? 0 : totalLatencyMs / completed;
+        }
+
+        Stats copy() {
+            final Stats copy = new Stats();
+            copy.completed = completed;
+            copy.failed = failed;
+            copy.timedOut = timedOut;
+            copy.retried = retried;
+            copy.totalLatencyMs = totalLatencyMs;
+            copy.maxLatencyMs = maxLatencyMs;
+            return copy;
+        }
+
+        @Override
+        public String toString() {
+            return "completed=" + completed + " failed=" + failed + " timedOut=" + timedOut
+                    + " retried=" + retried + " avg=" + averageLatencyMs() + "ms max="
+                    + maxLatencyMs + "ms";
+        }
+    }
+
+    public static Operation read(final BluetoothGattCharacteristic characteristic) {
+        return new Operation(TYPE_READ, characteristic) {
+            @Override
+            boolean execute(BluetoothGatt gatt) {
+                return gatt.readCharacteristic(characteristic);
+            }
+        };
+    }
+
+    public static Operation write(final BluetoothGattCharacteristic characteristic,
+                                  final byte[] value) {
+        return new Operation(TYPE_WRITE, characteristic) {
+            @Override
+            boolean execute(BluetoothGatt gatt) {
+                characteristic.setValue(value);
+                return gatt.writeCharacteristic(characteristic);
+            }
+        };
+    }
+
+    public static Operation writeDescriptor(final BluetoothGattDescriptor descriptor,
+                                            final byte[] value) {
+        return new Operation(TYPE_WRITE_DESCRIPTOR, descriptor) {
+            @Override
+            boolean execute(BluetoothGatt gatt) {
+                descriptor.setValue(value);
+                return gatt.writeDescriptor(descriptor);
+            }
+        };
+    }
+
+    private final BluetoothGatt mGatt;
+    private final Handler mHandler;
+    private final long mTimeoutMs;
+    private final int mMaxRetries;
+
+    private final LinkedList<Operation> mPending = new LinkedList<Operation>();
+    private Operation mCurrent;
+    // Set while mRetry is posted; nothing is started until it runs, so the retried operation
+    // keeps its place and its backoff.
+    private boolean mRetryPending = false;
+    private final Stats[] mStats = new Stats[TYPE_COUNT];
+
+    private final Runnable mTimeout = new Runnable() {
+        @Override
+        public void run() {
+            onTimeout();
+        }
+    };
+
+    private final Runnable mRetry = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (GattOperationQueue.this) {
+                mRetryPending = false;
+                if (mCurrent == null) {
+                    startNext();
+                }
+            }
+        }
+    };
+
+    /**
+     * @param gatt connection the operations run on
+     * @param handler handler used for timeouts and retry delays
+     */
+    public GattOperationQueue(BluetoothGatt gatt, Handler handler, long timeoutMs, int maxRetries) {
+        mGatt = gatt;
+        mHandler = handler;
+        mTimeoutMs = timeoutMs;
+        mMaxRetries = maxRetries;
+        for (int i = 0; i < TYPE_COUNT; i++) {
+            mStats[i] = new Stats();
+        }
+    }
+
+    public GattOperationQueue(BluetoothGatt gatt, Handler handler) {
+        this(gatt, handler, DEFAULT_TIMEOUT_MS, DEFAULT_MAX_RETRIES);
+    }
+
+    public synchronized void enqueue(Operation operation) {
+        mPending.add(operation);
+        if (mCurrent == null && !mRetryPending) {
+            startNext();
+        }
+    }
+
+    /**
+     * Called from the {@code BluetoothGattCallback} when an operation on {@code target} has
+     * finished. Callbacks that do not belong to the running operation, e.g. one arriving
+     * after its timeout, are ignored.
+     */
+    public synchronized void onOperationComplete(Object target, int status) {
+        final Operation operation = mCurrent;
+        if (operation == null || operation.target != target) {
+            return;
+        }
+        mHandler.removeCallbacks(mTimeout);
+        mCurrent = null;
+
+        final Stats stats = mStats[operation.type];
+        if (status == GATT_BUSY && operation.retries < mMaxRetries) {
+            retryLater(operation);
+            return;
+        }
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            final long latency = SystemClock.elapsedRealtime() - operation.startedAt;
+            stats.completed++;
+            stats.totalLatencyMs += latency;
+            stats.maxLatencyMs = Math.max(stats.maxLatencyMs, latency);
+        } else {
+            stats.failed++;
+        }
+        startNext();
+    }
+
+    /**
+     * Drops every queued operation, e.g. when the link goes down.
+     */
+    public synchronized void clear() {
+        mHandler.removeCallbacks(mTimeout);
+        mHandler.removeCallbacks(mRetry);
+        mPending.clear();
+        mCurrent = null;
+        mRetryPending = false;
+    }
+
+    /**
+     * Returns a copy of the counters for one of the {@code TYPE_} constants.
+     */
+    public synchronized Stats getStats(int type) {
+        return mStats[type].copy();
+    }
+
+    private synchronized void onTimeout() {
+        final Operation operation = mCurrent;
+        if (operation == null) {
+            return;
+        }
+        Log.w(TAG, "GATT operation of type " + operation.type + " timed out after "
+                + mTimeoutMs + " ms");
+        mStats[operation.type].timedOut++;
+        mCurrent = null;
+        startNext();
+    }
+
+    private void startNext() {
+        while (!mPending.isEmpty()) {
+            final Operation operation = mPending.removeFirst();
+            operation.startedAt = SystemClock.elapsedRealtime();
+            if (operation.execute(mGatt)) {
+                mCurrent = operation;
+                mHandler.postDelayed(mTimeout, mTimeoutMs);
+                return;
+            }
+            if (operation.retries < mMaxRetries) {
+                // Most likely something else is using the stack; give it a moment.
+                retryLater(operation);
+                return;
+            }
+            Log.w(TAG, "GATT operation of type " + operation.type + " could not be started");
+            mStats[operation.type].failed++;
+        }
+    }
+
+    private void retryLater(Operation operation) {
+        operation.retries++;
+        mStats[operation.type].retried++;
+        mPending.addFirst(operation);
+        mRetryPending = true;
+        mHandler.postDelayed(mRetry, RETRY_DELAY_MS * operation.retries);
+    }
+}
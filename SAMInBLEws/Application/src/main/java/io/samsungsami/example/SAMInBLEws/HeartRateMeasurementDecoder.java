@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.samsungsami.example.SAMInBLEws;
+
+/**
+ * Parses the raw value of the Heart Rate Measurement characteristic in place, as per
+ * http://developer.bluetooth.org/gatt/characteristics/Pages/CharacteristicViewer.aspx?u=org.bluetooth.characteristic.heart_rate_measurement.xml
+ *
+ * The format of the rest of the payload is given by the flags in its first byte, not by the
+ * characteristic properties. Decoding allocates nothing unless a notification carries more
+ * RR intervals than the sample has ever held.
+ */
+public class HeartRateMeasurementDecoder {
+
+    public static final int FLAG_HEART_RATE_UINT16 = 0x01;
+    public static final int FLAG_SENSOR_CONTACT_DETECTED = 0x02;
+    public static final int FLAG_SENSOR_CONTACT_SUPPORTED = 0x04;
+    public static final int FLAG_ENERGY_EXPENDED_PRESENT = 0x08;
+    public static final int FLAG_RR_INTERVALS_PRESENT = 0x10;
+
+    private HeartRateMeasurementDecoder() {
+    }
+
+    /**
+     * Decodes {@code value} into {@code out}.
+     *
+     * @return false if the payload is too short for the fields its flags announce, in which
+     *         case {@code out} is left cleared
+     */
+    public static boolean decode(byte[] value, HeartRateSample out) {
+        out.clear();
+        if (value == null || value.length < 2) {
+            return false;
+        }
+
+        final int flags = value[0] & 0xff;
+        int offset = 1;
+
+        if ((flags & FLAG_HEART_RATE_UINT16) != 0) {
+            if (value.length < offset + 2) {
+                return false;
+            }
+            out.heartRate = uint16(value, offset);
+            offset += 2;
+        } else {
+            out.heartRate = value[offset] & 0xff;
+            offset += 1;
+        }
+
+        out.sensorContactSupported = (flags & FLAG_SENSOR_CONTACT_SUPPORTED) != 0;
+        out.sensorContactDetected = out.sensorContactSupported
+                && (flags & FLAG_SENSOR_CONTACT_DETECTED) != 0;
+
+        if ((flags & FLAG_ENERGY_EXPENDED_PRESENT) != 0) {
+            if (value.length < offset + 2) {
+                out.clear();
+                return false;
+            }
+            out.energyExpendedPresent = true;
+            out.energyExpended = uint16(value, offset);
+            offset += 2;
+        }
+
+        if ((flags & FLAG_RR_INTERVALS_PRESENT) != 0) {
+            final int count = (value.length - offset) / 2;
+            if (out.rrIntervals.length < count) {
+                out.rrIntervals = new int[count];
+            }
+            for (int i = 0; i < count; i++) {
+                out.rrIntervals[i] = uint16(value, offset);
+                offset += 2;
+            }
+            out.rrIntervalCount = count;
+        }
+        return true;
+    }
+
+    private static int uint16(byte[] value, int offset) {
+        return (value[offset] & 0xff) | ((value[offset + 1] & 0xff) << 8);
+    }
+}
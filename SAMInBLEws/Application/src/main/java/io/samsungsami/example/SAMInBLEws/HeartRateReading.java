@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.samsungsami.example.SAMInBLEws;
+
+/**
+ * A heart rate reading on its way from the GATT callback thread to the SAMI uplink.
+ * HRV metrics are {@code Float.NaN} when there were not enough RR intervals to compute them.
+ */
+public class HeartRateReading {
+    /** SAMI device the reading is sent as. */
+    public final String sdid;
+    public final int heartRate;
+    public final long ts;
+    public final float rmssd;
+    public final float sdnn;
+    public final float pnn50;
+
+    public HeartRateReading(String sdid, int heartRate, long ts,
+                            float rmssd, float sdnn, float pnn50) {
+        this.sdid = sdid;
+        this.heartRate = heartRate;
+        this.ts = ts;
+        this.rmssd = rmssd;
+        this.sdnn = sdnn;
+        this.pnn50 = pnn50;
+    }
+
+    public HeartRateReading(String sdid, int heartRate, long ts) {
+        this(sdid, heartRate, ts, Float.NaN, Float.NaN, Float.NaN);
+    }
+
+    public boolean hasHrv() {
+        return !Float.isNaN(rmssd);
+    }
+}
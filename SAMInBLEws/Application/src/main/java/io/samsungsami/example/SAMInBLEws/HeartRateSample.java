@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.samsungsami.example.SAMInBLEws;
+
+/**
+ * Every field of one Heart Rate Measurement (0x2A37) notification, as filled in by
+ * {@link HeartRateMeasurementDecoder}. Meant to be reused for every notification, so nothing
+ * here should be kept past the callback that received it.
+ */
+public class HeartRateSample {
+    /** RR intervals are reported in units of 1/1024 second. */
+    public static final int RR_INTERVAL_UNITS_PER_SECOND = 1024;
+
+    public int heartRate;
+    public boolean sensorContactSupported;
+    public boolean sensorContactDetected;
+    public boolean energyExpendedPresent;
+    /** Accumulated energy in kilojoules; only valid if {@link #energyExpendedPresent}. */
+    public int energyExpended;
+    /** RR intervals in 1/1024 s; only the first {@link #rrIntervalCount} entries are valid. */
+    public int[] rrIntervals = new int[16];
+    public int rrIntervalCount;
+
+    public void clear() {
+        heartRate = 0;
+        sensorContactSupported = false;
+        sensorContactDetected = false;
+        energyExpendedPresent = false;
+        energyExpended = 0;
+        rrIntervalCount = 0;
+    }
+
+    /**
+     * Returns the RR interval at {@code index} in milliseconds.
+     */
+    public double rrIntervalMs(int index) {
+        return rrIntervals[index] * 1000.0 / RR_INTERVAL_UNITS_PER_SECOND;
+    }
+}
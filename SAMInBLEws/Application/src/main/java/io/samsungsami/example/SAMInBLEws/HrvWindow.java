@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.samsungsami.example.SAMInBLEws;
+
+/**
+ * Rolling heart rate variability over the last {@code capacity} RR intervals.
+ *
+ * RMSSD, SDNN and pNN50 are kept up to date incrementally: adding an interval updates a few
+ * running sums and, once the window is full, takes the evicted interval back out of them, so
+ * every call costs the same no matter how large the window is. The sums are kept as exact
+ * integers in the native 1/1024 s units, so they never drift.
+ *
+ * Not thread safe; feed it from the GATT callback thread only.
+ */
+public class HrvWindow {
+
+    public static final int DEFAULT_CAPACITY = 64;
+    public static final int DEFAULT_MIN_INTERVALS = 16;
+
+    // Intervals outside 300..2000 ms (200..30 bpm) are artifacts, not beats.
+    private static final int MIN_RR = 300 * HeartRateSample.RR_INTERVAL_UNITS_PER_SECOND / 1000;
+    private static final int MAX_RR = 2000 * HeartRateSample.RR_INTERVAL_UNITS_PER_SECOND / 1000;
+
+    // |difference| > 50 ms, compared as |diff| * 1000 > 50 * 1024 to stay in integers.
+    private static final long NN50_THRESHOLD_SCALED = 50L * HeartRateSample.RR_INTERVAL_UNITS_PER_SECOND;
+
+    private final int[] mRing;
+    private final int mMinIntervals;
+    private int mHead = 0;   // index of the oldest interval
+    private int mCount = 0;
+
+    private long mSum = 0;
+    private long mSumOfSquares = 0;
+    private long mSumOfSquaredDiffs = 0;
+    private int mNn50 = 0;
+
+    /**
+     * @param capacity number of RR intervals in the window
+     * @param minIntervals intervals needed before {@link #isReady()} returns true
+     */
+    public HrvWindow(int capacity, int minIntervals) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("capacity must be at least 2");
+        }
+        mRing = new int[capacity];
+        mMinIntervals = Math.max(2, Math.min(minIntervals, capacity));
+    }
+
+    public HrvWindow() {
+        this(DEFAULT_CAPACITY, DEFAULT_MIN_INTERVALS);
+    }
+
+    /**
+     * Adds every RR interval carried by {@code sample}.
+     */
+    public void add(HeartRateSample sample) {
+        for (int i = 0; i < sample.rrIntervalCount; i++) {
+            add(sample.rrIntervals[i]);
+        }
+    }
+
+    /**
+     * Adds one RR interval in 1/1024 s. Physiologically impossible values are ignored.
+     */
+    public void add(int rr) {
+        if (rr < MIN_RR || rr > MAX_RR) {
+            return;
+        }
+        if (mCount == mRing.length) {
+            evictOldest();
+        }
+        if (mCount > 0) {
+            addDiff(rr - mRing[index(mCount - 1)]);
+        }
+        mRing[index(mCount)] = rr;
+        mCount++;
+        mSum += rr;
+        mSumOfSquares += (long) rr * rr;
+    }
+
+    public void reset() {
+        mHead = 0;
+        mCount = 0;
+        mSum = 0;
+        mSumOfSquares = 0;
+        mSumOfSquaredDiffs = 0;
+        mNn50 = 0;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * Returns true once the window holds enough intervals for the metrics to be meaningful.
+     */
+    public boolean isReady() {
+        return mCount >= mMinIntervals;
+    }
+
+    /**
+     * Root mean square of successive differences, in milliseconds.
+     */
+    public float rmssd() {
+        if (mCount < 2) {
+            return Float.NaN;
+        }
+        return (float) toMs(Math.sqrt((double) mSumOfSquaredDiffs / (mCount - 1)));
+    }
+
+    /**
+     * Sample standard deviation of the intervals, in milliseconds.
+     */
+    public float sdnn() {
+        if (mCount < 2) {
+            return Float.NaN;
+        }
+        final double n = mCount;
+        final double variance = (mSumOfSquares - (double) mSum * mSum / n) / (n - 1);
+        return (float) toMs(Math.sqrt(Math.max(0, variance)));
+    }
+
+    /**
+     * Percentage of successive differences larger than 50 ms.
+     */
+    public float pnn50() {
+        if (mCount < 2) {
+            return Float.NaN;
+        }
+        return 100f * mNn50 / (mCount - 1);
+    }
+
+    private void evictOldest() {
+        final int oldest = mRing[mHead];
+        removeDiff(mRing[index(1)] - oldest);
+        mSum -= oldest;
+        mSumOfSquares -= (long) oldest * oldest;
+        mHead = index(1);
+        mCount--;
+    }
+
+    private void addDiff(int diff) {
+        mSumOfSquaredDiffs += (long) diff * diff;
+        if (isNn50(diff)) {
+            mNn50++;
+        }
+    }
+
+    private void removeDiff(int diff) {
+        mSumOfSquaredDiffs -= (long) diff * diff;
+        if (isNn50(diff)) {
+            mNn50--;
+        }
+    }
+
+    private static boolean isNn50(int diff) {
+        return Math.abs(diff) * 1000L > NN50_THRESHOLD_SCALED;
+    }
+
+    private int index(int offset) {
+        return (mHead + offset) % mRing.length;
+    }
+
+    private static double toMs(double units) {
+        return units * 1000.0 / HeartRateSample.RR_INTERVAL_UNITS_PER_SECOND;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.samsungsami.example.SAMInBLEws;
+
+import java.util.ArrayList;
+
+/**
+ * Readings sent to SAMI that have not been acknowledged yet, keyed by the client message id
+ * ({@code cid}) they were sent with.
+ *
+ * Ids are handed out in sending order, so the window is a ring of preallocated entries and
+ * finding the entry of an ack is an index computation. Acks may arrive out of order; entries
+ * leave the window only from the oldest end, once they and everything before them are
+ * acknowledged, so journal records are released strictly in order.
+ *
+ * All methods must be called on the same thread.
+ */
+public class InFlightWindow {
+
+    public static class Entry {
+        public long cid;
+        public HeartRateReading reading;
+        // Journal position of the reading, or -1 if it was not journaled.
+        public long position;
+        public long firstSentAt;
+        public long sentAt;
+        public int attempts;
+        public boolean acked;
+    }
+
+    private final Entry[] mRing;
+    private int mHead = 0;
+    private int mSize = 0;
+    private long mHeadCid = 1;
+
+    public InFlightWindow(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        mRing = new Entry[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mRing[i] = new Entry();
+        }
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * True when no more messages may be sent until some are acknowledged.
+     */
+    public boolean isFull() {
+        return mSize == mRing.length;
+    }
+
+    /**
+     * Records a reading about to be sent and returns the entry holding its id. The window
+     * must not be full.
+     */
+    public Entry add(HeartRateReading reading, long position, long now) {
+        if (isFull()) {
+            throw new IllegalStateException("window is full");
+        }
+        final Entry entry = mRing[(mHead + mSize) % mRing.length];
+        entry.cid = mHeadCid + mSize;
+        entry.reading = reading;
+        entry.position = position;
+        entry.firstSentAt = now;
+        entry.sentAt = now;
+        entry.attempts = 1;
+        entry.acked = false;
+        mSize++;
+        return entry;
+    }
+
+    /**
+     * Id the next added message will get.
+     */
+    public long nextCid() {
+        return mHeadCid + mSize;
+    }
+
+    /**
+     * Marks the message with id {@code cid} acknowledged and returns its entry, or null if
+     * the id is not in the window, e.g. an ack that arrived after a retransmit was already
+     * acknowledged or from before {@link #clear()}.
+     */
+    public Entry acknowledge(long cid) {
+        final long offset = cid - mHeadCid;
+        if (offset < 0 || offset >= mSize) {
+            return null;
+        }
+        final Entry entry = mRing[(int) ((mHead + offset) % mRing.length)];
+        if (entry.acked) {
+            return null;
+        }
+        entry.acked = true;
+        return entry;
+    }
+
+    /**
+     * Removes the acknowledged entries at the oldest end of the window.
+     *
+     * @return the highest journal position among the removed entries, or -1 if none of them
+     *         was journaled
+     */
+    public long releaseAcked() {
+        long position = -1;
+        while (mSize > 0 && mRing[mHead].acked) {
+            final Entry entry = mRing[mHead];
+            if (entry.position >= 0) {
+                position = entry.position;
+            }
+            entry.reading = null;
+            mHead = (mHead + 1) % mRing.length;
+            mHeadCid++;
+            mSize--;
+        }
+        return position;
+    }
+
+    /**
+     * Adds to {@code out} every unacknowledged entry last sent {@code timeoutMs} or more
+     * before {@code now}, oldest first.
+     */
+    public void collectExpired(long now, long timeoutMs, ArrayList<Entry> out) {
+        for (int i = 0; i < mSize; i++) {
+            final Entry entry = mRing[(mHead + i) % mRing.length];
+            if (!entry.acked && now - entry.sentAt >= timeoutMs) {
+                out.add(entry);
+            }
+        }
+    }
+
+    /**
+     * Forgets every message. Ids keep increasing so late acks for them are ignored.
+     */
+    public void clear() {
+        for (int i = 0; i < mSize; i++) {
+            mRing[(mHead + i) % mRing.length].reading = null;
+        }
+        mHeadCid += mSize;
+        mHead = 0;
+        mSize = 0;
+    }
+}
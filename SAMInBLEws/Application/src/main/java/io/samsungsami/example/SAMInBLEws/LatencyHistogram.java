@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.samsungsami.example.SAMInBLEws;
+
+/**
+ * Histogram of latencies in milliseconds with power-of-two buckets: bucket 0 counts values
+ * below 1 ms and bucket {@code i} values in {@code [2^(i-1), 2^i)} ms. Percentiles are
+ * therefore reported as the upper bound of their bucket, which is within a factor of two.
+ *
+ * Not thread safe.
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 24;
+
+    private final long[] mCounts = new long[BUCKETS];
+    private long mCount = 0;
+    private long mTotalMs = 0;
+    private long mMaxMs = 0;
+
+    public void record(long latencyMs) {
+        if (latencyMs < 0) {
+            latencyMs = 0;
+        }
+        final int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(latencyMs));
+        mCounts[bucket]++;
+        mCount++;
+        mTotalMs += latencyMs;
+        if (latencyMs > mMaxMs) {
+            mMaxMs = latencyMs;
+        }
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    public long getMaxMs() {
+        return mMaxMs;
+    }
+
+    public long getMeanMs() {
+        return mCount == 0 ? 0 : mTotalMs / mCount;
+    }
+
+    /**
+     * Upper bound of the bucket holding the {@code percentile}-th value, 0 to 100.
+     */
+    public long getPercentileMs(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        final long rank = (long) Math.ceil(mCount * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts[i];
+            if (seen >= rank && seen > 0) {
+                return Math.min(mMaxMs, (1L << i) - 1);
+            }
+        }
+        return mMaxMs;
+    }
+
+    public void clear() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mCounts[i] = 0;
+        }
+        mCount = 0;
+        mTotalMs = 0;
+        mMaxMs = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "n=" + mCount + " mean=" + getMeanMs() + "ms p50<=" + getPercentileMs(50)
+                + "ms p90<=" + getPercentileMs(90) + "ms p99<=" + getPercentileMs(99)
+                + "ms max=" + mMaxMs + "ms";
+    }
+}
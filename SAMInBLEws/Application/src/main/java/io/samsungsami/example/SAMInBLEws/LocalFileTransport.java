@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.samsungsami.example.SAMInBLEws;
+
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.Arrays;
+
+/**
+ * Writes readings to a local file instead of sending them, one SAMI message per line, for
+ * deployments that collect data offline and upload or inspect it later.
+ *
+ * A reading counts as delivered once {@link #flush()} has written it out, which is only
+ * right when the file is where readings are meant to go; {@link SAMISession} listens to it
+ * differently when it merely keeps a copy while the network is down. The file is rolled
+ * over to {@code readings.json.1} when it reaches {@code maxBytes}, so at most twice that is
+ * kept.
+ */
+public class LocalFileTransport implements UplinkTransport {
+    private static final String TAG = LocalFileTransport.class.getSimpleName();
+
+    public static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+    private static final String FILE_NAME = "readings.json";
+
+    private final long mMaxBytes;
+    private Listener mListener;
+    private boolean mOpen = false;
+
+    private File mDir;
+    private File mFile;
+    private BufferedWriter mWriter;
+    private long mBytes;
+
+    private final SamiMessageEncoder mMessageEncoder = new SamiMessageEncoder(
+            SAMISession.HEART_RATE, SAMISession.RMSSD, SAMISession.SDNN, SAMISession.PNN50);
+    // Ids of the readings written since the last flush.
+    private long[] mPendingCids = new long[16];
+    private int mPendingCount = 0;
+
+    public LocalFileTransport(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    public LocalFileTransport() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    @Override
+    public String getName() {
+        return "file";
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Sets the directory the file is written to. The transport is not writable until then.
+     */
+    public void setDirectory(File dir) {
+        close();
+        mDir = dir;
+    }
+
+    @Override
+    public boolean isWritable() {
+        return mDir != null;
+    }
+
+    /**
+     * Reports the transport writable the first time it is opened after {@link #close()}.
+     */
+    @Override
+    public void open() {
+        if (!mOpen && isWritable()) {
+            mOpen = true;
+            mListener.onWritable(this);
+        }
+    }
+
+    @Override
+    public void reconnect() {
+        close();
+        open();
+    }
+
+    @Override
+    public void close() {
+        mOpen = false;
+        if (mWriter != null) {
+            try {
+                mWriter.close();
+            } catch (IOException e) {
+                Log.w(TAG, "close: " + e.getMessage());
+            }
+            mWriter = null;
+        }
+        mPendingCount = 0;
+    }
+
+    @Override
+    public void send(long cid, HeartRateReading reading) {
+        try {
+            ensureWriter();
+            final String line = mMessageEncoder.begin(reading.sdid, reading.ts)
+                    .put(SAMISession.FIELD_HEART_RATE, reading.heartRate)
+                    .put(SAMISession.FIELD_RMSSD, reading.rmssd)
+                    .put(SAMISession.FIELD_SDNN, reading.sdnn)
+                    .put(SAMISession.FIELD_PNN50, reading.pnn50)
+                    .end();
+            mWriter.write(line);
+            mWriter.write('\n');
+            mBytes += line.length() + 1;
+        } catch (IOException e) {
+            Log.e(TAG, "send: " + e.getMessage());
+            close();
+            mListener.onFailed(this, cid);
+            return;
+        }
+        if (mPendingCount == mPendingCids.length) {
+            mPendingCids = Arrays.copyOf(mPendingCids, mPendingCount * 2);
+        }
+        mPendingCids[mPendingCount++] = cid;
+    }
+
+    @Override
+    public void flush() {
+        if (mPendingCount == 0) {
+            return;
+        }
+        final int count = mPendingCount;
+        mPendingCount = 0;
+        boolean written = true;
+        try {
+            mWriter.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "flush: " + e.getMessage());
+            close();
+            written = false;
+        }
+        for (int i = 0; i < count; i++) {
+            if (written) {
+                mListener.onDelivered(this, mPendingCids[i], false);
+            } else {
+                mListener.onFailed(this, mPendingCids[i]);
+            }
+        }
+    }
+
+    private void ensureWriter() throws IOException {
+        if (mWriter != null && mBytes < mMaxBytes) {
+            return;
+        }
+        if (mWriter != null) {
+            // Whatever was written so far is complete; move it aside and start over.
+            mWriter.flush();
+            mWriter.close();
+            mWriter = null;
+            final File previous = new File(mDir, FILE_NAME + ".1");
+            if (previous.exists() && !previous.delete()) {
+                throw new IOException("unable to delete " + previous);
+            }
+            if (!mFile.renameTo(previous)) {
+                throw new IOException("unable to rename " + mFile);
+            }
+        }
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("unable to create " + mDir);
+        }
+        mFile = new File(mDir, FILE_NAME);
+        mBytes = mFile.length();
+        mWriter = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(mFile, true), "UTF-8"));
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.samsungsami.example.SAMInBLEws;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.Random;
+
+/**
+ * Decides when a dropped connection is attempted again.
+ *
+ * Failed attempts are retried after a capped exponential backoff with jitter. After
+ * {@code maxAttempts} consecutive failures the scheduler stops trying for a cool-down period,
+ * then allows a single probe attempt; a success resets everything, a failure starts another
+ * cool-down. Any number of reconnect requests made while an attempt is pending collapse into
+ * that one attempt.
+ *
+ * All methods must be called on the thread of the {@code Handler} given to the constructor,
+ * and the {@link Connector} and {@link Listener} are called on that thread too.
+ */
+public class ReconnectScheduler {
+    private static final String TAG = ReconnectScheduler.class.getSimpleName();
+
+    public static final long DEFAULT_BASE_DELAY_MS = 1000;
+    public static final long DEFAULT_MAX_DELAY_MS = 60 * 1000;
+    public static final int DEFAULT_MAX_ATTEMPTS = 8;
+    public static final long DEFAULT_COOL_DOWN_MS = 5 * 60 * 1000;
+
+    public enum State {
+        /** No connection is wanted. */
+        IDLE,
+        /** The connector is running. */
+        CONNECTING,
+        CONNECTED,
+        /** Waiting out the backoff before the next attempt. */
+        WAITING,
+        /** Too many consecutive failures; waiting out the cool-down before a probe attempt. */
+        COOLING_DOWN
+    }
+
+    public interface Connector {
+        /**
+         * Starts a connection attempt. Its outcome is reported back through
+         * {@link #onConnected()} or {@link #onConnectionLost()}.
+         */
+        public void connect();
+    }
+
+    public interface Listener {
+        /**
+         * @param state the new state
+         * @param failures consecutive failed attempts so far
+         * @param delayMs time until the next attempt when waiting or cooling down, else 0
+         */
+        public void onStateChanged(State state, int failures, long delayMs);
+    }
+
+    private final Handler mHandler;
+    private final Connector mConnector;
+    private final long mBaseDelayMs;
+    private final long mMaxDelayMs;
+    private final int mMaxAttempts;
+    private final long mCoolDownMs;
+    private final Random mRandom = new Random();
+
+    private Listener mListener;
+    private State mState = State.IDLE;
+    private int mFailures = 0;
+
+    private final Runnable mAttempt = new Runnable() {
+        @Override
+        public void run() {
+            attempt();
+        }
+    };
+
+    public ReconnectScheduler(Handler handler, Connector connector, long baseDelayMs,
+                              long maxDelayMs, int maxAttempts, long coolDownMs) {
+        mHandler = handler;
+        mConnector = connector;
+        mBaseDelayMs = baseDelayMs;
+        mMaxDelayMs = maxDelayMs;
+        mMaxAttempts = maxAttempts;
+        mCoolDownMs = coolDownMs;
+    }
+
+    public ReconnectScheduler(Handler handler, Connector connector) {
+        this(handler, connector, DEFAULT_BASE_DELAY_MS, DEFAULT_MAX_DELAY_MS,
+                DEFAULT_MAX_ATTEMPTS, DEFAULT_COOL_DOWN_MS);
+    }
+
+    /**
+     * Sets the listener, or clears it with null. A new listener is told the current state
+     * right away, so that it need not wait for a change that may never come.
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+        if (listener != null) {
+            listener.onStateChanged(mState, mFailures, 0);
+        }
+    }
+
+    public State getState() {
+        return mState;
+    }
+
+    /**
+     * Asks for a connection. Connects right away when idle; otherwise the request is folded
+     * into the attempt that is already running or scheduled.
+     */
+    public void requestConnect() {
+        if (mState == State.IDLE) {
+            attempt();
+        }
+    }
+
+    /**
+     * Reports that the connection is up; clears the failure count.
+     */
+    public void onConnected() {
+        mHandler.removeCallbacks(mAttempt);
+        mFailures = 0;
+        setState(State.CONNECTED, 0);
+    }
+
+    /**
+     * Reports that an attempt failed or an open connection dropped, and schedules the next
+     * attempt. Repeated reports for the same failure (e.g. onError followed by onClose) are
+     * ignored.
+     */
+    public void onConnectionLost() {
+        if (mState != State.CONNECTING && mState != State.CONNECTED) {
+            return;
+        }
+        if (mState == State.CONNECTING) {
+            mFailures++;
+        }
+
+        if (mFailures >= mMaxAttempts) {
+            Log.w(TAG, mFailures + " consecutive failures, cooling down for " + mCoolDownMs + " ms");
+            // Stay one short of the limit so that a failed probe goes straight back here.
+            mFailures = mMaxAttempts - 1;
+            schedule(State.COOLING_DOWN, mCoolDownMs);
+        } else {
+            schedule(State.WAITING, backoffDelay(mFailures));
+        }
+    }
+
+    /**
+     * Cancels any scheduled attempt and stops reacting to connection loss until the next
+     * {@link #requestConnect()}.
+     */
+    public void stop() {
+        mHandler.removeCallbacks(mAttempt);
+        mFailures = 0;
+        setState(State.IDLE, 0);
+    }
+
+    private void attempt() {
+        setState(State.CONNECTING, 0);
+        mConnector.connect();
+    }
+
+    private void schedule(State state, long delayMs) {
+        mHandler.removeCallbacks(mAttempt);
+        mHandler.postDelayed(mAttempt, delayMs);
+        setState(state, delayMs);
+    }
+
+    /**
+     * Returns a delay drawn from the upper half of {@code min(max, base * 2^failures)}, so
+     * devices that dropped together do not all come back at the same instant.
+     */
+    private long backoffDelay(int failures) {
+        final long ceiling = Math.min(mMaxDelayMs, mBaseDelayMs << Math.min(failures, 30));
+        final long half = ceiling / 2;
+        return half + (long) (mRandom.nextDouble() * (ceiling - half));
+    }
+
+    private void setState(State state, long delayMs) {
+        mState = state;
+        if (mListener != null) {
+            mListener.onStateChanged(state, mFailures, delayMs);
+        }
+    }
+}
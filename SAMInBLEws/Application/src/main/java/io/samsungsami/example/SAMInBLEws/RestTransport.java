@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.samsungsami.example.SAMInBLEws;
+
+import android.os.Handler;
+import android.util.Log;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends readings to SAMI with {@code POST /messages}, the REST call behind
+ * {@code MessagesApi.postMessage()}.
+ *
+ * Readings are grouped, up to {@code groupSize} per group, and every group is posted by one
+ * of {@code parallelism} worker threads, one message after the other over a kept-alive
+ * connection of the shared {@link SamiHttpClient} pool. A backlog is therefore drained by
+ * several requests at once without opening a connection per message.
+ */
+public class RestTransport implements UplinkTransport {
+    private static final String TAG = RestTransport.class.getSimpleName();
+
+    public static final int DEFAULT_PARALLELISM = 4;
+    public static final int DEFAULT_GROUP_SIZE = 8;
+
+    private static final int RESULT_DELIVERED = 0;
+    private static final int RESULT_REJECTED = 1;
+    private static final int RESULT_FAILED = 2;
+
+    private final Handler mHandler;
+    private final SAMISession mSession;
+    private final int mGroupSize;
+    private final ThreadPoolExecutor mExecutor;
+    private final SamiHttpClient mClient = SamiHttpClient.getInstance();
+    private Listener mListener;
+    private boolean mOpen = false;
+
+    // Only used on the I/O thread.
+    private final SamiMessageEncoder mMessageEncoder = new SamiMessageEncoder(
+            SAMISession.HEART_RATE, SAMISession.RMSSD, SAMISession.SDNN, SAMISession.PNN50);
+    private long[] mGroupCids;
+    private String[] mGroupBodies;
+    private int mGroupCount = 0;
+
+    /**
+     * @param handler handler of the session's I/O thread
+     */
+    public RestTransport(Handler handler, SAMISession session, int parallelism, int groupSize) {
+        if (parallelism < 1 || groupSize < 1) {
+            throw new IllegalArgumentException("parallelism and groupSize must be at least 1");
+        }
+        mHandler = handler;
+        mSession = session;
+        mGroupSize = groupSize;
+        mGroupCids = new long[groupSize];
+        mGroupBodies = new String[groupSize];
+
+        mExecutor = new ThreadPoolExecutor(parallelism, parallelism, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public RestTransport(Handler handler, SAMISession session) {
+        this(handler, session, DEFAULT_PARALLELISM, DEFAULT_GROUP_SIZE);
+    }
+
+    @Override
+    public String getName() {
+        return "rest";
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Writable whenever there is an access token to post with.
+     */
+    @Override
+    public boolean isWritable() {
+        return mSession.getAccessToken() != null;
+    }
+
+    /**
+     * Reports the transport writable the first time it is opened after {@link #close()}.
+     */
+    @Override
+    public void open() {
+        if (!mOpen && isWritable()) {
+            mOpen = true;
+            mListener.onWritable(this);
+        }
+    }
+
+    /**
+     * Every request stands on its own, so there is nothing to reconnect.
+     */
+    @Override
+    public void reconnect() {
+    }
+
+    @Override
+    public void close() {
+        mOpen = false;
+        mGroupCount = 0;
+    }
+
+    @Override
+    public void send(long cid, HeartRateReading reading) {
+        mGroupCids[mGroupCount] = cid;
+        // The encoder leaves out NaN metrics, i.e. readings taken before the window warmed up.
+        mGroupBodies[mGroupCount] = mMessageEncoder.begin(reading.sdid, reading.ts)
+                .put(SAMISession.FIELD_HEART_RATE, reading.heartRate)
+                .put(SAMISession.FIELD_RMSSD, reading.rmssd)
+                .put(SAMISession.FIELD_SDNN, reading.sdnn)
+                .put(SAMISession.FIELD_PNN50, reading.pnn50)
+                .end();
+        mGroupCount++;
+        if (mGroupCount == mGroupSize) {
+            flush();
+        }
+    }
+
+    @Override
+    public void flush() {
+        if (mGroupCount == 0) {
+            return;
+        }
+        final long[] cids = mGroupCids;
+        final String[] bodies = mGroupBodies;
+        final int count = mGroupCount;
+        mGroupCids = new long[mGroupSize];
+        mGroupBodies = new String[mGroupSize];
+        mGroupCount = 0;
+
+        final String authorization = "bearer " + mSession.getAccessToken();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final int[] results = new int[count];
+                for (int i = 0; i < count; i++) {
+                    results[i] = post(bodies[i], authorization);
+                }
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < count; i++) {
+                            if (results[i] == RESULT_FAILED) {
+                                mListener.onFailed(RestTransport.this, cids[i]);
+                            } else {
+                                mListener.onDelivered(RestTransport.this, cids[i],
+                                        results[i] == RESULT_REJECTED);
+                            }
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Posts one message on a worker thread.
+     */
+    private int post(String body, String authorization) {
+        final HttpPost request = new HttpPost(SAMISession.SAMI_REST_URL + "/messages");
+        request.setHeader("Authorization", authorization);
+        request.setHeader("Content-Type", "application/json");
+        try {
+            request.setEntity(new StringEntity(body, "UTF-8"));
+            final HttpResponse response = mClient.execute(request);
+            final int status = response.getStatusLine().getStatusCode();
+            // Read the body to the end so the connection goes back to the pool.
+            final HttpEntity entity = response.getEntity();
+            if (entity != null) {
+                entity.consumeContent();
+            }
+            if (status >= 200 && status < 300) {
+                return RESULT_DELIVERED;
+            }
+            Log.w(TAG, "post: HTTP " + status);
+            // A malformed or unauthorized-for-this-device message stays that way; throttling,
+            // an expired token or a server error may not.
+            if (status >= 400 && status < 500 && status != 401 && status != 408
+                    && status != 429) {
+                return RESULT_REJECTED;
+            }
+            return RESULT_FAILED;
+        } catch (IOException e) {
+            Log.w(TAG, "post: " + e.getMessage());
+            request.abort();
+            return RESULT_FAILED;
+        }
+    }
+}
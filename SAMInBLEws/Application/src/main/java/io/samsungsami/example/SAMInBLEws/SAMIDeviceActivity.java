@@ -32,27 +32,54 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.util.EntityUtils;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import io.samsungsami.model.Device;
-import io.samsungsami.model.DeviceArray;
-import io.samsungsami.model.DevicesEnvelope;
 import io.samsungsami.model.User;
 import io.samsungsami.model.UserEnvelope;
 
 public class SAMIDeviceActivity extends ListActivity {
     private static final String TAG = "SAMIDeviceActivity";
 
+    private static final String CACHE_USER = "user";
+    private static final String CACHE_DEVICES = "devices-";
+    // A cached device list younger than this is shown without asking SAMI again; an older one
+    // is shown too, but refreshed in the background. The cached user is always revalidated,
+    // since the token may belong to another account.
+    private static final long DEVICES_TTL_MS = 5 * 60 * 1000;
+
+    private static final String STEP_CACHE = "cache";
+    private static final String STEP_USER = "user";
+    private static final String STEP_DEVICES = "devices";
+    private static final String STEP_PREWARM = "prewarm";
+
     private TextView mWelcome;
     private TextView mInstruction;
     private Button mNewDeviceButton;
     private SAMIDeviceListAdapter mDeviceListAdapter;
     private SAMIDeviceManager mDeviceManager;
+    private SamiResponseCache mCache;
+    private StartupOrchestrator mStartup;
+    private CachedState mCachedState = new CachedState();
+    // Versions of the user and of the device list in mCache, so that refreshes bringing the
+    // same responses are not stored again.
+    private long mUserVersion = SamiResponseCache.NO_VERSION;
+    private long mDevicesVersion = SamiResponseCache.NO_VERSION;
+    // Completion of the startup step waiting for the device list, if any.
+    private StartupOrchestrator.Completion mDeviceListDone;
+    private SamiPager<SAMIDeviceWrapper> mDevicePager;
+    // Devices loaded so far by mDevicePager.
+    private final ArrayList<SAMIDeviceWrapper> mLoadedDevices = new ArrayList<SAMIDeviceWrapper>();
 
 
     @Override
@@ -82,9 +109,102 @@ public class SAMIDeviceActivity extends ListActivity {
         setListAdapter(mDeviceListAdapter);
 
         mDeviceManager = new SAMIDeviceManager();
+        mCache = new SamiResponseCache(new File(getCacheDir(), "sami"));
+        SamiHttpClient.init(this);
 
-        SAMISession.getInstance().setupSamiRestApis();
-        new GetUserInfoInBackground().execute();
+        startup();
+    }
+
+    /**
+     * Runs the startup steps, each as soon as what it needs is there. The REST APIs were set
+     * up by SAMILoginActivity; the user and the device list are fetched through SamiHttpClient.
+     * <pre>
+     * cache    cached user and devices, shown at once
+     * user     users/self, also when a user was cached          needs cache
+     * devices  device list, unless the cached one is fresh      needs cache, and user if no
+     *                                                           user was cached
+     * prewarm  websocket connection, so the TLS handshake is over before a device is picked
+     * </pre>
+     */
+    private void startup() {
+        mStartup = new StartupOrchestrator();
+        mStartup.addStep(STEP_CACHE, new StartupOrchestrator.Step() {
+            @Override
+            public void run(StartupOrchestrator.Completion done) {
+                new LoadCacheInBackground(done).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+            }
+        });
+        mStartup.addStep(STEP_USER, new StartupOrchestrator.Step() {
+            @Override
+            public void run(StartupOrchestrator.Completion done) {
+                new GetUserInfoInBackground(done).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+            }
+        }, STEP_CACHE);
+        mStartup.addStep(STEP_DEVICES, new StartupOrchestrator.Step() {
+            @Override
+            public void run(StartupOrchestrator.Completion done) {
+                if (mCachedState.devices != null && mCachedState.devicesFresh) {
+                    done.succeeded();
+                    return;
+                }
+                loadDeviceList(done);
+            }
+        }, STEP_CACHE);
+        mStartup.addStep(STEP_PREWARM, new StartupOrchestrator.Step() {
+            @Override
+            public void run(final StartupOrchestrator.Completion done) {
+                prewarmWebsocket(done);
+            }
+        });
+        mStartup.setListener(new StartupOrchestrator.Listener() {
+            @Override
+            public void onFinished(StartupOrchestrator orchestrator) {
+                SamiHttpClient.getInstance().logStats();
+            }
+        });
+        mStartup.start();
+    }
+
+    /**
+     * Opens the uplink before a device is picked. The websocket registers no device until
+     * the first reading of one is sent, so nothing has to wait for the pick.
+     */
+    private void prewarmWebsocket(final StartupOrchestrator.Completion done) {
+        final SAMISession session = SAMISession.getInstance();
+        session.setReconnectListener(new ReconnectScheduler.Listener() {
+            private boolean mReported = false;
+
+            @Override
+            public void onStateChanged(ReconnectScheduler.State state, int failures, long delayMs) {
+                if (mReported || state == ReconnectScheduler.State.CONNECTING
+                        || state == ReconnectScheduler.State.IDLE) {
+                    return;
+                }
+                // The scheduler keeps trying on its own after a failure.
+                mReported = true;
+                session.setReconnectListener(null);
+                final boolean connected = state == ReconnectScheduler.State.CONNECTED;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (connected) {
+                            done.succeeded();
+                        } else {
+                            done.failed();
+                        }
+                    }
+                });
+            }
+        });
+        session.setupWebsocket();
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (mDevicePager != null) {
+            mDevicePager.cancel();
+        }
+        super.onDestroy();
     }
 
     @Override
@@ -98,6 +218,8 @@ public class SAMIDeviceActivity extends ListActivity {
     public boolean onOptionsItemSelected(MenuItem item) {
         switch(item.getItemId()) {
             case R.id.menu_logout_sami:
+                // Readings must not go out as a user who logged out.
+                BluetoothLeService.stopStreaming(this, null);
                 new LogoutSAMIInBackground().execute();
                 return true;
         }
@@ -124,25 +246,26 @@ public class SAMIDeviceActivity extends ListActivity {
 
     private void onDeviceCreationSucceed(Device newDevice) {
         mDeviceManager.updateDevices(newDevice); // single device
+        storeDevices(mDeviceManager.getDevices());
         SAMISession.getInstance().setDeviceId(newDevice.getId());
         Toast.makeText (this, "SAMI device " +newDevice.getId() +"creation succeeded!", Toast.LENGTH_SHORT).show();
         startBLEScanActivity();
     }
 
     private void refreshDeviceList() {
-        ArrayList<SAMIDeviceWrapper> appDevices = mDeviceManager.getDevicesByType(SAMISession.DEVICE_TYPE_ID_HEART_RATE_TRACKER);
+        List<SAMIDeviceWrapper> appDevices = mDeviceManager.getDevicesByType(SAMISession.DEVICE_TYPE_ID_HEART_RATE_TRACKER);
+        if (appDevices.size() == 0 && mDevicePager != null && mDevicePager.isLoading()) {
+            // A compatible device may still be in a page to come.
+            return;
+        }
         if (appDevices.size() == 0) {
             mNewDeviceButton.setVisibility(View.VISIBLE);
             mInstruction.setText("You do not have a compatible device on SAMI. Please create one");
-            mDeviceListAdapter.clear();
         } else {
             mInstruction.setText("Please select a device on the list to use");
             mNewDeviceButton.setVisibility(View.GONE);
-            for (SAMIDeviceWrapper device : appDevices) {
-                mDeviceListAdapter.addDevice(device);
-            }
         }
-        mDeviceListAdapter.notifyDataSetChanged();
+        mDeviceListAdapter.setDevices(appDevices);
     }
 
     private void startBLEScanActivity() {
@@ -153,7 +276,11 @@ public class SAMIDeviceActivity extends ListActivity {
     }
 
     private void startLoginActivity() {
-        SAMISession.getInstance().reset();
+        SAMISession.getInstance().logout();
+        // The next user must not see this one's profile and devices.
+        mCache.clear();
+        mUserVersion = SamiResponseCache.NO_VERSION;
+        mDevicesVersion = SamiResponseCache.NO_VERSION;
         Intent activityIntent = new Intent(this, SAMILoginActivity.class);
         activityIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TASK);
         startActivity(activityIntent);
@@ -164,21 +291,200 @@ public class SAMIDeviceActivity extends ListActivity {
         if (user == null) {
             return;
         }
+        final String previousId = SAMISession.getInstance().getUserId();
+        final boolean sameUser = user.getId().equals(previousId);
+        showUser(user);
+        // Without a cached user the devices step waits for this one and does the first load;
+        // with the same user the list shown is fresh or being refreshed already.
+        if (previousId != null && !sameUser) {
+            // Logged in as another account: what was cached, and what the devices step may
+            // be loading, belongs to the previous one.
+            Log.i(TAG, "::onGetUserInfo user changed, dropping cached responses");
+            mCache.clear();
+            mUserVersion = SamiResponseCache.NO_VERSION;
+            mDevicesVersion = SamiResponseCache.NO_VERSION;
+            mDeviceManager.clearCache();
+            refreshDeviceList();
+            loadDeviceList(null);
+        }
+    }
+
+    private void showUser(User user) {
         mWelcome.setText("Welcome " + user.getFullName());
         SAMISession.getInstance().setUserId(user.getId());
-        new GetDeviceListInBackground().execute();
+    }
+
+    private void storeDevices(List<SAMIDeviceWrapper> devices) {
+        final String key = CACHE_DEVICES + SAMISession.getInstance().getUserId();
+        try {
+            final byte[] body = SAMIDeviceManager.writeDevices(devices);
+            final long version = SamiResponseCache.version(body);
+            if (version == mDevicesVersion) {
+                // Same list as cached: it is only fresh again.
+                mCache.touch(key);
+                return;
+            }
+            mCache.put(key, body);
+            mDevicesVersion = version;
+        } catch (IOException e) {
+            Log.w(TAG, "::storeDevices " + e.getMessage());
+        }
+    }
+
+    /**
+     * @param done completed once the list is loaded, or null. A load cancelled by this one
+     *            hands its own over.
+     */
+    private void loadDeviceList(StartupOrchestrator.Completion done) {
+        if (mDevicePager != null) {
+            mDevicePager.cancel();
+        }
+        if (done != null) {
+            mDeviceListDone = done;
+        }
+        mLoadedDevices.clear();
+        final SAMISession session = SAMISession.getInstance();
+        mDevicePager = new SamiPager<SAMIDeviceWrapper>(
+                new UserDevicesPageSource(session.getUserId(), session.getAccessToken()),
+                new SamiPager.Listener<SAMIDeviceWrapper>() {
+                    @Override
+                    public void onPage(int offset, List<SAMIDeviceWrapper> items, int total) {
+                        Log.v(TAG, "::loadDeviceList " + (offset + items.size()) + "/" + total);
+                        mLoadedDevices.addAll(items);
+                        if (mDeviceManager.mergeDevices(items)) {
+                            refreshDeviceList();
+                        }
+                    }
+
+                    @Override
+                    public void onComplete(boolean succeeded, int total) {
+                        boolean changed = false;
+                        if (succeeded) {
+                            // Drops the devices deleted since the last load.
+                            changed = mDeviceManager.updateDevices(mLoadedDevices);
+                            storeDevices(mLoadedDevices);
+                        } else {
+                            Log.w(TAG, "::loadDeviceList failed after " + mLoadedDevices.size() + " devices");
+                        }
+                        mLoadedDevices.clear();
+                        // Without a compatible device the list held back the create button
+                        // while loading, so it has to be shown now even if nothing changed.
+                        if (changed || !succeeded || mDeviceManager.getDevicesByType(
+                                SAMISession.DEVICE_TYPE_ID_HEART_RATE_TRACKER).isEmpty()) {
+                            refreshDeviceList();
+                        }
+                        if (mDeviceListDone != null) {
+                            final StartupOrchestrator.Completion done = mDeviceListDone;
+                            mDeviceListDone = null;
+                            if (succeeded) {
+                                done.succeeded();
+                            } else {
+                                done.failed();
+                            }
+                        }
+                    }
+                });
+        mDevicePager.start();
+    }
+
+    // What LoadCacheInBackground found in the cache.
+    static class CachedState {
+        User user;
+        ArrayList<SAMIDeviceWrapper> devices;
+        boolean devicesFresh;
+        long userVersion = SamiResponseCache.NO_VERSION;
+        long devicesVersion = SamiResponseCache.NO_VERSION;
+    }
+
+    class LoadCacheInBackground extends AsyncTask<Void, Void, CachedState> {
+        final static String TAG = "LoadCacheInBackground";
+        private final StartupOrchestrator.Completion mDone;
+
+        LoadCacheInBackground(StartupOrchestrator.Completion done) {
+            mDone = done;
+        }
+
+        @Override
+        protected CachedState doInBackground(Void... params) {
+            CachedState state = new CachedState();
+            try {
+                SamiResponseCache.Entry userEntry = mCache.get(CACHE_USER);
+                if (userEntry == null) {
+                    return state;
+                }
+                state.user = SAMIDeviceManager.MAPPER.readValue(userEntry.body, User.class);
+                state.userVersion = userEntry.version;
+                // Only the entries of this user are read.
+                SamiResponseCache.Entry devicesEntry = mCache.get(CACHE_DEVICES + state.user.getId());
+                if (devicesEntry != null) {
+                    ArrayList<SAMIDeviceWrapper> devices = new ArrayList<SAMIDeviceWrapper>();
+                    SAMIDeviceManager.parseDevices(new ByteArrayInputStream(devicesEntry.body), devices);
+                    state.devices = devices;
+                    state.devicesFresh = devicesEntry.isFresh(DEVICES_TTL_MS);
+                    state.devicesVersion = devicesEntry.version;
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "::doInBackground " + e.getMessage());
+                if (state.user == null) {
+                    return new CachedState();
+                }
+            }
+            return state;
+        }
+
+        @Override
+        protected void onPostExecute(CachedState state) {
+            mCachedState = state;
+            mUserVersion = state.userVersion;
+            mDevicesVersion = state.devicesVersion;
+            if (state.user != null) {
+                showUser(state.user);
+            }
+            if (state.devices != null) {
+                mDeviceManager.updateDevices(state.devices);
+                refreshDeviceList();
+            }
+            // With a cached user id the device list needs not wait for the user.
+            if (state.user == null) {
+                mStartup.addDependency(STEP_DEVICES, STEP_USER);
+            }
+            mDone.succeeded();
+        }
     }
 
     class GetUserInfoInBackground extends AsyncTask<Void, Void, UserEnvelope> {
         final static String TAG = "GetUserInfoInBackground";
+        private final StartupOrchestrator.Completion mDone;
+        // The user as cached, stored once onGetUserInfo() has dropped another user's entries.
+        private byte[] mUserBytes;
+
+        GetUserInfoInBackground(StartupOrchestrator.Completion done) {
+            mDone = done;
+        }
+
         @Override
         protected UserEnvelope doInBackground(Void... params) {
             UserEnvelope retVal = null;
+            // Same call as UsersApi.self(), made through the shared connection pool.
+            HttpGet request = SamiHttpClient.authorize(new HttpGet(SAMISession.SAMI_REST_URL + "/users/self"),
+                    SAMISession.getInstance().getAccessToken());
             try {
-                retVal= SAMISession.getInstance().getUsersApi().self();
+                HttpResponse response = SamiHttpClient.getInstance().execute(request);
+                HttpEntity entity = response.getEntity();
+                int status = response.getStatusLine().getStatusCode();
+                if (status != 200) {
+                    if (entity != null) {
+                        entity.consumeContent();
+                    }
+                    throw new IOException("HTTP " + status);
+                }
+                retVal = SAMIDeviceManager.MAPPER.readValue(EntityUtils.toByteArray(entity), UserEnvelope.class);
+                mUserBytes = SAMIDeviceManager.MAPPER.writeValueAsBytes(retVal.getData());
             } catch (Exception e) {
                 Log.v(TAG, "::doInBackground run into Exception");
                 e.printStackTrace();
+                request.abort();
+                retVal = null;
             }
 
             return retVal;
@@ -186,8 +492,19 @@ public class SAMIDeviceActivity extends ListActivity {
 
         @Override
         protected void onPostExecute(UserEnvelope result) {
+            if (result == null) {
+                // Whatever was cached stays on screen.
+                mDone.failed();
+                return;
+            }
             Log.v(TAG, "::setupSamiApi self name = " + result.getData().getFullName());
             onGetUserInfo(result.getData());
+            final long version = SamiResponseCache.version(mUserBytes);
+            if (version != mUserVersion) {
+                mCache.put(CACHE_USER, mUserBytes);
+                mUserVersion = version;
+            }
+            mDone.succeeded();
         }
     }
 
@@ -217,49 +534,28 @@ public class SAMIDeviceActivity extends ListActivity {
         }
     }
 
-    class GetDeviceListInBackground extends AsyncTask<Void, Void, DeviceArray> {
-        final static String TAG = "GetDeviceListInBackground";
-        @Override
-        protected DeviceArray doInBackground(Void... params) {
-            DeviceArray deviceArray = null;
-            try {
-                DevicesEnvelope devicesEnvelope = SAMISession.getInstance().getUsersApi().getUserDevices(0, 100, false, SAMISession.getInstance().getUserId());
-                deviceArray = devicesEnvelope.getData();
-
-            } catch (Exception e) {
-                Log.v(TAG, "::doInBackground run into Exception");
-                e.printStackTrace();
-            }
-
-            return deviceArray;
-        }
-
-        @Override
-        protected void onPostExecute(DeviceArray devices) {
-            mDeviceManager.updateDevices(devices);
-            refreshDeviceList();
-        }
-    }
-
     class LogoutSAMIInBackground extends AsyncTask<Void, Void, String> {
         final static String TAG = "LogoutSAMIInBackground";
         @Override
         protected String doInBackground(Void... params) {
             SAMISession.getInstance().disconnectWebSocket();
-            HttpClient httpclient = new DefaultHttpClient();
             String responseString = null;
             HttpGet request = new HttpGet(SAMISession.getInstance().getLogoutRequestUri());
             Log.d(TAG, "logoutRequestUri: " + SAMISession.getInstance().getLogoutRequestUri());
 
             try {
-                HttpResponse response = httpclient.execute(request);
+                HttpResponse response = SamiHttpClient.getInstance().execute(request);
                 int code = response.getStatusLine().getStatusCode();
+                if (response.getEntity() != null) {
+                    response.getEntity().consumeContent();
+                }
                 StringBuilder sbuilder = new StringBuilder("response code:");
                 sbuilder.append(code);
                 responseString = sbuilder.toString();
             } catch (Exception e) {
                 Log.v(TAG, "::doInBackground run into Exception");
                 e.printStackTrace();
+                request.abort();
             }
 
             return responseString;
@@ -273,30 +569,30 @@ public class SAMIDeviceActivity extends ListActivity {
     }
 
     // Adapter for holding SAMI devices, which device type is compatible with this app.
+    // It shows a registry snapshot, which is immutable and already free of duplicates.
     private class SAMIDeviceListAdapter extends BaseAdapter {
-        private ArrayList<SAMIDeviceWrapper> mSAMIDevices;
+        private List<SAMIDeviceWrapper> mSAMIDevices;
         private LayoutInflater mInflator;
 
         public SAMIDeviceListAdapter() {
             super();
-            mSAMIDevices = new ArrayList<SAMIDeviceWrapper>();
+            mSAMIDevices = Collections.emptyList();
             mInflator = SAMIDeviceActivity.this.getLayoutInflater();
         }
 
-        public void addDevice(SAMIDeviceWrapper device) {
-            if(!mSAMIDevices.contains(device)) {
-                mSAMIDevices.add(device);
+        public void setDevices(List<SAMIDeviceWrapper> devices) {
+            // Snapshots are only rebuilt when the registry changes.
+            if (devices == mSAMIDevices) {
+                return;
             }
+            mSAMIDevices = devices;
+            notifyDataSetChanged();
         }
 
         public SAMIDeviceWrapper getDevice(int position) {
             return mSAMIDevices.get(position);
         }
 
-        public void clear() {
-            mSAMIDevices.clear();
-        }
-
         @Override
         public int getCount() {
             return mSAMIDevices.size();
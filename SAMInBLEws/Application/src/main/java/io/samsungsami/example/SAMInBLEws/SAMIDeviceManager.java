@@ -18,23 +18,36 @@ package io.samsungsami.example.SAMInBLEws;
 
 import io.samsungsami.model.DeviceArray;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.List;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerationException;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
-import android.util.Log;
-
 public class SAMIDeviceManager {
-	public ArrayList<SAMIDeviceWrapper> userDevices = new ArrayList<SAMIDeviceWrapper>();
+	private final SAMIDeviceRegistry mRegistry = new SAMIDeviceRegistry();
 	private static final String TAG = SAMIDeviceManager.class.getName();
 	
+	// Both are thread safe once configured, and expensive to create, so they are shared.
+	static final JsonFactory JSON_FACTORY = new JsonFactory();
+	static final ObjectMapper MAPPER = new ObjectMapper(JSON_FACTORY);
+	
+	static {
+		// SAMI adds fields over time; the SDK models only know some of them.
+		MAPPER.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+	}
+	
 	public SAMIDeviceManager(){
 		clearCache();
 	}
@@ -43,37 +56,135 @@ public class SAMIDeviceManager {
 	 * Clear the cache of devices in memory
 	 */
 	public void clearCache(){
-		userDevices.clear();
+		mRegistry.clear();
 	}
 	
 	/**
 	 * Loads a new set of devices
-	 * @param result result from the SAMI users devices API call
+	 * @param result body of the SAMI users devices API response
+	 * @return the total number of devices reported by the response, or -1
+	 * @throws IOException
+	 */
+	public int updateDevices(InputStream result) throws IOException {
+		final ArrayList<SAMIDeviceWrapper> devices = new ArrayList<SAMIDeviceWrapper>();
+		final int total = parseDevices(result, devices);
+		updateDevices(devices);
+		return total;
+	}
+	
+	/**
+	 * Loads a new set of devices. Only the difference with the current set is applied, so
+	 * snapshots of device types that did not change stay valid.
+	 * @param devices devices parsed by parseDevices()
+	 * @return true if the set of devices changed
+	 */
+	public boolean updateDevices(List<SAMIDeviceWrapper> devices){
+		return mRegistry.replaceAll(devices);
+	}
+	
+	/**
+	 * Adds or updates devices without removing any, e.g. one page of a device list
+	 * @param devices
+	 * @return true if the set of devices changed
+	 */
+	public boolean mergeDevices(List<SAMIDeviceWrapper> devices){
+		return mRegistry.putAll(devices);
+	}
+	
+	/**
+	 * Reads the devices of a SAMI users devices API response,
+	 * {"data":{"devices":[...]},"total":..,"offset":..,"count":..}, token by token, so that
+	 * no tree of the whole response is ever built. Only id, dtid and name of each device are
+	 * kept; every other value is skipped over. Safe to call from any thread.
+	 * @param in response body; closed when done
+	 * @param out receives the devices in the order of the response
+	 * @return the total number of devices reported by the response, or -1
+	 * @throws IOException
+	 */
+	public static int parseDevices(InputStream in, List<SAMIDeviceWrapper> out) throws IOException {
+		final JsonParser parser = JSON_FACTORY.createJsonParser(in);
+		try {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new JsonParseException("Expected a JSON object", parser.getCurrentLocation());
+			}
+			int total = -1;
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				final String field = parser.getCurrentName();
+				final JsonToken value = parser.nextToken();
+				if (value == JsonToken.START_OBJECT && "data".equals(field)) {
+					parseData(parser, out);
+				} else if (value == JsonToken.VALUE_NUMBER_INT && "total".equals(field)) {
+					total = parser.getIntValue();
+				} else {
+					parser.skipChildren();
+				}
+			}
+			return total;
+		} finally {
+			parser.close();
+		}
+	}
+	
+	/**
+	 * Writes devices the way the SAMI users devices API returns them, so that parseDevices()
+	 * reads them back, e.g. from a cache
+	 * @param devices
+	 * @return UTF-8 JSON
+	 * @throws IOException
 	 */
-	public void updateDevices(JSONObject result){
-		JSONArray jsonData = null;
-    	try {
-    		jsonData = result.getJSONObject("data").getJSONArray("devices");
+	public static byte[] writeDevices(List<SAMIDeviceWrapper> devices) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(64 + devices.size() * 128);
+		final JsonGenerator generator = JSON_FACTORY.createJsonGenerator(out, JsonEncoding.UTF8);
+		generator.writeStartObject();
+		generator.writeObjectFieldStart("data");
+		generator.writeArrayFieldStart("devices");
+		for (SAMIDeviceWrapper device : devices) {
+			generator.writeStartObject();
+			generator.writeStringField("id", device.id);
+			generator.writeStringField("dtid", device.deviceTypeId);
+			generator.writeStringField("name", device.name);
+			generator.writeEndObject();
 		}
-    	catch (Exception e) {
-			Log.d(TAG, "Error parsing result to get devices.");
+		generator.writeEndArray();
+		generator.writeEndObject();
+		generator.writeNumberField("total", devices.size());
+		generator.writeEndObject();
+		generator.close();
+		return out.toByteArray();
+	}
+	
+	private static void parseData(JsonParser parser, List<SAMIDeviceWrapper> out) throws IOException {
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			final String field = parser.getCurrentName();
+			if (parser.nextToken() == JsonToken.START_ARRAY && "devices".equals(field)) {
+				while (parser.nextToken() == JsonToken.START_OBJECT) {
+					out.add(parseDevice(parser));
+				}
+			} else {
+				parser.skipChildren();
+			}
 		}
-		clearCache();
-		
-		if (jsonData != null){	
-			for(int i=0; i<jsonData.length(); i++){ 
-				JSONObject device;
-				try {
-					device = (JSONObject) jsonData.getJSONObject(i);
-					userDevices.add(new SAMIDeviceWrapper(
-							device.getString("dtid"), 
-							device.getString("id"), 
-							device.getString("name")));
-				} catch (JSONException e) {
-					e.printStackTrace();
+	}
+	
+	private static SAMIDeviceWrapper parseDevice(JsonParser parser) throws IOException {
+		String dtid = null;
+		String id = null;
+		String name = null;
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			final String field = parser.getCurrentName();
+			if (parser.nextToken() == JsonToken.VALUE_STRING) {
+				if ("id".equals(field)) {
+					id = parser.getText();
+				} else if ("dtid".equals(field)) {
+					dtid = parser.getText();
+				} else if ("name".equals(field)) {
+					name = parser.getText();
 				}
+			} else {
+				parser.skipChildren();
 			}
 		}
+		return new SAMIDeviceWrapper(dtid, id, name);
 	}
 	
 	/**
@@ -82,32 +193,30 @@ public class SAMIDeviceManager {
 	 * @param storeIt
 	 */
 	public void updateDevices(DeviceArray deviceArray){
-		clearCache();
+		ArrayList<SAMIDeviceWrapper> devices = new ArrayList<SAMIDeviceWrapper>();
 		if(deviceArray != null){
 			for (io.samsungsami.model.Device device : deviceArray.getDevices()){
-				userDevices.add(new SAMIDeviceWrapper(device.getDtid(), device.getId(), device.getName()));
+				devices.add(new SAMIDeviceWrapper(device.getDtid(), device.getId(), device.getName()));
 			}
 		}
+		updateDevices(devices);
 	}
 
     /**
-     * Loads a single user's devices
+     * Adds or updates a single user's device, e.g. one just created
      * @param device
-     * @param storeIt
      */
     public void updateDevices(io.samsungsami.model.Device device){
-        clearCache();
-        userDevices.add(new SAMIDeviceWrapper(device.getDtid(), device.getId(), device.getName()));
+        mRegistry.put(new SAMIDeviceWrapper(device.getDtid(), device.getId(), device.getName()));
     }
 	/**
 	 * Returns a JSON string from a credentials object
 	 * @return
 	 */
 	public static String toJson(io.samsungsami.model.Device device){
-		ObjectMapper mapper = new ObjectMapper();
 		String json = null;
 		try {
-			json = mapper.writeValueAsString(device);
+			json = MAPPER.writeValueAsString(device);
 		} catch (JsonGenerationException ex) {
 			ex.printStackTrace();
 		} catch (JsonMappingException ex) {
@@ -123,22 +232,34 @@ public class SAMIDeviceManager {
 	 * @return
 	 */
 	public boolean hasDevices(){
-		return userDevices.size() > 0;
+		return !mRegistry.isEmpty();
 	}
 	
 	/**
-	 * Returns a list of devices from the current devices stack
+	 * Returns the device with the given id, or null
+	 * @param id
+	 * @return
+	 */
+	public SAMIDeviceWrapper getDevice(String id){
+		return mRegistry.get(id);
+	}
+	
+	/**
+	 * Returns an immutable snapshot of every device in the current devices stack
+	 * @return
+	 */
+	public List<SAMIDeviceWrapper> getDevices(){
+		return mRegistry.getDevices();
+	}
+	
+	/**
+	 * Returns an immutable snapshot of the devices of a type from the current devices stack.
+	 * The same instance is returned until devices of that type change.
 	 * @param dtid device type to filter
 	 * @return
 	 */
-	public ArrayList<SAMIDeviceWrapper> getDevicesByType(String dtid){
-		ArrayList<SAMIDeviceWrapper> result = new ArrayList<SAMIDeviceWrapper>();
-		for(SAMIDeviceWrapper device : userDevices){
-			if(device.deviceTypeId.equalsIgnoreCase(dtid)){
-				result.add(device);
-			}
-		}
-		return result;
+	public List<SAMIDeviceWrapper> getDevicesByType(String dtid){
+		return mRegistry.getDevicesByType(dtid);
 	}
 	
 	/**
@@ -146,10 +267,11 @@ public class SAMIDeviceManager {
 	 * @return
 	 */
 	public CharSequence[] getCharSequenceEntries(){
-		CharSequence[] entries = new CharSequence[userDevices.size()+1];
+		List<SAMIDeviceWrapper> devices = mRegistry.getDevices();
+		CharSequence[] entries = new CharSequence[devices.size()+1];
 		entries[0] = "";
-    	for(int i=0;i<userDevices.size();i++){
-    		entries[i+1] = userDevices.get(i).name;
+    	for(int i=0;i<devices.size();i++){
+    		entries[i+1] = devices.get(i).name;
     	}
     	return entries;
 	}
@@ -159,10 +281,11 @@ public class SAMIDeviceManager {
 	 * @return
 	 */
 	public CharSequence[] getCharSequenceEntriesValues(){
-		CharSequence[] entries = new CharSequence[userDevices.size()+1];
+		List<SAMIDeviceWrapper> devices = mRegistry.getDevices();
+		CharSequence[] entries = new CharSequence[devices.size()+1];
 		entries[0] = "";
-		for(int i=0;i<userDevices.size();i++){
-    		entries[i+1] = userDevices.get(i).id;
+		for(int i=0;i<devices.size();i++){
+    		entries[i+1] = devices.get(i).id;
     	}
     	return entries;
 	}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.samsungsami.example.SAMInBLEws;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The SAMI devices of a user, indexed by device id and by device type id.
+ *
+ * Devices are kept in the order they were first added. Adding, replacing, removing and
+ * looking up a device by id are hash operations; device type ids are compared without regard
+ * to case, like SAMI does.
+ *
+ * The lists returned by {@link #getDevices()} and {@link #getDevicesByType(String)} are
+ * immutable snapshots: they are built at most once per change and can be handed to the UI
+ * and kept there while the registry is updated from another thread. A snapshot that is the
+ * same instance as the previous one means nothing changed.
+ */
+public class SAMIDeviceRegistry {
+    private static final String TAG = SAMIDeviceRegistry.class.getSimpleName();
+
+    private static final List<SAMIDeviceWrapper> EMPTY = Collections.emptyList();
+
+    private final LinkedHashMap<String, SAMIDeviceWrapper> mById =
+            new LinkedHashMap<String, SAMIDeviceWrapper>();
+    // Normalized device type id to the devices of that type, by id.
+    private final HashMap<String, LinkedHashMap<String, SAMIDeviceWrapper>> mByType =
+            new HashMap<String, LinkedHashMap<String, SAMIDeviceWrapper>>();
+
+    // Snapshots built since the last change; dropped by every change.
+    private List<SAMIDeviceWrapper> mSnapshot;
+    private final HashMap<String, List<SAMIDeviceWrapper>> mTypeSnapshots =
+            new HashMap<String, List<SAMIDeviceWrapper>>();
+
+    public synchronized int size() {
+        return mById.size();
+    }
+
+    public synchronized boolean isEmpty() {
+        return mById.isEmpty();
+    }
+
+    public synchronized SAMIDeviceWrapper get(String id) {
+        return mById.get(id);
+    }
+
+    public synchronized boolean contains(String id) {
+        return mById.containsKey(id);
+    }
+
+    /**
+     * Adds a device, or replaces the one with the same id. A device without an id, e.g. from
+     * a malformed response, is left out so that the rest of a list still loads.
+     *
+     * @return true if the registry changed
+     */
+    public synchronized boolean put(SAMIDeviceWrapper device) {
+        if (device.id == null) {
+            Log.w(TAG, "put: skipping device without id: " + device);
+            return false;
+        }
+        final SAMIDeviceWrapper previous = mById.get(device.id);
+        if (device.equals(previous)) {
+            return false;
+        }
+        if (previous != null) {
+            unindexType(previous);
+        }
+        // Replacing keeps the device at its place in the order.
+        mById.put(device.id, device);
+        indexType(device);
+        invalidate();
+        return true;
+    }
+
+    /**
+     * @return true if the registry changed
+     */
+    public synchronized boolean putAll(Collection<SAMIDeviceWrapper> devices) {
+        boolean changed = false;
+        for (SAMIDeviceWrapper device : devices) {
+            changed |= put(device);
+        }
+        return changed;
+    }
+
+    /**
+     * Removes the device with id {@code id}, if any.
+     *
+     * @return the removed device, or null
+     */
+    public synchronized SAMIDeviceWrapper remove(String id) {
+        final SAMIDeviceWrapper device = mById.remove(id);
+        if (device != null) {
+            unindexType(device);
+            invalidate();
+        }
+        return device;
+    }
+
+    /**
+     * Makes the registry hold exactly {@code devices}: devices missing from it are removed,
+     * new ones added and changed ones replaced. Devices that did not change keep their
+     * place, and when nothing changed the snapshots stay the same instances.
+     *
+     * @return true if the registry changed
+     */
+    public synchronized boolean replaceAll(Collection<SAMIDeviceWrapper> devices) {
+        final HashMap<String, SAMIDeviceWrapper> incoming =
+                new HashMap<String, SAMIDeviceWrapper>(devices.size() * 2);
+        for (SAMIDeviceWrapper device : devices) {
+            incoming.put(device.id, device);
+        }
+        boolean changed = false;
+        final Iterator<SAMIDeviceWrapper> it = mById.values().iterator();
+        while (it.hasNext()) {
+            final SAMIDeviceWrapper device = it.next();
+            if (!incoming.containsKey(device.id)) {
+                it.remove();
+                unindexType(device);
+                changed = true;
+            }
+        }
+        if (changed) {
+            invalidate();
+        }
+        return putAll(devices) || changed;
+    }
+
+    public synchronized void clear() {
+        if (mById.isEmpty()) {
+            return;
+        }
+        mById.clear();
+        mByType.clear();
+        invalidate();
+    }
+
+    /**
+     * Returns an immutable snapshot of every device.
+     */
+    public synchronized List<SAMIDeviceWrapper> getDevices() {
+        if (mSnapshot == null) {
+            mSnapshot = snapshot(mById.values());
+        }
+        return mSnapshot;
+    }
+
+    /**
+     * Returns an immutable snapshot of the devices of type {@code dtid}, case insensitively.
+     */
+    public synchronized List<SAMIDeviceWrapper> getDevicesByType(String dtid) {
+        final String type = normalize(dtid);
+        List<SAMIDeviceWrapper> snapshot = mTypeSnapshots.get(type);
+        if (snapshot == null) {
+            final LinkedHashMap<String, SAMIDeviceWrapper> devices = mByType.get(type);
+            snapshot = devices != null ? snapshot(devices.values()) : EMPTY;
+            mTypeSnapshots.put(type, snapshot);
+        }
+        return snapshot;
+    }
+
+    private void indexType(SAMIDeviceWrapper device) {
+        final String type = normalize(device.deviceTypeId);
+        LinkedHashMap<String, SAMIDeviceWrapper> devices = mByType.get(type);
+        if (devices == null) {
+            devices = new LinkedHashMap<String, SAMIDeviceWrapper>();
+            mByType.put(type, devices);
+        }
+        devices.put(device.id, device);
+    }
+
+    private void unindexType(SAMIDeviceWrapper device) {
+        final String type = normalize(device.deviceTypeId);
+        final LinkedHashMap<String, SAMIDeviceWrapper> devices = mByType.get(type);
+        if (devices != null) {
+            devices.remove(device.id);
+            if (devices.isEmpty()) {
+                mByType.remove(type);
+            }
+        }
+    }
+
+    private void invalidate() {
+        mSnapshot = null;
+        mTypeSnapshots.clear();
+    }
+
+    private static List<SAMIDeviceWrapper> snapshot(Collection<SAMIDeviceWrapper> devices) {
+        return devices.isEmpty() ? EMPTY
+                : Collections.unmodifiableList(new ArrayList<SAMIDeviceWrapper>(devices));
+    }
+
+    private static String normalize(String dtid) {
+        return dtid != null ? dtid.toLowerCase(Locale.US) : "";
+    }
+}
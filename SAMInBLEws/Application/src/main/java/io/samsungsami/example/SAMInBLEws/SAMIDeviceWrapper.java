@@ -36,6 +36,26 @@ public class SAMIDeviceWrapper {
 		return name+" ("+id+")";
 	}
 	
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof SAMIDeviceWrapper)) {
+			return false;
+		}
+		SAMIDeviceWrapper other = (SAMIDeviceWrapper) o;
+		return equal(id, other.id) && equal(deviceTypeId, other.deviceTypeId) && equal(name, other.name);
+	}
+	
+	@Override
+	public int hashCode() {
+		// Devices are looked up by id; the other fields only tell versions of a device apart.
+		return id != null ? id.hashCode() : 0;
+	}
 	
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
 	
 }
@@ -37,6 +37,8 @@ public class SAMILoginActivity extends Activity {
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		setContentView(R.layout.activity_login);
+		// Created early so its TLS session cache is ready for the first SAMI call.
+		SamiHttpClient.init(this);
 		mWebView = (WebView)findViewById(R.id.webview);
 		mWebView.setVisibility(View.GONE);
 		mLoginView = (View)findViewById(R.id.ask_for_login);
@@ -16,13 +16,17 @@
 
 package io.samsungsami.example.SAMInBLEws;
 
-import android.os.Looper;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
-import org.java_websocket.handshake.ServerHandshake;
-import org.json.JSONException;
-import org.json.JSONObject;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import io.samsungsami.api.DevicesApi;
 import io.samsungsami.api.MessagesApi;
@@ -36,15 +40,23 @@ public class SAMISession {
     public static final String REDIRECT_URL = "android-app://redirect";
     public static final String SAMI_REST_URL = "https://api.samsungsami.io/v1.1";
     public static final String SAMI_WEBSOCKET_URL = "wss://api.samsungsami.io/v1.1/websocket?ack=true";
+    // Websocket URL of a relay of ours taking compact frames, e.g. "wss://relay.example.com/uplink";
+    // null to send readings straight to SAMI. See setRelayUrl().
+    public static final String SAMI_RELAY_URL = null;
 
     private static final String AUTHORIZATION = "Authorization";
 
-    // For websocket message
-    private static final String DATA = "data";
-    private static final String TYPE = "type";
-    private static final String SOURCE_DEVICE = "sdid";
-    private static final String TIME_STAMP = "ts";
-    private static final String HEART_RATE = "heart_rate";
+    // Data field names of the heart rate tracker device type, shared by the transports.
+    static final String HEART_RATE = "heart_rate";
+    static final String RMSSD = "rmssd";
+    static final String SDNN = "sdnn";
+    static final String PNN50 = "pnn50";
+
+    // Field indices of the transports' SamiMessageEncoders.
+    static final int FIELD_HEART_RATE = 0;
+    static final int FIELD_RMSSD = 1;
+    static final int FIELD_SDNN = 2;
+    static final int FIELD_PNN50 = 3;
 
 
     // SAMI device type id used by this app
@@ -60,21 +72,159 @@ public class SAMISession {
     //
     public static final String DEVICE_TYPE_ID_HEART_RATE_TRACKER = "dtaeaf898b4db9418baab77563b7ea2254";
 
+    // Uplink batching defaults. A batch size of 1 sends one websocket frame per reading.
+    public static final int DEFAULT_UPLINK_BATCH_SIZE = 8;
+    public static final long DEFAULT_UPLINK_MAX_LATENCY_MS = 2000;
+
+    // Uplink transports, see setUplinkTransports().
+    public static final int TRANSPORT_WEBSOCKET = 0;
+    public static final int TRANSPORT_REST = 1;
+    public static final int TRANSPORT_FILE = 2;
+    private static final String[] TRANSPORT_NAMES = {"websocket", "rest", "file"};
+
+    // Messages that may await SAMI's ack at once; past that the journal is left unread.
+    public static final int MAX_IN_FLIGHT = 32;
+    // A message is sent again when its ack has not come back within this time.
+    private static final long ACK_TIMEOUT_MS = 10000;
+    // After this many retransmits of one message the connection is considered dead.
+    private static final int MAX_RETRANSMITS = 3;
+    // Ack latencies are logged every this many acks.
+    private static final int ACK_STATS_INTERVAL = 100;
+
     private static SAMISession instance;
 
     private UsersApi mUsersApi = null;
     private DevicesApi mDevicesApi = null;
     private MessagesApi mMessagesApi = null;
 
-    private String mAccessToken = null;
-    private String mUserId = null;
-    private String mDeviceId = null;
+    // Read from the I/O thread, written from the UI thread.
+    private volatile String mAccessToken = null;
+    private volatile String mUserId = null;
+    private volatile String mDeviceId = null;
+
+    // Single thread that owns the transports, so the UI thread never blocks on the network.
+    private final HandlerThread mIoThread;
+    private final Handler mHandler;
+
+    // Lock-free handoff from the GATT callback thread to the I/O thread.
+    private final ConcurrentLinkedQueue<HeartRateReading> mPendingReadings =
+            new ConcurrentLinkedQueue<HeartRateReading>();
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean(false);
+
+    private final Runnable mDrainPendingReadings = new Runnable() {
+        @Override
+        public void run() {
+            // Clear the flag before polling so a reading offered during the drain either gets
+            // picked up here or schedules another drain.
+            mDrainScheduled.set(false);
+            HeartRateReading reading;
+            boolean exported = false;
+            while ((reading = mPendingReadings.poll()) != null) {
+                if (mExportWhileOffline && !mTransport.isWritable()) {
+                    mFileTransport.send(0, uplinkReading(reading));
+                    exported = true;
+                }
+                if (mUplinkBatcher != null) {
+                    mUplinkBatcher.add(reading);
+                } else if (mJournal != null) {
+                    appendToJournal(reading);
+                    pumpJournal();
+                } else {
+                    sendDirect(reading);
+                    mTransport.flush();
+                }
+            }
+            if (exported) {
+                mFileTransport.flush();
+            }
+        }
+    };
+
+    // null when every reading is sent in its own frame
+    private UplinkBatcher mUplinkBatcher;
+
+    // Store-and-forward queue; null until openJournal() succeeds, in which case readings are
+    // sent directly and dropped while the transport is down.
+    private UplinkJournal mJournal;
+    private final UplinkJournal.Record mJournalRecord = new UplinkJournal.Record();
+
+    private volatile boolean mHrvUplinkEnabled = true;
+
+    // The transports, and the router that picks the one readings go through. I/O thread only.
+    private final WebsocketTransport mWebsocketTransport;
+    private final RestTransport mRestTransport;
+    private final LocalFileTransport mFileTransport;
+    private final TransportRouter mTransport;
+    // Set when the file comes after network transports: while none of them can send, readings
+    // are copied to the file as they arrive. The copy delivers nothing; readings stay in the
+    // journal until SAMI acknowledges them. I/O thread only.
+    private boolean mExportWhileOffline = false;
+
+    // Listens to the file transport while it is an export rather than a route.
+    private final UplinkTransport.Listener mExportListener = new UplinkTransport.Listener() {
+        @Override
+        public void onWritable(UplinkTransport transport) {
+        }
 
-    private Websocket mWebsocket;
+        @Override
+        public void onDelivered(UplinkTransport transport, long cid, boolean rejected) {
+        }
 
-    private Handler mHandler;
+        @Override
+        public void onFailed(UplinkTransport transport, long cid) {
+            Log.w(TAG, "Unable to export reading to " + transport.getName());
+        }
+    };
+
+    private final UplinkTransport.Listener mTransportListener = new UplinkTransport.Listener() {
+        @Override
+        public void onWritable(UplinkTransport transport) {
+            // Unacknowledged journal records are replayed below; the rest is lost.
+            mInFlight.clear();
+            if (mJournal != null) {
+                mJournal.rewind();
+                pumpJournal();
+            }
+        }
 
-    public static SAMISession getInstance() {
+        @Override
+        public void onDelivered(UplinkTransport transport, long cid, boolean rejected) {
+            onAck(cid, rejected);
+        }
+
+        @Override
+        public void onFailed(UplinkTransport transport, long cid) {
+            mSendFailures++;
+        }
+    };
+
+    // Readings sent and not acknowledged yet. I/O thread only.
+    private final InFlightWindow mInFlight = new InFlightWindow(MAX_IN_FLIGHT);
+    private final ArrayList<InFlightWindow.Entry> mExpired = new ArrayList<InFlightWindow.Entry>();
+    private final LatencyHistogram mAckLatency = new LatencyHistogram();
+    private long mRetransmits = 0;
+    private long mSendFailures = 0;
+    private boolean mAckCheckScheduled = false;
+
+    private final Runnable mCheckAckTimeouts = new Runnable() {
+        @Override
+        public void run() {
+            mAckCheckScheduled = false;
+            checkAckTimeouts();
+        }
+    };
+
+    private boolean mPumpScheduled = false;
+
+    private final Runnable mPumpJournal = new Runnable() {
+        @Override
+        public void run() {
+            mPumpScheduled = false;
+            pumpJournal();
+        }
+    };
+
+    public static synchronized SAMISession getInstance() {
         if (instance == null) {
             instance = new SAMISession();
         }
@@ -82,10 +232,19 @@ public class SAMISession {
     }
 
     private SAMISession() {
-        if (Looper.myLooper() != Looper.getMainLooper()) {
-            Log.e(TAG, "Constructor is not called in UI thread ");
+        mIoThread = new HandlerThread("SAMIWebsocketIO", Process.THREAD_PRIORITY_BACKGROUND);
+        mIoThread.start();
+        mHandler = new Handler(mIoThread.getLooper());
+        mWebsocketTransport = new WebsocketTransport(mHandler, this);
+        mRestTransport = new RestTransport(mHandler, this);
+        mFileTransport = new LocalFileTransport();
+        mTransport = new TransportRouter(mHandler);
+        mTransport.setListener(mTransportListener);
+        mTransport.setTransports(new UplinkTransport[] {mWebsocketTransport});
+        setUplinkBatching(DEFAULT_UPLINK_BATCH_SIZE, DEFAULT_UPLINK_MAX_LATENCY_MS);
+        if (SAMI_RELAY_URL != null) {
+            setRelayUrl(SAMI_RELAY_URL);
         }
-        mHandler = new Handler();
     }
 
     public String getAuthorizationRequestUri() {
@@ -126,6 +285,19 @@ public class SAMISession {
 
     public void logout() {
         reset();
+        // Readings kept for this user must not be replayed after someone else logs in.
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mJournal != null) {
+                    try {
+                        mJournal.clear();
+                    } catch (IOException e) {
+                        Log.w(TAG, "logout: unable to clear journal: " + e.getMessage());
+                    }
+                }
+            }
+        });
     }
 
     public UsersApi getUsersApi() {
@@ -171,122 +343,438 @@ public class SAMISession {
         mUserId = null;
         mDeviceId = null;
 
-        mWebsocket = null;
+        mPendingReadings.clear();
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mUplinkBatcher != null) {
+                    mUplinkBatcher.clear();
+                }
+                mTransport.close();
+                mInFlight.clear();
+            }
+        });
     }
 
     /**
-     *
-     *
+     * Access token of the logged in user, for transports that authenticate on their own.
      */
-    public void onNewHeartRate(final int heartRate, final long ts) {
+    String getAccessToken() {
+        return mAccessToken;
+    }
+
+    /**
+     * Sets a listener that is told the current websocket reconnect state, then every change
+     * of it. It is called on the websocket I/O thread.
+     */
+    public void setReconnectListener(final ReconnectScheduler.Listener listener) {
         mHandler.post(new Runnable() {
             @Override
-            public void run() { sendViaWebsocket(heartRate, ts);}
+            public void run() {
+                mWebsocketTransport.setReconnectListener(listener);
+            }
         });
     }
 
     /**
+     * Opens the on-disk journal that keeps readings while the uplink is down and replays
+     * them once it is back. Readings left by a previous process are recovered.
+     * Calling it again once the journal is open has no effect.
      *
-     *
+     * @param dir private directory of the app, e.g. {@code Context.getFilesDir()}
      */
-    public void setupWebsocket() {
+    public void openJournal(final File dir) {
         mHandler.post(new Runnable() {
             @Override
-            public void run() { connectWebsocket();}
+            public void run() {
+                if (mJournal != null) {
+                    return;
+                }
+                mFileTransport.setDirectory(new File(dir, "export"));
+                try {
+                    mJournal = new UplinkJournal(new File(dir, "uplink"));
+                } catch (IOException e) {
+                    Log.e(TAG, "openJournal: unable to open journal: " + e.getMessage());
+                }
+            }
         });
     }
 
     /**
-     * Setup websocket bidirectional pipeline and register to SAMI
+     * Configures how heart rate readings are grouped before they go out.
+     * Readings are buffered until {@code maxBatchSize} of them are pending or the oldest one
+     * has waited {@code maxLatencyMs}, then sent back to back in one burst.
+     *
+     * @param maxBatchSize readings per burst; 1 or less sends every reading as soon as it arrives
+     * @param maxLatencyMs longest time a reading may wait in the buffer
      */
-    private void connectWebsocket() {
-        if(mWebsocket == null) {
-            mWebsocket = new Websocket();
-        }
-
-        if(!mWebsocket.isConnecting() && !mWebsocket.isConnected()) {
-            mWebsocket.connect(SAMI_WEBSOCKET_URL, new WebsocketEvents() {
-                @Override
-                public void onOpen(ServerHandshake handshakedata) {
-                    final String message = getWSRegisterMessage();
-                    mWebsocket.send(message);
-                    Log.d(TAG, "WebSocket: onOpen calling websocket.send(" + message + ")");
+    public void setUplinkBatching(final int maxBatchSize, final long maxLatencyMs) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mUplinkBatcher != null) {
+                    mUplinkBatcher.flush();
+                }
+                if (maxBatchSize <= 1) {
+                    mUplinkBatcher = null;
+                } else {
+                    mUplinkBatcher = new UplinkBatcher(mHandler, maxBatchSize, maxLatencyMs,
+                            new UplinkBatcher.Sink() {
+                                @Override
+                                public void onFlush(HeartRateReading[] readings, int count) {
+                                    if (mJournal != null) {
+                                        for (int i = 0; i < count; i++) {
+                                            appendToJournal(readings[i]);
+                                        }
+                                        pumpJournal();
+                                    } else {
+                                        sendBatchDirect(readings, count);
+                                    }
+                                }
+                            });
                 }
+            }
+        });
+    }
 
-                @Override
-                public void onMessage(String message) {
-                    Log.d(TAG, "WebSocket: onMessage(" + message + ")");
-                 }
+    /**
+     * Sends readings through {@code transport} only, see {@link #setUplinkTransports(int...)}.
+     */
+    public void setUplinkTransport(int transport) {
+        setUplinkTransports(transport);
+    }
 
-                @Override
-                public void onClose(int code, String reason, boolean remote) {
-                    Log.d(TAG, "WebSocket: onClose() code = " + code + "; reason = " + reason + "; remote = " + remote);
-                 }
+    /**
+     * Chooses the transports readings may go through, most preferred first:
+     * {@link #TRANSPORT_WEBSOCKET}, one acknowledged message per reading on the websocket,
+     * {@link #TRANSPORT_REST}, parallel {@code POST /messages} requests, and
+     * {@link #TRANSPORT_FILE}, lines appended to {@code export/readings.json} in the journal's
+     * directory. Each reading goes through the fastest healthy network transport. The file
+     * is a destination only when it is the only transport; next to network transports it
+     * gets a copy of the readings that arrive while none of them can send, and those readings
+     * are still uploaded from the journal once one can.
+     */
+    public void setUplinkTransports(int... transports) {
+        final ArrayList<UplinkTransport> routes = new ArrayList<UplinkTransport>();
+        boolean file = false;
+        for (int transport : transports) {
+            switch (transport) {
+                case TRANSPORT_WEBSOCKET:
+                    routes.add(mWebsocketTransport);
+                    break;
+                case TRANSPORT_REST:
+                    routes.add(mRestTransport);
+                    break;
+                case TRANSPORT_FILE:
+                    file = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown transport " + transport);
+            }
+        }
+        if (routes.isEmpty() && !file) {
+            throw new IllegalArgumentException("no transport");
+        }
+        if (routes.isEmpty()) {
+            routes.add(mFileTransport);
+            file = false;
+        }
+        final UplinkTransport[] preferred = routes.toArray(new UplinkTransport[routes.size()]);
+        final boolean exportWhileOffline = file;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mTransport.setTransports(preferred);
+                mExportWhileOffline = exportWhileOffline;
+                if (exportWhileOffline) {
+                    mFileTransport.setListener(mExportListener);
+                }
+                mTransport.open();
+                Log.i(TAG, "setUplinkTransports: now using " + mTransport.getName());
+            }
+        });
+    }
 
-                @Override
-                public void onError(Exception ex) {
-                    Log.d(TAG, "WebSocket: onError() errorMsg = " + ex.getMessage());
+    /**
+     * Same as {@link #setUplinkTransports(int...)} with the transports given by name, e.g.
+     * {@code "websocket,rest"}, so that the choice can come from configuration.
+     */
+    public void setUplinkTransports(String names) {
+        final String[] parts = names.split(",");
+        final int[] transports = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            transports[i] = -1;
+            for (int t = 0; t < TRANSPORT_NAMES.length; t++) {
+                if (TRANSPORT_NAMES[t].equalsIgnoreCase(parts[i].trim())) {
+                    transports[i] = t;
                 }
-            });
+            }
         }
+        setUplinkTransports(transports);
     }
 
-    public void disconnectWebSocket() {
-        if (mWebsocket != null && (mWebsocket.isConnecting() || mWebsocket.isConnected())) {
-            mWebsocket.disconnect();
-        }
+    /**
+     * Sends readings through a relay of ours instead of straight to SAMI. The relay gets the
+     * same register messages, then readings as {@link CompactFrameEncoder} binary frames,
+     * one frame per batch, which it inflates and forwards to SAMI as JSON. This is several
+     * times smaller on the wire than a JSON text frame per reading. The current connection,
+     * if any, is dropped and the reconnect goes to the new endpoint.
+     *
+     * @param url websocket URL of the relay; null to talk to SAMI directly again
+     */
+    public void setRelayUrl(final String url) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mWebsocketTransport.setRelayUrl(url);
+            }
+        });
     }
+
     /**
-     * Connects to /websocket
+     * Queues a heart rate reading for upload to SAMI. Safe to call from any thread; the
+     * reading is handed to the I/O thread without taking a lock.
+     */
+    public void onNewHeartRate(final int heartRate, final long ts) {
+        onNewReading(new HeartRateReading(mDeviceId, heartRate, ts));
+    }
+
+    /**
+     * Queues a heart rate reading from one of several connected straps, together with the HRV
+     * metrics computed over the RR intervals received so far. The metrics go out as extra
+     * {@code data} fields when HRV uplink is on.
      *
+     * @param sdid SAMI device the reading is sent as; null for the selected device
+     */
+    public void onNewHeartRate(String sdid, final int heartRate, final long ts, HrvWindow hrv) {
+        if (sdid == null) {
+            sdid = mDeviceId;
+        }
+        if (hrv == null || !hrv.isReady()) {
+            onNewReading(new HeartRateReading(sdid, heartRate, ts));
+            return;
+        }
+        onNewReading(new HeartRateReading(sdid, heartRate, ts,
+                hrv.rmssd(), hrv.sdnn(), hrv.pnn50()));
+    }
+
+    /**
+     * Turns the rmssd, sdnn and pnn50 fields of outgoing messages on or off. The device type
+     * on SAMI must declare these fields in its manifest for them to be stored.
      */
-    private void sendViaWebsocket(final int heartRate, final long ts) {
-        final String message = getWSMessage(heartRate, ts);
-        if (mWebsocket == null) {
-            mWebsocket = new Websocket();
+    public void setHrvUplinkEnabled(boolean enabled) {
+        mHrvUplinkEnabled = enabled;
+    }
+
+    private void onNewReading(HeartRateReading reading) {
+        mPendingReadings.offer(reading);
+        if (mDrainScheduled.compareAndSet(false, true)) {
+            mHandler.post(mDrainPendingReadings);
         }
-        if (!mWebsocket.isConnected()) {
-            setupWebsocket();
+    }
+
+    /**
+     * Opens the uplink on the I/O thread if it is not already open. For the websocket,
+     * requests made while a reconnect is already pending or backing off are folded into it.
+     */
+    public void setupWebsocket() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mTransport.open();
+            }
+        });
+    }
+
+    public void disconnectWebSocket() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mWebsocketTransport.close();
+            }
+        });
+    }
+
+    /**
+     * Sends a reading that is not journaled. It is tracked in the in-flight window all the
+     * same, but dropped if the window is full or the transport is down.
+     */
+    private void sendDirect(HeartRateReading reading) {
+        if (!mTransport.isWritable()) {
+            mTransport.open();
+            Log.d(TAG, "sendDirect: " + mTransport.getName() + " not writable, dropping reading");
+            return;
         }
-        if (mWebsocket.isConnected()) {
-            Log.d(TAG, "sendViaWebsocket: send(" + message +")");
-            mWebsocket.send(message);
+        if (mInFlight.isFull()) {
+            Log.d(TAG, "sendDirect: too many messages awaiting ack, dropping reading");
+            return;
         }
+        send(uplinkReading(reading), -1);
     }
 
     /**
-     * Returns JSON payload of the registration message for Bi-directional websocket
-     * @return
+     * Sends a batch of readings back to back so the radio wakes up once for the whole batch.
      */
-    private String getWSRegisterMessage(){
-        JSONObject message = new JSONObject();
+    private void sendBatchDirect(HeartRateReading[] readings, int count) {
+        for (int i = 0; i < count; i++) {
+            sendDirect(readings[i]);
+        }
+        mTransport.flush();
+    }
+
+    private void appendToJournal(HeartRateReading reading) {
+        if (reading.sdid == null) {
+            Log.w(TAG, "appendToJournal: no SAMI device selected, dropping reading");
+            return;
+        }
         try {
-            message.put(TYPE, "register");
-            message.put(SOURCE_DEVICE, mDeviceId);
-            message.put(AUTHORIZATION, "bearer " + mAccessToken);
-        } catch (JSONException e) {
-            e.printStackTrace();
+            mJournal.append(reading.sdid, reading);
+        } catch (IOException e) {
+            Log.e(TAG, "appendToJournal: " + e.getMessage() + ", sending without journal");
+            sendDirect(reading);
+            mTransport.flush();
         }
-        return message.toString();
     }
 
     /**
-     * Returns a full JSON payload to send a message for HeartRateTracker device type
-     * @param heartRate
-     * @return
+     * Sends unread journal records, oldest first, for as long as the in-flight window has room.
+     * Records are released as they are acknowledged. Opens the transport instead if it is down.
      */
-    private String getWSMessage(int heartRate, long ts){
-        JSONObject message = new JSONObject();
+    private void pumpJournal() {
+        if (!mTransport.isWritable()) {
+            mTransport.open();
+            return;
+        }
+        int sent = 0;
         try {
-            message.put(SOURCE_DEVICE, mDeviceId);
-            message.put(TIME_STAMP, ts);
-            JSONObject data = new JSONObject();
-            data.put(HEART_RATE, heartRate);
-            message.put(DATA, data);
-        } catch (JSONException e) {
-            e.printStackTrace();
-        }
-        return message.toString();
+            // A full window stops the pump; onAck() restarts it as acks free up room.
+            while (!mInFlight.isFull() && mJournal.read(mJournalRecord)) {
+                send(uplinkReading(mJournalRecord), mJournalRecord.position);
+                sent++;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "pumpJournal: " + e.getMessage());
+            // Everything unacknowledged is read and sent again.
+            mInFlight.clear();
+            mJournal.rewind();
+        }
+        mTransport.flush();
+        if (sent > 0) {
+            Log.d(TAG, "pumpJournal: sent " + sent + " readings via " + mTransport.getName());
+        }
+    }
+
+    private void schedulePump() {
+        if (!mPumpScheduled) {
+            mPumpScheduled = true;
+            mHandler.post(mPumpJournal);
+        }
+    }
+
+    private void send(HeartRateReading reading, long position) {
+        final InFlightWindow.Entry entry =
+                mInFlight.add(reading, position, SystemClock.elapsedRealtime());
+        mTransport.send(entry.cid, reading);
+        scheduleAckCheck();
+    }
+
+    /**
+     * Returns {@code reading} as it should go out: without HRV metrics when HRV uplink is off.
+     */
+    private HeartRateReading uplinkReading(HeartRateReading reading) {
+        if (!mHrvUplinkEnabled && reading.hasHrv()) {
+            return new HeartRateReading(reading.sdid, reading.heartRate, reading.ts);
+        }
+        return reading;
+    }
+
+    private HeartRateReading uplinkReading(UplinkJournal.Record record) {
+        if (!mHrvUplinkEnabled) {
+            return new HeartRateReading(record.sdid, record.heartRate, record.ts);
+        }
+        return new HeartRateReading(record.sdid, record.heartRate, record.ts,
+                record.rmssd, record.sdnn, record.pnn50);
+    }
+
+    /**
+     * Handles the ack of message {@code cid}: records its latency, releases the journal up
+     * to the oldest message still unacknowledged and refills the window. A rejected message is
+     * released too, since sending it again would be rejected again.
+     */
+    private void onAck(long cid, boolean rejected) {
+        final InFlightWindow.Entry entry = mInFlight.acknowledge(cid);
+        if (entry == null) {
+            return;
+        }
+        if (!rejected) {
+            mAckLatency.record(SystemClock.elapsedRealtime() - entry.firstSentAt);
+            if (mAckLatency.getCount() % ACK_STATS_INTERVAL == 0) {
+                logAckStats();
+            }
+        }
+        final long position = mInFlight.releaseAcked();
+        if (mJournal == null) {
+            return;
+        }
+        if (position >= 0) {
+            try {
+                mJournal.acknowledge(position);
+            } catch (IOException e) {
+                Log.e(TAG, "onAck: " + e.getMessage());
+            }
+        }
+        // Posted rather than called: transports may ack from inside send() or flush().
+        if (mJournal.hasUnread()) {
+            schedulePump();
+        }
+    }
+
+    private void scheduleAckCheck() {
+        if (!mAckCheckScheduled && !mInFlight.isEmpty()) {
+            mAckCheckScheduled = true;
+            mHandler.postDelayed(mCheckAckTimeouts, ACK_TIMEOUT_MS / 2);
+        }
+    }
+
+    /**
+     * Sends again every message whose ack is overdue. A message that has gone unacknowledged
+     * MAX_RETRANSMITS times makes the transport reconnect, which replays the journal from the
+     * oldest unacknowledged record.
+     */
+    private void checkAckTimeouts() {
+        if (!mTransport.isWritable()) {
+            // onWritable() clears the window once the transport is back.
+            return;
+        }
+        final long now = SystemClock.elapsedRealtime();
+        mInFlight.collectExpired(now, ACK_TIMEOUT_MS, mExpired);
+        for (int i = 0; i < mExpired.size(); i++) {
+            final InFlightWindow.Entry entry = mExpired.get(i);
+            if (entry.attempts > MAX_RETRANSMITS) {
+                Log.w(TAG, "checkAckTimeouts: no ack for message " + entry.cid + " after "
+                        + entry.attempts + " attempts, reconnecting " + mTransport.getName());
+                mExpired.clear();
+                logAckStats();
+                mTransport.reconnect();
+                scheduleAckCheck();
+                return;
+            }
+            entry.attempts++;
+            entry.sentAt = now;
+            mRetransmits++;
+            mTransport.send(entry.cid, entry.reading);
+        }
+        mExpired.clear();
+        mTransport.flush();
+        scheduleAckCheck();
+    }
+
+    private void logAckStats() {
+        if (mAckLatency.getCount() > 0 || mRetransmits > 0) {
+            Log.i(TAG, "Ack latency " + mAckLatency + ", " + mRetransmits + " retransmits, "
+                    + mSendFailures + " send failures, " + mInFlight.size() + " in flight");
+            mTransport.logStats();
+        }
     }
 
 }
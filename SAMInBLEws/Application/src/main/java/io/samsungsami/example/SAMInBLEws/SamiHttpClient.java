@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.samsungsami.example.SAMInBLEws;
+
+import android.content.Context;
+import android.net.SSLCertificateSocketFactory;
+import android.net.SSLSessionCache;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The HTTP client every SAMI REST call of the app goes through: the device list, users/self,
+ * REST uplink messages and logout.
+ *
+ * Connections are kept alive in one thread safe pool of at most {@link #MAX_PER_ROUTE}
+ * connections per host and {@link #MAX_TOTAL} in all, and TLS sessions are kept in an
+ * {@link SSLSessionCache}, on disk once {@link #init(Context)} has been called, so a new
+ * connection, even in a new process, resumes the previous session instead of a full
+ * handshake.
+ *
+ * The pool counts how connections were obtained: hits reuse a kept-alive connection, misses
+ * open a new one, and the time spent waiting for a free connection is summed up.
+ *
+ * The SDK's UsersApi, DevicesApi and MessagesApi go through its own ApiInvoker, whose client
+ * cannot be replaced; calls on the startup path are made here instead.
+ */
+public class SamiHttpClient {
+    private static final String TAG = SamiHttpClient.class.getSimpleName();
+
+    public static final int MAX_PER_ROUTE = 4;
+    public static final int MAX_TOTAL = 8;
+
+    private static final int TIMEOUT_MS = 15000;
+    // How long a request may wait for a free connection from the pool.
+    private static final long POOL_TIMEOUT_MS = 10000;
+
+    private static SamiHttpClient sInstance;
+
+    private final DefaultHttpClient mClient;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mPoolTimeouts = new AtomicLong();
+    private final AtomicLong mWaitMs = new AtomicLong();
+
+    /**
+     * Creates the shared client with a TLS session cache in the app's private storage. Does
+     * nothing if it already exists.
+     */
+    public static synchronized void init(Context context) {
+        if (sInstance == null) {
+            sInstance = new SamiHttpClient(new SSLSessionCache(context.getApplicationContext()));
+        }
+    }
+
+    /**
+     * Returns the shared client, creating it with an in-memory TLS session cache only if
+     * {@link #init(Context)} has not been called.
+     */
+    public static synchronized SamiHttpClient getInstance() {
+        if (sInstance == null) {
+            sInstance = new SamiHttpClient(null);
+        }
+        return sInstance;
+    }
+
+    private SamiHttpClient(SSLSessionCache sessionCache) {
+        final HttpParams params = new BasicHttpParams();
+        ConnManagerParams.setMaxTotalConnections(params, MAX_TOTAL);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(MAX_PER_ROUTE));
+        ConnManagerParams.setTimeout(params, POOL_TIMEOUT_MS);
+        HttpConnectionParams.setConnectionTimeout(params, TIMEOUT_MS);
+        HttpConnectionParams.setSoTimeout(params, TIMEOUT_MS);
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+        HttpProtocolParams.setContentCharset(params, "UTF-8");
+        final SchemeRegistry registry = new SchemeRegistry();
+        registry.register(new Scheme("https",
+                SSLCertificateSocketFactory.getHttpSocketFactory(TIMEOUT_MS, sessionCache), 443));
+        registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        mClient = new DefaultHttpClient(new MeteredConnManager(params, registry), params);
+    }
+
+    /**
+     * Executes {@code request}. The caller must read the response entity to the end, or
+     * consume it, so that the connection goes back to the pool.
+     */
+    public HttpResponse execute(HttpUriRequest request) throws IOException {
+        return mClient.execute(request);
+    }
+
+    /**
+     * Adds the bearer token of the logged in user to {@code request}.
+     */
+    public static <T extends HttpUriRequest> T authorize(T request, String accessToken) {
+        request.setHeader("Authorization", "bearer " + accessToken);
+        return request;
+    }
+
+    public long getHits() {
+        return mHits.get();
+    }
+
+    public long getMisses() {
+        return mMisses.get();
+    }
+
+    public long getPoolTimeouts() {
+        return mPoolTimeouts.get();
+    }
+
+    /**
+     * Total time requests waited for a connection from the pool.
+     */
+    public long getWaitMs() {
+        return mWaitMs.get();
+    }
+
+    public void logStats() {
+        Log.i(TAG, toString());
+    }
+
+    @Override
+    public String toString() {
+        final long hits = mHits.get();
+        final long total = hits + mMisses.get();
+        return "pool hits=" + hits + " misses=" + mMisses.get()
+                + " reuse=" + (total > 0 ? hits * 100 / total : 0) + "%"
+                + " timeouts=" + mPoolTimeouts.get() + " wait=" + mWaitMs.get() + "ms";
+    }
+
+    /**
+     * Counts, for every connection handed out, whether it was already open.
+     */
+    private class MeteredConnManager extends ThreadSafeClientConnManager {
+        MeteredConnManager(HttpParams params, SchemeRegistry registry) {
+            super(params, registry);
+        }
+
+        @Override
+        public ClientConnectionRequest requestConnection(HttpRoute route, Object state) {
+            final ClientConnectionRequest request = super.requestConnection(route, state);
+            return new ClientConnectionRequest() {
+                @Override
+                public ManagedClientConnection getConnection(long timeout, TimeUnit unit)
+                        throws InterruptedException, ConnectionPoolTimeoutException {
+                    final long start = SystemClock.elapsedRealtime();
+                    try {
+                        final ManagedClientConnection connection =
+                                request.getConnection(timeout, unit);
+                        if (connection.isOpen()) {
+                            mHits.incrementAndGet();
+                        } else {
+                            mMisses.incrementAndGet();
+                        }
+                        return connection;
+                    } catch (ConnectionPoolTimeoutException e) {
+                        mPoolTimeouts.incrementAndGet();
+                        throw e;
+                    } finally {
+                        mWaitMs.addAndGet(SystemClock.elapsedRealtime() - start);
+                    }
+                }
+
+                @Override
+                public void abortRequest() {
+                    request.abortRequest();
+                }
+            };
+        }
+    }
+}
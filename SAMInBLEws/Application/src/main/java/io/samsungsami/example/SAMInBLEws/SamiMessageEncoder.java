@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.samsungsami.example.SAMInBLEws;
+
+import java.util.HashMap;
+
+/**
+ * Writes SAMI websocket messages of the form
+ * {@code {"sdid":"...","ts":123,"data":{"field":1,...},"cid":"7"}} straight into a reusable
+ * {@code StringBuilder}.
+ *
+ * The constant parts, i.e. the {@code sdid} prefix of each device and the quoted key of each
+ * data field, are rendered once and then only copied, so encoding a message costs a few
+ * appends and the final {@code toString()} instead of two {@code JSONObject}s and their maps.
+ * The field names are those of the device type and are given once, up front.
+ *
+ * Not thread safe; use one encoder per thread.
+ */
+public class SamiMessageEncoder {
+
+    private static final String DATA_PREFIX = ",\"data\":{";
+    private static final String SUFFIX = "}}";
+    private static final String CID_PREFIX = "},\"cid\":\"";
+    private static final String CID_SUFFIX = "\"}";
+
+    private final String[] mFieldKeys;
+    private final HashMap<String, String> mPrefixes = new HashMap<String, String>();
+    private final StringBuilder mBuilder = new StringBuilder(128);
+    private boolean mFirstField;
+
+    /**
+     * @param fieldNames names of the numeric data fields of the device type; the index of a
+     *                   name is the {@code field} argument of the {@code put} methods
+     */
+    public SamiMessageEncoder(String... fieldNames) {
+        mFieldKeys = new String[fieldNames.length];
+        for (int i = 0; i < fieldNames.length; i++) {
+            final StringBuilder key = new StringBuilder();
+            appendQuoted(key, fieldNames[i]);
+            mFieldKeys[i] = key.append(':').toString();
+        }
+    }
+
+    /**
+     * Starts a message, discarding any message that was started but not ended.
+     */
+    public SamiMessageEncoder begin(String sdid, long ts) {
+        String prefix = mPrefixes.get(sdid);
+        if (prefix == null) {
+            final StringBuilder builder = new StringBuilder("{\"sdid\":");
+            appendQuoted(builder, sdid);
+            prefix = builder.append(",\"ts\":").toString();
+            mPrefixes.put(sdid, prefix);
+        }
+        mBuilder.setLength(0);
+        mBuilder.append(prefix).append(ts).append(DATA_PREFIX);
+        mFirstField = true;
+        return this;
+    }
+
+    public SamiMessageEncoder put(int field, long value) {
+        appendKey(field);
+        mBuilder.append(value);
+        return this;
+    }
+
+    /**
+     * Adds a floating point field. NaN and infinite values have no JSON representation and
+     * are left out.
+     */
+    public SamiMessageEncoder put(int field, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return this;
+        }
+        appendKey(field);
+        mBuilder.append(value);
+        return this;
+    }
+
+    /**
+     * Adds a floating point field. NaN and infinite values have no JSON representation and
+     * are left out.
+     */
+    public SamiMessageEncoder put(int field, float value) {
+        if (Float.isNaN(value) || Float.isInfinite(value)) {
+            return this;
+        }
+        appendKey(field);
+        mBuilder.append(value);
+        return this;
+    }
+
+    /**
+     * Closes the message and returns it.
+     */
+    public String end() {
+        mBuilder.append(SUFFIX);
+        return mBuilder.toString();
+    }
+
+    /**
+     * Closes the message with a client message id and returns it. SAMI echoes the id in the
+     * ack of the message when the websocket was opened with {@code ack=true}.
+     */
+    public String end(long cid) {
+        mBuilder.append(CID_PREFIX).append(cid).append(CID_SUFFIX);
+        return mBuilder.toString();
+    }
+
+    private void appendKey(int field) {
+        if (!mFirstField) {
+            mBuilder.append(',');
+        }
+        mFirstField = false;
+        mBuilder.append(mFieldKeys[field]);
+    }
+
+    private static void appendQuoted(StringBuilder builder, String value) {
+        builder.append('"');
+        if (value != null) {
+            for (int i = 0; i < value.length(); i++) {
+                final char c = value.charAt(i);
+                switch (c) {
+                    case '"':
+                        builder.append("\\\"");
+                        break;
+                    case '\\':
+                        builder.append("\\\\");
+                        break;
+                    default:
+                        if (c < 0x20) {
+                            builder.append(String.format("\\u%04x", (int) c));
+                        } else {
+                            builder.append(c);
+                        }
+                }
+            }
+        }
+        builder.append('"');
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.samsungsami.example.SAMInBLEws;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads every item of a paged SAMI list call, e.g. {@code GET /users/{uid}/devices}, which
+ * takes an offset and a count and reports the total number of items.
+ *
+ * The first page is fetched alone to learn the total. After that up to {@code window} pages
+ * are fetched at the same time, and every page is handed to the {@link Listener} as soon as it
+ * and all the pages before it have arrived, so a list screen can show the first items while
+ * the rest are still loading, in a stable order. Loading stops at the reported total, or at
+ * the first short page if the call does not report one.
+ *
+ * Pages are fetched on a few threads shared by all pagers; pages beyond those wait their turn
+ * whatever the window.
+ *
+ * All methods must be called, and the listener is called, on the main thread.
+ */
+public class SamiPager<T> {
+    private static final String TAG = SamiPager.class.getSimpleName();
+
+    public static final int DEFAULT_PAGE_SIZE = 100;
+    public static final int DEFAULT_WINDOW = 3;
+
+    // Fetches pages for every pager, so that a pager left behind by a reload leaves no idle
+    // pool behind it. Threads go away when no page has been fetched for a while.
+    private static final int MAX_FETCHES = 4;
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(
+            MAX_FETCHES, MAX_FETCHES, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public interface PageSource<T> {
+        /**
+         * Fetches the items at {@code offset} onwards, at most {@code count} of them, into
+         * {@code out}. Called on worker threads, for several pages at once.
+         *
+         * @return the total number of items reported by the call, or -1 if it reports none
+         */
+        public int fetchPage(int offset, int count, List<T> out) throws Exception;
+    }
+
+    public interface Listener<T> {
+        /**
+         * Called for every page, in offset order.
+         *
+         * @param total total number of items, or -1 while it is not known
+         */
+        public void onPage(int offset, List<T> items, int total);
+
+        /**
+         * Called once loading is over, after the last page.
+         *
+         * @param succeeded false if a page could not be fetched; the pages after it are not
+         *            delivered
+         */
+        public void onComplete(boolean succeeded, int total);
+    }
+
+    private final PageSource<T> mSource;
+    private final Listener<T> mListener;
+    private final int mPageSize;
+    private final int mWindow;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // Bumped by every start() and cancel(); results of older loads are dropped.
+    private int mGeneration = 0;
+    private boolean mLoading = false;
+    private int mTotal;
+    private int mNextOffset;
+    private int mDeliverOffset;
+    private int mInFlight;
+    // Pages that arrived before some page preceding them, by offset.
+    private final HashMap<Integer, List<T>> mArrived = new HashMap<Integer, List<T>>();
+
+    public SamiPager(PageSource<T> source, int pageSize, int window, Listener<T> listener) {
+        if (pageSize < 1 || window < 1) {
+            throw new IllegalArgumentException("pageSize and window must be at least 1");
+        }
+        mSource = source;
+        mListener = listener;
+        mPageSize = pageSize;
+        mWindow = window;
+    }
+
+    public SamiPager(PageSource<T> source, Listener<T> listener) {
+        this(source, DEFAULT_PAGE_SIZE, DEFAULT_WINDOW, listener);
+    }
+
+    public boolean isLoading() {
+        return mLoading;
+    }
+
+    /**
+     * Loads the list from the start, dropping any load in progress.
+     */
+    public void start() {
+        cancel();
+        mLoading = true;
+        mTotal = -1;
+        mNextOffset = 0;
+        mDeliverOffset = 0;
+        fetchMore();
+    }
+
+    /**
+     * Stops loading. Pages being fetched are dropped when they arrive and the listener is
+     * not called any more.
+     */
+    public void cancel() {
+        mGeneration++;
+        mLoading = false;
+        mInFlight = 0;
+        mArrived.clear();
+    }
+
+    private void fetchMore() {
+        if (mTotal < 0) {
+            // Until the total is known there is no telling how many pages there are.
+            if (mInFlight == 0) {
+                fetch(mNextOffset);
+            }
+            return;
+        }
+        while (mInFlight < mWindow && mNextOffset < mTotal) {
+            fetch(mNextOffset);
+        }
+    }
+
+    private void fetch(final int offset) {
+        final int generation = mGeneration;
+        mNextOffset = offset + mPageSize;
+        mInFlight++;
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final ArrayList<T> items = new ArrayList<T>();
+                int total = -1;
+                boolean failed = false;
+                try {
+                    total = mSource.fetchPage(offset, mPageSize, items);
+                } catch (Exception e) {
+                    Log.w(TAG, "fetchPage(" + offset + "): " + e.getMessage());
+                    failed = true;
+                }
+                final int reportedTotal = total;
+                final boolean succeeded = !failed;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onPageFetched(generation, offset, succeeded ? items : null, reportedTotal);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @param items the page, or null if it could not be fetched
+     */
+    private void onPageFetched(int generation, int offset, List<T> items, int total) {
+        if (generation != mGeneration) {
+            return;
+        }
+        mInFlight--;
+        if (items == null) {
+            cancel();
+            mListener.onComplete(false, mTotal);
+            return;
+        }
+        if (mTotal < 0 && total >= 0) {
+            mTotal = total;
+        }
+        // A short page is the last one, whatever the total said (the list may have shrunk).
+        if (items.size() < mPageSize && (mTotal < 0 || offset + items.size() < mTotal)) {
+            mTotal = offset + items.size();
+        }
+        mArrived.put(offset, items);
+
+        List<T> page;
+        while ((mTotal < 0 || mDeliverOffset < mTotal)
+                && (page = mArrived.remove(mDeliverOffset)) != null) {
+            mListener.onPage(mDeliverOffset, page, mTotal);
+            if (generation != mGeneration) {
+                // The listener cancelled or restarted.
+                return;
+            }
+            mDeliverOffset += mPageSize;
+        }
+        if (mTotal >= 0 && mDeliverOffset >= mTotal) {
+            final int loaded = mTotal;
+            cancel();
+            mListener.onComplete(true, loaded);
+            return;
+        }
+        fetchMore();
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.samsungsami.example.SAMInBLEws;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent cache of SAMI responses, so that a screen can show what it showed last time at
+ * once and refresh it in the background.
+ *
+ * Every entry is a file of its own, {@code int magic, int formatVersion, long storedAt,
+ * long version, int length, byte[] body}, so opening the cache reads nothing and reading an
+ * entry reads only that file.
+ *
+ * The version of an entry is a CRC32 of its body. Comparing it with {@link #version(byte[])}
+ * of a refreshed response tells whether the refresh brought anything new, whether the
+ * response is one request or, like the device list, several pages; an unchanged entry is only
+ * {@link #touch touched}.
+ *
+ * Reads may happen on any thread; writes are made on a background thread shared by all
+ * caches, each to a temporary file renamed over the entry, so a reader never sees half an
+ * entry.
+ */
+public class SamiResponseCache {
+    private static final String TAG = SamiResponseCache.class.getSimpleName();
+
+    private static final int MAGIC = 0x53414d43; // "SAMC"
+    // Bump when the layout of the bodies changes; entries of other versions are ignored.
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 8 + 4;
+    private static final int MAX_BODY_BYTES = 8 * 1024 * 1024;
+    private static final String SUFFIX = ".entry";
+    // Where storedAt is in an entry file.
+    private static final int STORED_AT_OFFSET = 4 + 4;
+
+    /** Version of no entry; never returned by {@link #version(byte[])}. */
+    public static final long NO_VERSION = -1;
+
+    // Writes the entries of every cache, so that a cache created by each activity leaves no
+    // thread behind it. The thread goes away when nothing has been written for a while.
+    private static final ThreadPoolExecutor sWriter = new ThreadPoolExecutor(1, 1, 30,
+            TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    static {
+        sWriter.allowCoreThreadTimeOut(true);
+    }
+
+    public static class Entry {
+        public final long storedAt;
+        public final long version;
+        public final byte[] body;
+
+        Entry(long storedAt, long version, byte[] body) {
+            this.storedAt = storedAt;
+            this.version = version;
+            this.body = body;
+        }
+
+        /**
+         * True if the entry was stored less than {@code ttlMs} ago.
+         */
+        public boolean isFresh(long ttlMs) {
+            final long age = System.currentTimeMillis() - storedAt;
+            return age >= 0 && age < ttlMs;
+        }
+    }
+
+    private final File mDir;
+
+    public SamiResponseCache(File dir) {
+        mDir = dir;
+    }
+
+    /**
+     * Returns the entry stored under {@code key}, fresh or not, or null.
+     */
+    public Entry get(String key) {
+        final File file = fileFor(key);
+        if (!file.isFile()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                return null;
+            }
+            final long storedAt = in.readLong();
+            final long version = in.readLong();
+            final int length = in.readInt();
+            if (length < 0 || length > MAX_BODY_BYTES || length != file.length() - HEADER_BYTES) {
+                Log.w(TAG, "get(" + key + "): corrupt entry");
+                return null;
+            }
+            final byte[] body = new byte[length];
+            in.readFully(body);
+            if (version(body) != version) {
+                Log.w(TAG, "get(" + key + "): corrupt entry");
+                return null;
+            }
+            return new Entry(storedAt, version, body);
+        } catch (IOException e) {
+            Log.w(TAG, "get(" + key + "): " + e.getMessage());
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Stores {@code body} under {@code key} in the background.
+     */
+    public void put(final String key, final byte[] body) {
+        sWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(key, body);
+            }
+        });
+    }
+
+    /**
+     * Marks the entry stored under {@code key} as stored now, in the background, e.g. after
+     * a refresh that brought the same body. Nothing happens if there is no such entry.
+     */
+    public void touch(final String key) {
+        sWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                final File file = fileFor(key);
+                if (!file.isFile()) {
+                    return;
+                }
+                RandomAccessFile out = null;
+                try {
+                    out = new RandomAccessFile(file, "rw");
+                    out.seek(STORED_AT_OFFSET);
+                    out.writeLong(System.currentTimeMillis());
+                } catch (IOException e) {
+                    Log.w(TAG, "touch(" + key + "): " + e.getMessage());
+                } finally {
+                    closeQuietly(out);
+                }
+            }
+        });
+    }
+
+    /**
+     * Removes every entry, in the background after the writes already asked for.
+     */
+    public void clear() {
+        sWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                final File[] files = mDir.listFiles();
+                if (files == null) {
+                    return;
+                }
+                for (File file : files) {
+                    if (!file.delete()) {
+                        Log.w(TAG, "clear: unable to delete " + file);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Version an entry holding {@code body} has.
+     */
+    public static long version(byte[] body) {
+        final CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        return crc.getValue();
+    }
+
+    private void write(String key, byte[] body) {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            Log.w(TAG, "put(" + key + "): unable to create " + mDir);
+            return;
+        }
+        final File file = fileFor(key);
+        final File tmp = new File(mDir, file.getName() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(System.currentTimeMillis());
+            out.writeLong(version(body));
+            out.writeInt(body.length);
+            out.write(body);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                throw new IOException("unable to rename " + tmp);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "put(" + key + "): " + e.getMessage());
+            closeQuietly(out);
+            tmp.delete();
+        }
+    }
+
+    private File fileFor(String key) {
+        // Keys are ids and fixed names; anything else is replaced to keep to one directory.
+        return new File(mDir, key.replaceAll("[^A-Za-z0-9._-]", "_") + SUFFIX);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing to do.
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.samsungsami.example.SAMInBLEws;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Collects BLE scan results off the UI thread and publishes them to it at a capped rate.
+ *
+ * Every advertisement is handed to a background thread in a {@link Message}, where it
+ * updates the device it came from, found by address in a hash map. At most
+ * {@code maxUpdatesPerSecond} times a second, and only if something changed, the UI thread
+ * gets one {@link Update}: an immutable snapshot of all devices in the order they were first
+ * seen, with what changed since the previous one. A room full of beacons advertising many
+ * times a second thus costs a handful of list refreshes a second.
+ */
+public class ScanAggregator {
+    public static final int DEFAULT_MAX_UPDATES_PER_SECOND = 4;
+
+    // Weight of the newest sample in the smoothed RSSI.
+    private static final float RSSI_ALPHA = 0.25f;
+
+    private static final int MSG_RESULT = 1;
+    private static final int MSG_PUBLISH = 2;
+    private static final int MSG_CLEAR = 3;
+
+    /**
+     * What is known of one device. Immutable; a new instance is published when it changes.
+     */
+    public static class ScanEntry {
+        public final BluetoothDevice device;
+        public final String address;
+        public final int lastRssi;
+        public final float smoothedRssi;
+        // SystemClock.elapsedRealtime() of the last advertisement.
+        public final long lastSeen;
+        public final int packets;
+        // Raw advertisement of the last packet, or null.
+        public final byte[] scanRecord;
+        // The last advertisement parsed, or null.
+        public final AdvertisementRecord record;
+        // Advertised local name, or null.
+        public final String name;
+
+        ScanEntry(Slot slot) {
+            device = slot.device;
+            address = slot.address;
+            lastRssi = slot.lastRssi;
+            smoothedRssi = slot.smoothedRssi;
+            lastSeen = slot.lastSeen;
+            packets = slot.packets;
+            scanRecord = slot.scanRecord;
+            record = slot.record;
+            name = slot.record != null ? slot.record.getLocalName() : null;
+        }
+    }
+
+    public static class Update {
+        /** Every device, in the order they were first seen. */
+        public final List<ScanEntry> devices;
+        /** Devices seen for the first time since the previous update; the last ones of the list. */
+        public final int added;
+        /** Devices seen before that advertised again since the previous update. */
+        public final int changed;
+        /** Of the changed devices, those advertising another name. */
+        public final int renamed;
+
+        Update(List<ScanEntry> devices, int added, int changed, int renamed) {
+            this.devices = devices;
+            this.added = added;
+            this.changed = changed;
+            this.renamed = renamed;
+        }
+    }
+
+    public interface Listener {
+        /**
+         * Called on the UI thread.
+         */
+        public void onScanUpdate(Update update);
+    }
+
+    // Mutable state of a device, only touched on the aggregator thread.
+    private static class Slot {
+        final BluetoothDevice device;
+        final String address;
+        int lastRssi;
+        float smoothedRssi;
+        long lastSeen;
+        int packets;
+        byte[] scanRecord;
+        AdvertisementRecord record;
+        boolean dirty;
+        ScanEntry published;
+
+        Slot(BluetoothDevice device) {
+            this.device = device;
+            this.address = device.getAddress();
+        }
+    }
+
+    // A Message carries one object; the device and its record travel together in this.
+    private static class ScanResultHolder {
+        final BluetoothDevice device;
+        final byte[] scanRecord;
+
+        ScanResultHolder(BluetoothDevice device, byte[] scanRecord) {
+            this.device = device;
+            this.scanRecord = scanRecord;
+        }
+    }
+
+    private final Listener mListener;
+    private final long mMinIntervalMs;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final Handler mUiHandler = new Handler(Looper.getMainLooper());
+
+    // Aggregator thread only.
+    private final HashMap<String, Slot> mByAddress = new HashMap<String, Slot>();
+    private final ArrayList<Slot> mSlots = new ArrayList<Slot>();
+    private int mPublishedCount = 0;
+    private int mChanged = 0;
+    private int mRenamed = 0;
+    private boolean mPublishScheduled = false;
+    private long mLastPublish = 0;
+
+    public ScanAggregator(int maxUpdatesPerSecond, Listener listener) {
+        if (maxUpdatesPerSecond < 1) {
+            throw new IllegalArgumentException("maxUpdatesPerSecond must be at least 1");
+        }
+        mListener = listener;
+        mMinIntervalMs = 1000 / maxUpdatesPerSecond;
+        mThread = new HandlerThread("BleScanAggregator");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case MSG_RESULT:
+                        final ScanResultHolder result = (ScanResultHolder) msg.obj;
+                        onResult(result.device, msg.arg1, result.scanRecord);
+                        break;
+                    case MSG_PUBLISH:
+                        publish();
+                        break;
+                    case MSG_CLEAR:
+                        doClear();
+                        break;
+                }
+            }
+        };
+    }
+
+    public ScanAggregator(Listener listener) {
+        this(DEFAULT_MAX_UPDATES_PER_SECOND, listener);
+    }
+
+    /**
+     * Records an advertisement. Callable from any thread, typically a scan callback.
+     */
+    public void onScanResult(BluetoothDevice device, int rssi, byte[] scanRecord) {
+        mHandler.obtainMessage(MSG_RESULT, rssi, 0, new ScanResultHolder(device, scanRecord))
+                .sendToTarget();
+    }
+
+    /**
+     * Forgets every device; the listener gets an empty update.
+     */
+    public void clear() {
+        mHandler.removeMessages(MSG_RESULT);
+        mHandler.sendEmptyMessage(MSG_CLEAR);
+    }
+
+    /**
+     * Stops the aggregator thread. The aggregator cannot be used afterwards.
+     */
+    public void quit() {
+        mHandler.removeCallbacksAndMessages(null);
+        mUiHandler.removeCallbacksAndMessages(null);
+        mThread.quit();
+    }
+
+    private void onResult(BluetoothDevice device, int rssi, byte[] scanRecord) {
+        final String address = device.getAddress();
+        Slot slot = mByAddress.get(address);
+        if (slot == null) {
+            slot = new Slot(device);
+            slot.smoothedRssi = rssi;
+            mByAddress.put(address, slot);
+            mSlots.add(slot);
+        } else {
+            slot.smoothedRssi += RSSI_ALPHA * (rssi - slot.smoothedRssi);
+            if (!slot.dirty && slot.published != null) {
+                mChanged++;
+            }
+        }
+        slot.lastRssi = rssi;
+        slot.lastSeen = SystemClock.elapsedRealtime();
+        slot.packets++;
+        if (scanRecord != null && scanRecord != slot.scanRecord) {
+            final AdvertisementRecord record =
+                    AdvertisementCache.getInstance().put(address, scanRecord);
+            if (record != slot.record) {
+                if (slot.published != null && !equal(slot.published.name, record.getLocalName())) {
+                    mRenamed++;
+                }
+                slot.record = record;
+            }
+            slot.scanRecord = scanRecord;
+        }
+        slot.dirty = true;
+        schedulePublish();
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private void schedulePublish() {
+        if (mPublishScheduled) {
+            return;
+        }
+        mPublishScheduled = true;
+        final long wait = mLastPublish + mMinIntervalMs - SystemClock.elapsedRealtime();
+        mHandler.sendEmptyMessageDelayed(MSG_PUBLISH, Math.max(0, wait));
+    }
+
+    private void publish() {
+        mPublishScheduled = false;
+        mLastPublish = SystemClock.elapsedRealtime();
+        final ArrayList<ScanEntry> snapshot = new ArrayList<ScanEntry>(mSlots.size());
+        for (int i = 0; i < mSlots.size(); i++) {
+            final Slot slot = mSlots.get(i);
+            if (slot.dirty) {
+                slot.published = new ScanEntry(slot);
+                slot.dirty = false;
+            }
+            snapshot.add(slot.published);
+        }
+        final int added = mSlots.size() - mPublishedCount;
+        final int changed = mChanged;
+        final int renamed = mRenamed;
+        mPublishedCount = mSlots.size();
+        mChanged = 0;
+        mRenamed = 0;
+        final Update update = new Update(Collections.unmodifiableList(snapshot), added, changed,
+                renamed);
+        mUiHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onScanUpdate(update);
+            }
+        });
+    }
+
+    private void doClear() {
+        mHandler.removeMessages(MSG_PUBLISH);
+        mByAddress.clear();
+        mSlots.clear();
+        mPublishedCount = 0;
+        mChanged = 0;
+        mRenamed = 0;
+        mPublishScheduled = false;
+        final Update update = new Update(Collections.<ScanEntry>emptyList(), 0, 0, 0);
+        mUiHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onScanUpdate(update);
+            }
+        });
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.samsungsami.example.SAMInBLEws;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * Runs the steps of a startup as a dependency graph: every step starts as soon as all the
+ * steps it depends on are done, so independent steps run at the same time instead of one
+ * after the other.
+ *
+ * A step starts its work, usually asynchronously, and reports the outcome through the
+ * {@link Completion} it is given. When a step fails, the steps depending on it are skipped.
+ * The start and end of every step are recorded relative to {@link #start()} and logged once
+ * the whole graph is over.
+ *
+ * All methods must be called on the main thread, completions included.
+ */
+public class StartupOrchestrator {
+    private static final String TAG = StartupOrchestrator.class.getSimpleName();
+
+    public enum Status {
+        PENDING,
+        RUNNING,
+        SUCCEEDED,
+        FAILED,
+        /** Not run because a step it depends on failed. */
+        SKIPPED
+    }
+
+    public interface Step {
+        /**
+         * Starts the step. {@code done} must be completed exactly once, on the main thread,
+         * possibly before this method returns.
+         */
+        public void run(Completion done);
+    }
+
+    public interface Listener {
+        /**
+         * Called once every step has succeeded, failed or been skipped.
+         */
+        public void onFinished(StartupOrchestrator orchestrator);
+    }
+
+    public final class Completion {
+        private final Node mNode;
+
+        private Completion(Node node) {
+            mNode = node;
+        }
+
+        public void succeeded() {
+            finish(mNode, Status.SUCCEEDED);
+        }
+
+        public void failed() {
+            finish(mNode, Status.FAILED);
+        }
+    }
+
+    private static class Node {
+        final String name;
+        final Step step;
+        final ArrayList<String> dependencies = new ArrayList<String>();
+        Status status = Status.PENDING;
+        long startedAt = -1;
+        long finishedAt = -1;
+
+        Node(String name, Step step) {
+            this.name = name;
+            this.step = step;
+        }
+    }
+
+    private final LinkedHashMap<String, Node> mNodes = new LinkedHashMap<String, Node>();
+    private Listener mListener;
+    private long mStartedAt = -1;
+    private boolean mFinished = false;
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Adds a step to the graph.
+     *
+     * @param dependsOn names of the steps that must succeed before this one starts
+     */
+    public StartupOrchestrator addStep(String name, Step step, String... dependsOn) {
+        if (mNodes.containsKey(name)) {
+            throw new IllegalArgumentException("duplicate step " + name);
+        }
+        final Node node = new Node(name, step);
+        mNodes.put(name, node);
+        for (String dependency : dependsOn) {
+            node.dependencies.add(dependency);
+        }
+        return this;
+    }
+
+    /**
+     * Makes {@code name} wait for {@code dependsOn} as well. Only allowed while {@code name}
+     * has not started, e.g. from the completion of a step it already depends on, once that
+     * step has found out what else is needed.
+     */
+    public void addDependency(String name, String dependsOn) {
+        final Node node = node(name);
+        if (node.status != Status.PENDING) {
+            throw new IllegalStateException(name + " already started");
+        }
+        node(dependsOn);
+        if (!node.dependencies.contains(dependsOn)) {
+            node.dependencies.add(dependsOn);
+        }
+        checkAcyclic();
+    }
+
+    public Status getStatus(String name) {
+        return node(name).status;
+    }
+
+    /**
+     * Returns how long the step ran, or -1 if it has not finished.
+     */
+    public long getDurationMs(String name) {
+        final Node node = node(name);
+        return node.finishedAt >= 0 ? node.finishedAt - node.startedAt : -1;
+    }
+
+    public boolean isFinished() {
+        return mFinished;
+    }
+
+    /**
+     * Starts every step that depends on nothing.
+     */
+    public void start() {
+        if (mStartedAt >= 0) {
+            throw new IllegalStateException("already started");
+        }
+        for (Node node : mNodes.values()) {
+            for (String dependency : node.dependencies) {
+                node(dependency);
+            }
+        }
+        checkAcyclic();
+        mStartedAt = SystemClock.elapsedRealtime();
+        advance();
+    }
+
+    /**
+     * Returns the graph, one step per line with what it depends on, and the timings of the
+     * steps that ran, e.g. {@code "user <- apis, cache: SUCCEEDED +12ms 340ms"}.
+     */
+    public String describe() {
+        final StringBuilder sb = new StringBuilder();
+        for (Node node : mNodes.values()) {
+            sb.append(node.name);
+            if (!node.dependencies.isEmpty()) {
+                sb.append(" <- ");
+                for (int i = 0; i < node.dependencies.size(); i++) {
+                    if (i > 0) {
+                        sb.append(", ");
+                    }
+                    sb.append(node.dependencies.get(i));
+                }
+            }
+            sb.append(": ").append(node.status);
+            if (node.startedAt >= 0) {
+                sb.append(" +").append(node.startedAt - mStartedAt).append("ms");
+            }
+            if (node.finishedAt >= 0) {
+                sb.append(' ').append(node.finishedAt - node.startedAt).append("ms");
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    private void finish(Node node, Status status) {
+        if (node.status != Status.RUNNING) {
+            throw new IllegalStateException(node.name + " completed twice");
+        }
+        node.status = status;
+        node.finishedAt = SystemClock.elapsedRealtime();
+        advance();
+    }
+
+    /**
+     * Skips what can no longer run, starts what can, and reports the end of the graph.
+     */
+    private void advance() {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Node node : mNodes.values()) {
+                if (node.status != Status.PENDING) {
+                    continue;
+                }
+                boolean ready = true;
+                boolean blocked = false;
+                for (String dependency : node.dependencies) {
+                    final Status status = mNodes.get(dependency).status;
+                    if (status == Status.FAILED || status == Status.SKIPPED) {
+                        blocked = true;
+                    } else if (status != Status.SUCCEEDED) {
+                        ready = false;
+                    }
+                }
+                if (blocked) {
+                    node.status = Status.SKIPPED;
+                    changed = true;
+                } else if (ready) {
+                    node.status = Status.RUNNING;
+                    node.startedAt = SystemClock.elapsedRealtime();
+                    // May complete synchronously and advance() again; the outer loop then
+                    // finds nothing left to do.
+                    node.step.run(new Completion(node));
+                    changed = true;
+                }
+            }
+        }
+        if (mFinished) {
+            return;
+        }
+        for (Node node : mNodes.values()) {
+            if (node.status == Status.PENDING || node.status == Status.RUNNING) {
+                return;
+            }
+        }
+        mFinished = true;
+        Log.i(TAG, "Startup took " + (SystemClock.elapsedRealtime() - mStartedAt) + "ms\n"
+                + describe());
+        if (mListener != null) {
+            mListener.onFinished(this);
+        }
+    }
+
+    private Node node(String name) {
+        final Node node = mNodes.get(name);
+        if (node == null) {
+            throw new IllegalArgumentException("unknown step " + name);
+        }
+        return node;
+    }
+
+    private void checkAcyclic() {
+        final LinkedHashMap<String, Boolean> visiting = new LinkedHashMap<String, Boolean>();
+        for (String name : mNodes.keySet()) {
+            visit(name, visiting);
+        }
+    }
+
+    /**
+     * Depth first walk; {@code visiting} maps a step to false while its dependencies are
+     * being walked and to true once they all were.
+     */
+    private void visit(String name, LinkedHashMap<String, Boolean> visiting) {
+        final Boolean done = visiting.get(name);
+        if (done != null) {
+            if (!done) {
+                throw new IllegalArgumentException("dependency cycle through " + name);
+            }
+            return;
+        }
+        visiting.put(name, false);
+        for (String dependency : mNodes.get(name).dependencies) {
+            visit(dependency, visiting);
+        }
+        visiting.put(name, true);
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.samsungsami.example.SAMInBLEws;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * An {@link UplinkTransport} that sends every reading through one of several others, the
+ * fastest healthy one.
+ *
+ * For each transport the router keeps an exponentially weighted average of the delivery
+ * latency and of the failure rate. Readings stay on the current transport for as long as it
+ * is writable and healthy, unless another one has been measured to be at least
+ * {@code SWITCH_MARGIN} faster; otherwise they go to the first transport, in the order given
+ * to {@link #setTransports}, that is writable and healthy. One reading in
+ * {@code PROBE_INTERVAL} goes to another writable transport so that its figures stay current.
+ *
+ * Moving from one writable transport to another does not replay anything: readings the old
+ * one still delivers are acknowledged as usual, and those it fails or never acknowledges are
+ * sent again by {@link SAMISession} when their ack times out. Only when the router goes from
+ * no writable transport to one, or the current transport reconnects, is it reported writable
+ * again, which replays every unacknowledged journal record.
+ */
+public class TransportRouter implements UplinkTransport {
+    private static final String TAG = TransportRouter.class.getSimpleName();
+
+    // Weight of the newest sample in the averages.
+    private static final double ALPHA = 0.2;
+    // A transport failing more often than this is unhealthy.
+    private static final double MAX_FAILURE_RATE = 0.5;
+    // How much faster another transport must be to take over from an earlier one.
+    private static final double SWITCH_MARGIN = 0.25;
+    private static final int PROBE_INTERVAL = 50;
+    // Sends whose outcome never came (e.g. connection dropped) are forgotten past this many.
+    private static final int MAX_TRACKED_SENDS = 1024;
+
+    private class Route implements Listener {
+        final UplinkTransport transport;
+        // Send time of each reading awaiting its outcome, by cid.
+        final HashMap<Long, Long> sentAt = new HashMap<Long, Long>();
+        double latencyMs = -1;
+        double failureRate = 0;
+        long delivered = 0;
+        long failed = 0;
+
+        Route(UplinkTransport transport) {
+            this.transport = transport;
+        }
+
+        boolean isHealthy() {
+            return failureRate <= MAX_FAILURE_RATE;
+        }
+
+        boolean isMuchFasterThan(Route other) {
+            return latencyMs >= 0 && other.latencyMs >= 0
+                    && latencyMs < other.latencyMs * (1 - SWITCH_MARGIN);
+        }
+
+        void onSend(long cid) {
+            if (sentAt.size() >= MAX_TRACKED_SENDS) {
+                sentAt.clear();
+            }
+            sentAt.put(cid, SystemClock.elapsedRealtime());
+        }
+
+        @Override
+        public void onWritable(UplinkTransport transport) {
+            sentAt.clear();
+            if (this == mActive) {
+                mListener.onWritable(TransportRouter.this);
+                return;
+            }
+            // Whatever was sent while nothing was writable went nowhere; have it replayed.
+            final boolean stalled = mActive == null || !mActive.transport.isWritable();
+            select();
+            if (stalled) {
+                mHandler.removeCallbacks(mNotifyWritable);
+                mHandler.post(mNotifyWritable);
+            }
+        }
+
+        @Override
+        public void onDelivered(UplinkTransport transport, long cid, boolean rejected) {
+            // A rejection still means the transport got through to SAMI.
+            final Long sent = sentAt.remove(cid);
+            if (sent != null) {
+                final long latency = SystemClock.elapsedRealtime() - sent;
+                latencyMs = latencyMs < 0 ? latency : latencyMs + ALPHA * (latency - latencyMs);
+            }
+            failureRate -= ALPHA * failureRate;
+            delivered++;
+            mListener.onDelivered(TransportRouter.this, cid, rejected);
+        }
+
+        @Override
+        public void onFailed(UplinkTransport transport, long cid) {
+            sentAt.remove(cid);
+            failureRate += ALPHA * (1 - failureRate);
+            failed++;
+            mListener.onFailed(TransportRouter.this, cid);
+            if (this == mActive && !isHealthy()) {
+                select();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return transport.getName() + " latency=" + Math.round(latencyMs) + "ms failures="
+                    + Math.round(failureRate * 100) + "% delivered=" + delivered
+                    + " failed=" + failed;
+        }
+    }
+
+    private final Handler mHandler;
+    private final HashMap<UplinkTransport, Route> mKnownRoutes =
+            new HashMap<UplinkTransport, Route>();
+    private final ArrayList<Route> mRoutes = new ArrayList<Route>();
+    private Route mActive;
+    private Listener mListener;
+    private long mSends = 0;
+
+    private final Runnable mNotifyWritable = new Runnable() {
+        @Override
+        public void run() {
+            if (mActive != null && mActive.transport.isWritable()) {
+                mListener.onWritable(TransportRouter.this);
+            }
+        }
+    };
+
+    /**
+     * @param handler handler of the session's I/O thread
+     */
+    public TransportRouter(Handler handler) {
+        mHandler = handler;
+    }
+
+    /**
+     * Sets the transports to choose from. Transports dropped from the list are closed; the
+     * figures of those kept are kept too. New transports are not opened until {@link #open()}.
+     *
+     * @param transports transports to choose from, most preferred first
+     */
+    public void setTransports(UplinkTransport[] transports) {
+        final ArrayList<Route> routes = new ArrayList<Route>();
+        for (UplinkTransport transport : transports) {
+            routes.add(routeFor(transport));
+        }
+        for (Route route : mRoutes) {
+            if (!routes.contains(route)) {
+                route.transport.close();
+            }
+        }
+        mRoutes.clear();
+        mRoutes.addAll(routes);
+        if (!mRoutes.contains(mActive)) {
+            mActive = null;
+        }
+        select();
+    }
+
+    @Override
+    public String getName() {
+        return mActive != null ? "router/" + mActive.transport.getName() : "router";
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * True if any of the transports is writable; {@link #send} then picks one of them.
+     */
+    @Override
+    public boolean isWritable() {
+        for (int i = 0; i < mRoutes.size(); i++) {
+            if (mRoutes.get(i).transport.isWritable()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Opens every transport, so that the others are ready to take over.
+     */
+    @Override
+    public void open() {
+        for (int i = 0; i < mRoutes.size(); i++) {
+            mRoutes.get(i).transport.open();
+        }
+    }
+
+    /**
+     * Reconnects the current transport and counts it as failing, so that another one takes
+     * over if it can.
+     */
+    @Override
+    public void reconnect() {
+        if (mActive == null) {
+            return;
+        }
+        mActive.failureRate = 1;
+        mActive.transport.reconnect();
+        select();
+    }
+
+    @Override
+    public void close() {
+        for (int i = 0; i < mRoutes.size(); i++) {
+            final Route route = mRoutes.get(i);
+            route.transport.close();
+            route.sentAt.clear();
+        }
+    }
+
+    @Override
+    public void send(long cid, HeartRateReading reading) {
+        select();
+        Route route = mActive;
+        if (++mSends % PROBE_INTERVAL == 0) {
+            final Route probe = pickProbe();
+            if (probe != null) {
+                route = probe;
+            }
+        }
+        if (route == null || !route.transport.isWritable()) {
+            mListener.onFailed(this, cid);
+            return;
+        }
+        route.onSend(cid);
+        route.transport.send(cid, reading);
+    }
+
+    @Override
+    public void flush() {
+        for (int i = 0; i < mRoutes.size(); i++) {
+            mRoutes.get(i).transport.flush();
+        }
+    }
+
+    public void logStats() {
+        for (int i = 0; i < mRoutes.size(); i++) {
+            final Route route = mRoutes.get(i);
+            Log.i(TAG, (route == mActive ? "* " : "  ") + route);
+        }
+    }
+
+    private Route routeFor(UplinkTransport transport) {
+        Route route = mKnownRoutes.get(transport);
+        if (route == null) {
+            route = new Route(transport);
+            mKnownRoutes.put(transport, route);
+        }
+        // Set every time: the session may have listened to it while it was not routed.
+        transport.setListener(route);
+        return route;
+    }
+
+    /**
+     * Picks the transport readings should go through now and switches to it if it is not
+     * the current one. The current one is kept while it is writable and healthy unless
+     * another is much faster.
+     */
+    private void select() {
+        final boolean keep = mActive != null && mActive.transport.isWritable()
+                && mActive.isHealthy();
+        Route best = keep ? mActive : null;
+        // In case none is healthy: the current transport if writable, else the first writable.
+        Route fallback = mActive != null && mActive.transport.isWritable() ? mActive : null;
+        for (int i = 0; i < mRoutes.size(); i++) {
+            final Route route = mRoutes.get(i);
+            if ((keep && route == mActive) || !route.transport.isWritable()) {
+                continue;
+            }
+            if (!route.isHealthy()) {
+                if (fallback == null) {
+                    fallback = route;
+                }
+            } else if (best == null || route.isMuchFasterThan(best)) {
+                best = route;
+            }
+        }
+        if (best == null) {
+            best = fallback;
+        }
+        if (best == null) {
+            // Nothing is writable; keep the current one until something reconnects.
+            if (mActive == null && !mRoutes.isEmpty()) {
+                mActive = mRoutes.get(0);
+            }
+            return;
+        }
+        if (best == mActive) {
+            return;
+        }
+        final Route previous = mActive;
+        mActive = best;
+        Log.i(TAG, "Switching uplink to " + best + (previous != null ? " from " + previous : ""));
+    }
+
+    /**
+     * Returns the writable transport other than the current one with the fewest measurements
+     * so far, or null.
+     */
+    private Route pickProbe() {
+        Route probe = null;
+        for (int i = 0; i < mRoutes.size(); i++) {
+            final Route route = mRoutes.get(i);
+            if (route == mActive || !route.transport.isWritable()) {
+                continue;
+            }
+            if (probe == null || route.delivered + route.failed < probe.delivered + probe.failed) {
+                probe = route;
+            }
+        }
+        return probe;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.samsungsami.example.SAMInBLEws;
+
+import android.os.Handler;
+
+/**
+ * Collects heart rate readings into a bounded buffer and hands them to a {@link Sink} in one
+ * flush, either when {@code maxBatchSize} readings are buffered or when the oldest buffered
+ * reading has waited {@code maxLatencyMs}, whichever happens first.
+ *
+ * All methods must be called on the thread of the {@code Handler} given to the constructor.
+ */
+public class UplinkBatcher {
+
+    public interface Sink {
+        /**
+         * Called with the buffered readings, oldest first. The array is reused by the batcher,
+         * so only the first {@code count} entries are valid and it must not be kept.
+         */
+        public void onFlush(HeartRateReading[] readings, int count);
+    }
+
+    private final Handler mHandler;
+    private final Sink mSink;
+    private final int mMaxBatchSize;
+    private final long mMaxLatencyMs;
+
+    private final HeartRateReading[] mReadings;
+    private int mCount = 0;
+    private boolean mFlushScheduled = false;
+
+    private final Runnable mDeadlineFlush = new Runnable() {
+        @Override
+        public void run() {
+            mFlushScheduled = false;
+            flush();
+        }
+    };
+
+    /**
+     * @param handler handler of the thread that adds readings and receives the flushes
+     * @param maxBatchSize number of readings that triggers an immediate flush, at least 1
+     * @param maxLatencyMs longest time a reading is held before being flushed
+     * @param sink receiver of the flushed readings
+     */
+    public UplinkBatcher(Handler handler, int maxBatchSize, long maxLatencyMs, Sink sink) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be at least 1");
+        }
+        mHandler = handler;
+        mSink = sink;
+        mMaxBatchSize = maxBatchSize;
+        mMaxLatencyMs = maxLatencyMs < 0 ? 0 : maxLatencyMs;
+        mReadings = new HeartRateReading[maxBatchSize];
+    }
+
+    public int getMaxBatchSize() {
+        return mMaxBatchSize;
+    }
+
+    public long getMaxLatencyMs() {
+        return mMaxLatencyMs;
+    }
+
+    /**
+     * Buffers one reading, flushing right away if the buffer becomes full.
+     */
+    public void add(HeartRateReading reading) {
+        mReadings[mCount] = reading;
+        mCount++;
+
+        if (mCount >= mMaxBatchSize) {
+            flush();
+        } else if (!mFlushScheduled) {
+            // The deadline is measured from the oldest reading in the buffer.
+            mFlushScheduled = true;
+            mHandler.postDelayed(mDeadlineFlush, mMaxLatencyMs);
+        }
+    }
+
+    /**
+     * Hands every buffered reading to the sink and empties the buffer.
+     */
+    public void flush() {
+        if (mFlushScheduled) {
+            mHandler.removeCallbacks(mDeadlineFlush);
+            mFlushScheduled = false;
+        }
+        if (mCount == 0) {
+            return;
+        }
+        final int count = mCount;
+        mCount = 0;
+        mSink.onFlush(mReadings, count);
+        releaseReadings(count);
+    }
+
+    /**
+     * Drops any buffered readings without flushing them.
+     */
+    public void clear() {
+        if (mFlushScheduled) {
+            mHandler.removeCallbacks(mDeadlineFlush);
+            mFlushScheduled = false;
+        }
+        releaseReadings(mCount);
+        mCount = 0;
+    }
+
+    private void releaseReadings(int count) {
+        for (int i = 0; i < count; i++) {
+            mReadings[i] = null;
+        }
+    }
+}
@@ -0,0 +1,623 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.samsungsami.example.SAMInBLEws;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, segmented on-disk journal of outbound heart rate readings.
+ *
+ * Every reading is appended before it is sent, read back in order while the websocket is
+ * open, and released with {@link #acknowledge(long)} once it has been delivered. Released
+ * segments are deleted, the total size on disk is bounded by dropping the oldest segment,
+ * and the journal is rebuilt from its files when the process starts again.
+ *
+ * Record layout: {@code int payloadLength, int crc32(payload), payload} where the payload is
+ * {@code long ts, int heartRate, float rmssd, float sdnn, float pnn50, short sdidLength,
+ * byte[] sdid (UTF-8)}. A torn record at the tail of a segment is cut off during recovery.
+ * The layout version is part of the segment file names; segments of the first layout, which
+ * had no HRV metrics, are converted when the journal is opened.
+ *
+ * Not thread safe; SAMISession only uses it from its websocket I/O thread.
+ */
+public class UplinkJournal {
+    private static final String TAG = UplinkJournal.class.getSimpleName();
+
+    public static final int DEFAULT_SEGMENT_BYTES = 64 * 1024;
+    public static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+    private static final int FORMAT_VERSION = 2;
+    private static final String SEGMENT_SUFFIX = ".v" + FORMAT_VERSION + ".seg";
+    // Segments of version 1: {@code long ts, int heartRate, short sdidLength, byte[] sdid}.
+    private static final String LEGACY_SEGMENT_SUFFIX = ".seg";
+    private static final int LEGACY_FIXED_PAYLOAD_BYTES = 8 + 4 + 2;
+    private static final String ACK_FILE = "journal.ack";
+    private static final int HEADER_BYTES = 8;
+    private static final int FIXED_PAYLOAD_BYTES = 8 + 4 + 3 * 4 + 2;
+    private static final int MAX_SDID_BYTES = 256;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * A record read back from the journal. Instances are meant to be reused across reads.
+     */
+    public static class Record {
+        public String sdid;
+        public long ts;
+        public int heartRate;
+        public float rmssd;
+        public float sdnn;
+        public float pnn50;
+        /** Position just past this record; pass it to {@link #acknowledge(long)}. */
+        public long position;
+    }
+
+    private static class Segment {
+        final long seq;
+        final File file;
+        long length;
+
+        Segment(long seq, File file, long length) {
+            this.seq = seq;
+            this.file = file;
+            this.length = length;
+        }
+    }
+
+    private final File mDir;
+    private final int mSegmentBytes;
+    private final long mMaxBytes;
+
+    private final ArrayList<Segment> mSegments = new ArrayList<Segment>();
+    private long mTotalBytes = 0;
+
+    private RandomAccessFile mWriter;
+    private RandomAccessFile mReader;
+    private Segment mReaderSegment;
+    private RandomAccessFile mAckFile;
+
+    private long mAckPosition;
+    private long mReadPosition;
+
+    private final ByteBuffer mBuffer =
+            ByteBuffer.allocate(HEADER_BYTES + FIXED_PAYLOAD_BYTES + MAX_SDID_BYTES);
+    private final CRC32 mCrc = new CRC32();
+    private String mLastSdid;
+    private byte[] mLastSdidBytes = new byte[0];
+
+    /**
+     * Opens the journal in {@code dir}, recovering any readings left by a previous process.
+     */
+    public UplinkJournal(File dir, int segmentBytes, long maxBytes) throws IOException {
+        mDir = dir;
+        mSegmentBytes = segmentBytes;
+        mMaxBytes = maxBytes;
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("Unable to create journal directory " + mDir);
+        }
+        recover();
+    }
+
+    public UplinkJournal(File dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_BYTES, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Returns true if there are records that have not been read since the last rewind.
+     */
+    public boolean hasUnread() {
+        return mReadPosition != endPosition();
+    }
+
+    /**
+     * Returns true if every appended record has been acknowledged.
+     */
+    public boolean isEmpty() {
+        return mAckPosition == endPosition();
+    }
+
+    public long sizeInBytes() {
+        return mTotalBytes;
+    }
+
+    /**
+     * Appends one reading. The record reaches the OS before this returns, so it survives the
+     * death of the process.
+     */
+    public void append(String sdid, HeartRateReading reading) throws IOException {
+        final int payloadLength = encodeRecord(reading.ts, reading.heartRate, reading.rmssd,
+                reading.sdnn, reading.pnn50, encodeSdid(sdid));
+
+        Segment tail = mSegments.get(mSegments.size() - 1);
+        if (tail.length > 0 && tail.length + HEADER_BYTES + payloadLength > mSegmentBytes) {
+            tail = rollSegment();
+        }
+        mWriter.write(mBuffer.array(), 0, HEADER_BYTES + payloadLength);
+        tail.length += HEADER_BYTES + payloadLength;
+        mTotalBytes += HEADER_BYTES + payloadLength;
+
+        enforceSizeBound();
+    }
+
+    /**
+     * Reads the next unread record into {@code out}.
+     *
+     * @return false if every record has already been read
+     */
+    public boolean read(Record out) throws IOException {
+        while (true) {
+            final Segment segment = findSegment(seqOf(mReadPosition));
+            if (segment == null) {
+                return false;
+            }
+            final long offset = offsetOf(mReadPosition);
+            if (offset < segment.length) {
+                final RandomAccessFile reader = readerFor(segment);
+                reader.seek(offset);
+                final int payloadLength = reader.readInt();
+                reader.readInt(); // crc, already validated during recovery or written by us
+                out.ts = reader.readLong();
+                out.heartRate = reader.readInt();
+                out.rmssd = reader.readFloat();
+                out.sdnn = reader.readFloat();
+                out.pnn50 = reader.readFloat();
+                final int sdidLength = reader.readShort();
+                mReadPosition = position(segment.seq, offset + HEADER_BYTES + payloadLength);
+                if (sdidLength != payloadLength - FIXED_PAYLOAD_BYTES) {
+                    // Passed the CRC but is not a record of this layout; skip rather than
+                    // stop the journal at it for good.
+                    Log.w(TAG, "Skipping malformed record in " + segment.file.getName()
+                            + " at " + offset);
+                    continue;
+                }
+                final byte[] sdidBytes = new byte[sdidLength];
+                reader.readFully(sdidBytes);
+                out.sdid = decodeSdid(sdidBytes);
+                out.position = mReadPosition;
+                return true;
+            }
+            final int index = mSegments.indexOf(segment);
+            if (index == mSegments.size() - 1) {
+                return false;
+            }
+            mReadPosition = position(mSegments.get(index + 1).seq, 0);
+        }
+    }
+
+    /**
+     * Moves the read cursor back to the oldest unacknowledged record, so that records that
+     * were read but never delivered are read again.
+     */
+    public void rewind() {
+        mReadPosition = mAckPosition;
+    }
+
+    /**
+     * Releases every record up to and including the one whose {@link Record#position} is
+     * given, and deletes segments that no longer hold unacknowledged records.
+     */
+    public void acknowledge(long position) throws IOException {
+        if (compare(position, mAckPosition) <= 0) {
+            return;
+        }
+        mAckPosition = position;
+        if (compare(mReadPosition, mAckPosition) < 0) {
+            mReadPosition = mAckPosition;
+        }
+        mAckFile.seek(0);
+        mAckFile.writeLong(mAckPosition);
+        compact();
+    }
+
+    /**
+     * Deletes every record, acknowledged or not.
+     */
+    public void clear() throws IOException {
+        closeFiles();
+        for (Segment segment : mSegments) {
+            segment.file.delete();
+        }
+        new File(mDir, ACK_FILE).delete();
+        mSegments.clear();
+        recover();
+    }
+
+    public void close() {
+        closeFiles();
+    }
+
+    private void recover() throws IOException {
+        mSegments.clear();
+        mTotalBytes = 0;
+        convertLegacySegments();
+
+        final File[] files = mDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        final long[] seqs = sortedSeqs(files, SEGMENT_SUFFIX);
+        for (long seq : seqs) {
+            if (seq < 0) {
+                continue;
+            }
+            final File file = segmentFile(seq);
+            final long length = validLength(file);
+            mSegments.add(new Segment(seq, file, length));
+            mTotalBytes += length;
+        }
+        if (mSegments.isEmpty()) {
+            mSegments.add(new Segment(0, segmentFile(0), 0));
+        }
+
+        final Segment tail = mSegments.get(mSegments.size() - 1);
+        mWriter = new RandomAccessFile(tail.file, "rw");
+        mWriter.seek(tail.length);
+
+        mAckFile = new RandomAccessFile(new File(mDir, ACK_FILE), "rw");
+        long ack = mAckFile.length() >= 8 ? mAckFile.readLong() : 0;
+        final Segment ackSegment = findSegment(seqOf(ack));
+        if (ackSegment == null || offsetOf(ack) > ackSegment.length) {
+            ack = position(mSegments.get(0).seq, 0);
+        }
+        mAckPosition = ack;
+        mReadPosition = ack;
+        compact();
+
+        Log.d(TAG, "Recovered " + mSegments.size() + " segments, " + mTotalBytes + " bytes");
+    }
+
+    /**
+     * Rewrites the segments of layout version 1 in the current layout, with NaN HRV metrics,
+     * and deletes them. Records already acknowledged are left out and the ack position moves
+     * to the start of the first converted segment, since the offsets of the old layout do not
+     * hold any more.
+     */
+    private void convertLegacySegments() throws IOException {
+        final File[] files = mDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(LEGACY_SEGMENT_SUFFIX) && !name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null || files.length == 0) {
+            return;
+        }
+        final File ackFile = new File(mDir, ACK_FILE);
+        long ack = 0;
+        if (ackFile.length() >= 8) {
+            final RandomAccessFile in = new RandomAccessFile(ackFile, "r");
+            try {
+                ack = in.readLong();
+            } finally {
+                in.close();
+            }
+        }
+
+        long firstSeq = -1;
+        int converted = 0;
+        final byte[] payload = new byte[LEGACY_FIXED_PAYLOAD_BYTES + MAX_SDID_BYTES];
+        for (long seq : sortedSeqs(files, LEGACY_SEGMENT_SUFFIX)) {
+            if (seq < 0 || seq < seqOf(ack)) {
+                continue;
+            }
+            if (firstSeq < 0) {
+                firstSeq = seq;
+            }
+            final RandomAccessFile in = new RandomAccessFile(
+                    new File(mDir, String.format("%010d", seq) + LEGACY_SEGMENT_SUFFIX), "r");
+            final RandomAccessFile out = new RandomAccessFile(segmentFile(seq), "rw");
+            try {
+                out.setLength(0);
+                final long length = in.length();
+                long offset = seq == seqOf(ack) ? offsetOf(ack) : 0;
+                while (offset + HEADER_BYTES <= length) {
+                    in.seek(offset);
+                    final int payloadLength = in.readInt();
+                    final int crc = in.readInt();
+                    if (payloadLength < LEGACY_FIXED_PAYLOAD_BYTES || payloadLength > payload.length
+                            || offset + HEADER_BYTES + payloadLength > length) {
+                        break;
+                    }
+                    in.readFully(payload, 0, payloadLength);
+                    mCrc.reset();
+                    mCrc.update(payload, 0, payloadLength);
+                    final ByteBuffer record = ByteBuffer.wrap(payload, 0, payloadLength);
+                    final long ts = record.getLong();
+                    final int heartRate = record.getInt();
+                    final int sdidLength = record.getShort();
+                    if ((int) mCrc.getValue() != crc
+                            || sdidLength != payloadLength - LEGACY_FIXED_PAYLOAD_BYTES) {
+                        break;
+                    }
+                    final byte[] sdid = Arrays.copyOfRange(payload,
+                            LEGACY_FIXED_PAYLOAD_BYTES, payloadLength);
+                    final int newLength = encodeRecord(ts, heartRate, Float.NaN, Float.NaN,
+                            Float.NaN, sdid);
+                    out.write(mBuffer.array(), 0, HEADER_BYTES + newLength);
+                    offset += HEADER_BYTES + payloadLength;
+                    converted++;
+                }
+            } finally {
+                in.close();
+                out.close();
+            }
+        }
+
+        // The ack is moved before the old segments go, so a crash in between converts them
+        // again instead of applying an old offset to a converted segment.
+        if (firstSeq >= 0) {
+            final RandomAccessFile out = new RandomAccessFile(ackFile, "rw");
+            try {
+                out.seek(0);
+                out.writeLong(position(firstSeq, 0));
+            } finally {
+                out.close();
+            }
+        }
+        for (File file : files) {
+            if (!file.delete()) {
+                Log.w(TAG, "Unable to delete " + file);
+            }
+        }
+        Log.i(TAG, "Converted " + converted + " records of " + files.length
+                + " version 1 segments");
+    }
+
+    /**
+     * Encodes a record into {@code mBuffer}, header included.
+     *
+     * @return the length of its payload
+     */
+    private int encodeRecord(long ts, int heartRate, float rmssd, float sdnn, float pnn50,
+                             byte[] sdidBytes) {
+        final int payloadLength = FIXED_PAYLOAD_BYTES + sdidBytes.length;
+        mBuffer.clear();
+        mBuffer.position(HEADER_BYTES);
+        mBuffer.putLong(ts);
+        mBuffer.putInt(heartRate);
+        mBuffer.putFloat(rmssd);
+        mBuffer.putFloat(sdnn);
+        mBuffer.putFloat(pnn50);
+        mBuffer.putShort((short) sdidBytes.length);
+        mBuffer.put(sdidBytes);
+        mCrc.reset();
+        mCrc.update(mBuffer.array(), HEADER_BYTES, payloadLength);
+        mBuffer.putInt(0, payloadLength);
+        mBuffer.putInt(4, (int) mCrc.getValue());
+        return payloadLength;
+    }
+
+    /**
+     * Sequence numbers of segment {@code files} named with {@code suffix}, sorted; -1 for
+     * names that are not a number.
+     */
+    private static long[] sortedSeqs(File[] files, String suffix) {
+        final long[] seqs = new long[files == null ? 0 : files.length];
+        for (int i = 0; i < seqs.length; i++) {
+            final String name = files[i].getName();
+            try {
+                seqs[i] = Long.parseLong(name.substring(0, name.length() - suffix.length()));
+            } catch (NumberFormatException e) {
+                seqs[i] = -1;
+            }
+        }
+        Arrays.sort(seqs);
+        return seqs;
+    }
+
+    /**
+     * Returns the length of the prefix of {@code file} made of intact records, cutting off
+     * anything after it.
+     */
+    private long validLength(File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            final long fileLength = raf.length();
+            final byte[] payload = new byte[FIXED_PAYLOAD_BYTES + MAX_SDID_BYTES];
+            long offset = 0;
+            while (offset + HEADER_BYTES <= fileLength) {
+                raf.seek(offset);
+                final int payloadLength = raf.readInt();
+                final int crc = raf.readInt();
+                if (payloadLength < FIXED_PAYLOAD_BYTES || payloadLength > payload.length
+                        || offset + HEADER_BYTES + payloadLength > fileLength) {
+                    break;
+                }
+                raf.readFully(payload, 0, payloadLength);
+                mCrc.reset();
+                mCrc.update(payload, 0, payloadLength);
+                if ((int) mCrc.getValue() != crc) {
+                    break;
+                }
+                offset += HEADER_BYTES + payloadLength;
+            }
+            if (offset != fileLength) {
+                Log.w(TAG, "Truncating torn tail of " + file.getName() + " at " + offset);
+                raf.setLength(offset);
+            }
+            return offset;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private Segment rollSegment() throws IOException {
+        final Segment tail = mSegments.get(mSegments.size() - 1);
+        mWriter.close();
+        final Segment next = new Segment(tail.seq + 1, segmentFile(tail.seq + 1), 0);
+        mSegments.add(next);
+        mWriter = new RandomAccessFile(next.file, "rw");
+        mWriter.setLength(0);
+        return next;
+    }
+
+    private void enforceSizeBound() throws IOException {
+        while (mTotalBytes > mMaxBytes && mSegments.size() > 1) {
+            final Segment oldest = mSegments.get(0);
+            Log.w(TAG, "Journal over " + mMaxBytes + " bytes, dropping segment " + oldest.seq);
+            final long next = position(mSegments.get(1).seq, 0);
+            if (seqOf(mReadPosition) == oldest.seq) {
+                mReadPosition = next;
+            }
+            if (seqOf(mAckPosition) == oldest.seq) {
+                mAckPosition = next;
+                mAckFile.seek(0);
+                mAckFile.writeLong(mAckPosition);
+            }
+            deleteSegment(oldest);
+        }
+    }
+
+    /**
+     * Deletes segments that are entirely acknowledged. The segment being written is kept.
+     */
+    private void compact() {
+        final long ackSeq = seqOf(mAckPosition);
+        while (mSegments.size() > 1) {
+            final Segment oldest = mSegments.get(0);
+            final boolean released = oldest.seq < ackSeq
+                    || (oldest.seq == ackSeq && offsetOf(mAckPosition) >= oldest.length);
+            if (!released) {
+                break;
+            }
+            if (oldest.seq == ackSeq) {
+                mAckPosition = position(mSegments.get(1).seq, 0);
+                if (compare(mReadPosition, mAckPosition) < 0) {
+                    mReadPosition = mAckPosition;
+                }
+            }
+            deleteSegment(oldest);
+        }
+    }
+
+    private void deleteSegment(Segment segment) {
+        if (segment == mReaderSegment) {
+            closeReader();
+        }
+        mSegments.remove(segment);
+        mTotalBytes -= segment.length;
+        if (!segment.file.delete()) {
+            Log.w(TAG, "Unable to delete " + segment.file);
+        }
+    }
+
+    private RandomAccessFile readerFor(Segment segment) throws IOException {
+        if (mReaderSegment != segment) {
+            closeReader();
+            mReader = new RandomAccessFile(segment.file, "r");
+            mReaderSegment = segment;
+        }
+        return mReader;
+    }
+
+    private void closeReader() {
+        if (mReader != null) {
+            try {
+                mReader.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to close reader: " + e.getMessage());
+            }
+        }
+        mReader = null;
+        mReaderSegment = null;
+    }
+
+    private void closeFiles() {
+        closeReader();
+        try {
+            if (mWriter != null) {
+                mWriter.close();
+            }
+            if (mAckFile != null) {
+                mAckFile.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to close journal: " + e.getMessage());
+        }
+        mWriter = null;
+        mAckFile = null;
+    }
+
+    private Segment findSegment(long seq) {
+        for (int i = 0; i < mSegments.size(); i++) {
+            if (mSegments.get(i).seq == seq) {
+                return mSegments.get(i);
+            }
+        }
+        return null;
+    }
+
+    private long endPosition() {
+        final Segment tail = mSegments.get(mSegments.size() - 1);
+        return position(tail.seq, tail.length);
+    }
+
+    private File segmentFile(long seq) {
+        return new File(mDir, String.format("%010d", seq) + SEGMENT_SUFFIX);
+    }
+
+    private byte[] encodeSdid(String sdid) {
+        if (sdid == null) {
+            sdid = "";
+        }
+        if (!sdid.equals(mLastSdid)) {
+            byte[] bytes = sdid.getBytes(UTF8);
+            if (bytes.length > MAX_SDID_BYTES) {
+                bytes = Arrays.copyOf(bytes, MAX_SDID_BYTES);
+            }
+            mLastSdid = sdid;
+            mLastSdidBytes = bytes;
+        }
+        return mLastSdidBytes;
+    }
+
+    private String decodeSdid(byte[] bytes) {
+        // A session almost always uses the same sdid, so reuse the last decoded string.
+        if (mLastSdid != null && Arrays.equals(bytes, mLastSdidBytes)) {
+            return mLastSdid;
+        }
+        return new String(bytes, UTF8);
+    }
+
+    // Positions pack the segment number in the high 32 bits and the byte offset in the low 32.
+    private static long position(long seq, long offset) {
+        return (seq << 32) | offset;
+    }
+
+    private static long seqOf(long position) {
+        return position >>> 32;
+    }
+
+    private static long offsetOf(long position) {
+        return position & 0xffffffffL;
+    }
+
+    private static int compare(long a, long b) {
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+}
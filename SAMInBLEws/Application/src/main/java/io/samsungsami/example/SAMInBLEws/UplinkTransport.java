@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.samsungsami.example.SAMInBLEws;
+
+/**
+ * A way of getting heart rate readings to SAMI.
+ *
+ * {@link SAMISession} gives every reading a client id ({@code cid}) and keeps it in its
+ * in-flight window, and in the journal if there is one, until the transport reports it
+ * delivered. Readings not reported in time are sent again, so a transport only has to make a
+ * single attempt per {@link #send} call.
+ *
+ * All methods are called on the session's I/O thread, and listener callbacks must be made on
+ * that thread too.
+ */
+public interface UplinkTransport {
+
+    public interface Listener {
+        /**
+         * The transport can take readings, e.g. because it has (re)connected. Readings sent
+         * through it earlier and not yet delivered never will be.
+         */
+        public void onWritable(UplinkTransport transport);
+
+        /**
+         * The reading sent with {@code cid} is stored by SAMI, or was rejected in a way that
+         * sending it again cannot fix.
+         */
+        public void onDelivered(UplinkTransport transport, long cid, boolean rejected);
+
+        /**
+         * The reading sent with {@code cid} did not get through; it is sent again once its
+         * ack timeout expires.
+         */
+        public void onFailed(UplinkTransport transport, long cid);
+    }
+
+    /**
+     * Short name for logs.
+     */
+    public String getName();
+
+    public void setListener(Listener listener);
+
+    /**
+     * True if readings given to {@link #send} now go out without waiting for a connection.
+     */
+    public boolean isWritable();
+
+    /**
+     * Starts connecting if the transport needs a connection and has none. {@link
+     * Listener#onWritable} follows once it is writable.
+     */
+    public void open();
+
+    /**
+     * Drops the connection and opens a new one. Called when acks stop coming back.
+     */
+    public void reconnect();
+
+    /**
+     * Drops the connection and stops reconnecting until {@link #open()} is called again.
+     */
+    public void close();
+
+    /**
+     * Sends {@code reading} as message {@code cid}. The transport may hold it until {@link
+     * #flush()} to send it together with others.
+     */
+    public void send(long cid, HeartRateReading reading);
+
+    /**
+     * Ends a run of {@link #send} calls; whatever is held back goes out now.
+     */
+    public void flush();
+}
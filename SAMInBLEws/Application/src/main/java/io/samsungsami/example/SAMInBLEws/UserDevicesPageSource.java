@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.samsungsami.example.SAMInBLEws;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Pages of a user's devices, fetched with the call behind {@code UsersApi.getUserDevices()}
+ * but parsed by {@link SAMIDeviceManager#parseDevices} while the response is read.
+ */
+public class UserDevicesPageSource implements SamiPager.PageSource<SAMIDeviceWrapper> {
+    private final String mUserId;
+    private final String mAccessToken;
+
+    public UserDevicesPageSource(String userId, String accessToken) {
+        mUserId = userId;
+        mAccessToken = accessToken;
+    }
+
+    @Override
+    public int fetchPage(int offset, int count, List<SAMIDeviceWrapper> out) throws IOException {
+        final HttpGet request = SamiHttpClient.authorize(new HttpGet(SAMISession.SAMI_REST_URL
+                + "/users/" + mUserId + "/devices?offset=" + offset + "&count=" + count
+                + "&includeProperties=false"), mAccessToken);
+        try {
+            final HttpResponse response = SamiHttpClient.getInstance().execute(request);
+            final HttpEntity entity = response.getEntity();
+            final int status = response.getStatusLine().getStatusCode();
+            if (status != 200) {
+                if (entity != null) {
+                    entity.consumeContent();
+                }
+                throw new IOException("HTTP " + status);
+            }
+            return SAMIDeviceManager.parseDevices(entity.getContent(), out);
+        } catch (IOException e) {
+            request.abort();
+            throw e;
+        }
+    }
+}
@@ -20,7 +20,6 @@ public class Websocket {
     private WebsocketHandler wssClient;
 
     public void connect(String url, WebsocketEvents websocketEvents){
-        System.setProperty("http.keepAlive", "false");
         HttpsURLConnection
                 .setDefaultHostnameVerifier(new HostnameVerifier() {
 
@@ -33,8 +32,12 @@ public class Websocket {
 
         WebSocketImpl.DEBUG = true;
         try {
-            wssClient = new WebsocketHandler( new URI( url ), websocketEvents );
-            wssClient.setSocket( factory.createSocket() );
+            URI uri = new URI( url );
+            wssClient = new WebsocketHandler( uri, websocketEvents );
+            // Only wss needs TLS; a ws relay, e.g. on the local network, takes plain sockets.
+            if ("wss".equalsIgnoreCase(uri.getScheme())) {
+                wssClient.setSocket( factory.createSocket() );
+            }
             wssClient.connectBlocking();
         } catch (URISyntaxException e) {
             e.printStackTrace();
@@ -61,6 +64,11 @@ public class Websocket {
             wssClient.send(message);
     }
 
+    public void send(byte[] data){
+        if(wssClient != null)
+            wssClient.send(data);
+    }
+
     public boolean isConnected(){
         return (wssClient != null && wssClient.isOpen());
     }
@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.samsungsami.example.SAMInBLEws;
+
+import android.os.Handler;
+import android.util.Log;
+
+import org.java_websocket.handshake.ServerHandshake;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Sends readings over the SAMI websocket, opened with {@code ack=true} so that every message
+ * is acknowledged with the {@code cid} it was sent with.
+ *
+ * Readings go out as one JSON text frame each, or, once {@link #setRelayUrl} points it at a
+ * relay of ours, as {@link CompactFrameEncoder} binary frames of up to
+ * {@link #MAX_READINGS_PER_FRAME} readings. The relay does not ack, so those readings count
+ * as delivered once their frame is sent.
+ *
+ * The websocket is (re)connected by a {@link ReconnectScheduler}; every connection registers
+ * the devices it sends for before their first reading.
+ */
+public class WebsocketTransport implements UplinkTransport {
+    private static final String TAG = WebsocketTransport.class.getSimpleName();
+
+    public static final int MAX_READINGS_PER_FRAME = 64;
+
+    private static final String TYPE = "type";
+    private static final String SOURCE_DEVICE = "sdid";
+    private static final String AUTHORIZATION = "Authorization";
+
+    private final Handler mHandler;
+    private final SAMISession mSession;
+    private Listener mListener;
+
+    private Websocket mWebsocket;
+    private final ReconnectScheduler mReconnectScheduler;
+
+    // When set, readings go to this relay as compact binary frames instead of to SAMI.
+    private String mRelayUrl = null;
+
+    private final SamiMessageEncoder mMessageEncoder = new SamiMessageEncoder(
+            SAMISession.HEART_RATE, SAMISession.RMSSD, SAMISession.SDNN, SAMISession.PNN50);
+    private final CompactFrameEncoder mFrameEncoder = new CompactFrameEncoder();
+    // Ids of the readings in the binary frame being built.
+    private long[] mFrameCids = new long[16];
+    private int mFrameCount = 0;
+
+    // True once the connection is open and the selected device registered.
+    private boolean mRegistered = false;
+    // Every SAMI device registered on the current connection.
+    private final HashSet<String> mRegisteredSdids = new HashSet<String>();
+
+    /**
+     * @param handler handler of the session's I/O thread
+     */
+    public WebsocketTransport(Handler handler, SAMISession session) {
+        mHandler = handler;
+        mSession = session;
+        mReconnectScheduler = new ReconnectScheduler(mHandler, new ReconnectScheduler.Connector() {
+            @Override
+            public void connect() {
+                connectWebsocket();
+            }
+        });
+    }
+
+    @Override
+    public String getName() {
+        return mRelayUrl != null ? "relay" : "websocket";
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public void setReconnectListener(ReconnectScheduler.Listener listener) {
+        mReconnectScheduler.setListener(listener);
+    }
+
+    /**
+     * Points the transport at a relay, or back at SAMI with null. The current connection, if
+     * any, is dropped and the reconnect goes to the new endpoint.
+     */
+    public void setRelayUrl(String url) {
+        if (url == null ? mRelayUrl == null : url.equals(mRelayUrl)) {
+            return;
+        }
+        mRelayUrl = url;
+        if (mWebsocket != null && (mWebsocket.isConnecting() || mWebsocket.isConnected())) {
+            // onClose reports the loss and the scheduler reconnects to the new URL.
+            mWebsocket.disconnect();
+        }
+    }
+
+    @Override
+    public boolean isWritable() {
+        return mRegistered && mWebsocket != null && mWebsocket.isConnected();
+    }
+
+    /**
+     * Opens the websocket if it is not already open. Requests made while a reconnect is
+     * already pending or backing off are folded into it.
+     */
+    @Override
+    public void open() {
+        mReconnectScheduler.requestConnect();
+    }
+
+    @Override
+    public void reconnect() {
+        if (mWebsocket != null && (mWebsocket.isConnecting() || mWebsocket.isConnected())) {
+            mWebsocket.disconnect();
+        } else {
+            open();
+        }
+    }
+
+    @Override
+    public void close() {
+        mReconnectScheduler.stop();
+        if (mWebsocket != null) {
+            mWebsocket.disconnect();
+        }
+        mWebsocket = null;
+        mRegistered = false;
+        mRegisteredSdids.clear();
+        mFrameEncoder.discardFrame();
+        mFrameCount = 0;
+    }
+
+    @Override
+    public void send(long cid, HeartRateReading reading) {
+        if (!isWritable()) {
+            mListener.onFailed(this, cid);
+            return;
+        }
+        try {
+            ensureRegistered(reading.sdid);
+            if (mRelayUrl == null) {
+                mWebsocket.send(getWSMessage(reading, cid));
+                return;
+            }
+        } catch (RuntimeException e) {
+            // The socket closed under us; onClose() is on its way.
+            Log.w(TAG, "send: " + e.getMessage());
+            mListener.onFailed(this, cid);
+            return;
+        }
+        mFrameEncoder.add(reading.sdid, reading.heartRate, reading.ts,
+                reading.rmssd, reading.sdnn, reading.pnn50);
+        if (mFrameCount == mFrameCids.length) {
+            mFrameCids = Arrays.copyOf(mFrameCids, mFrameCount * 2);
+        }
+        mFrameCids[mFrameCount++] = cid;
+        if (mFrameCount >= MAX_READINGS_PER_FRAME) {
+            flush();
+        }
+    }
+
+    /**
+     * Sends the binary frame holding the readings given since the last call, if any.
+     */
+    @Override
+    public void flush() {
+        if (mFrameCount == 0) {
+            return;
+        }
+        final int count = mFrameCount;
+        mFrameCount = 0;
+        boolean sent = false;
+        try {
+            mWebsocket.send(mFrameEncoder.finishFrame());
+            sent = true;
+            Log.d(TAG, "flush: " + mFrameEncoder.getReadingCount() + " readings in "
+                    + mFrameEncoder.getWireBytes() + " bytes ("
+                    + mFrameEncoder.getBodyBytes() + " before deflate)");
+        } catch (RuntimeException e) {
+            Log.w(TAG, "flush: " + e.getMessage());
+        }
+        for (int i = 0; i < count; i++) {
+            if (sent) {
+                mListener.onDelivered(this, mFrameCids[i], false);
+            } else {
+                mListener.onFailed(this, mFrameCids[i]);
+            }
+        }
+    }
+
+    /**
+     * Setup websocket bidirectional pipeline and register to SAMI. Only called by
+     * mReconnectScheduler; everyone else goes through open().
+     */
+    private void connectWebsocket() {
+        if(mWebsocket == null) {
+            mWebsocket = new Websocket();
+        }
+
+        if (mWebsocket.isConnected()) {
+            mReconnectScheduler.onConnected();
+            return;
+        }
+        if(!mWebsocket.isConnecting()) {
+            final String url = mRelayUrl != null ? mRelayUrl : SAMISession.SAMI_WEBSOCKET_URL;
+            mWebsocket.connect(url, new WebsocketEvents() {
+                @Override
+                public void onOpen(ServerHandshake handshakedata) {
+                    // Callbacks arrive on the websocket library's thread; hop back to the writer.
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (mWebsocket == null) {
+                                return;
+                            }
+                            mRegisteredSdids.clear();
+                            // The relay starts a new sdid dictionary and deflate stream per connection.
+                            mFrameEncoder.reset();
+                            mFrameCount = 0;
+                            final String deviceId = mSession.getDeviceId();
+                            if (deviceId != null) {
+                                ensureRegistered(deviceId);
+                            }
+                            mRegistered = true;
+                            mReconnectScheduler.onConnected();
+                            mListener.onWritable(WebsocketTransport.this);
+                        }
+                    });
+                }
+
+                @Override
+                public void onMessage(String message) {
+                    JSONObject json;
+                    try {
+                        json = new JSONObject(message);
+                    } catch (JSONException e) {
+                        json = null;
+                    }
+                    final long cid = json != null ? parseAckCid(json) : -1;
+                    if (cid < 0) {
+                        Log.d(TAG, "WebSocket: onMessage(" + message + ")");
+                        return;
+                    }
+                    final boolean rejected = json.has("error");
+                    if (rejected) {
+                        Log.w(TAG, "WebSocket: message " + cid + " rejected: " + message);
+                    }
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            mListener.onDelivered(WebsocketTransport.this, cid, rejected);
+                        }
+                    });
+                 }
+
+                @Override
+                public void onClose(int code, String reason, boolean remote) {
+                    Log.d(TAG, "WebSocket: onClose() code = " + code + "; reason = " + reason + "; remote = " + remote);
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            mRegistered = false;
+                            mRegisteredSdids.clear();
+                            mReconnectScheduler.onConnectionLost();
+                        }
+                    });
+                 }
+
+                @Override
+                public void onError(Exception ex) {
+                    Log.d(TAG, "WebSocket: onError() errorMsg = " + ex.getMessage());
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            mReconnectScheduler.onConnectionLost();
+                        }
+                    });
+                }
+            });
+            // connect() blocks until the handshake is over; a failure that never reached the
+            // callbacks (bad URI, socket creation error) still has to be reported.
+            if (!mWebsocket.isConnected() && !mWebsocket.isConnecting()) {
+                mReconnectScheduler.onConnectionLost();
+            }
+        }
+    }
+
+    /**
+     * Registers {@code sdid} on the current websocket connection unless it already is, so that
+     * one connection can carry the readings of several devices.
+     */
+    private void ensureRegistered(String sdid) {
+        if (sdid == null || mRegisteredSdids.contains(sdid)) {
+            return;
+        }
+        final String message = getWSRegisterMessage(sdid);
+        mWebsocket.send(message);
+        mRegisteredSdids.add(sdid);
+        Log.d(TAG, "WebSocket: registering device " + sdid);
+    }
+
+    /**
+     * Returns JSON payload of the registration message for Bi-directional websocket
+     * @return
+     */
+    private String getWSRegisterMessage(String sdid){
+        JSONObject message = new JSONObject();
+        try {
+            message.put(TYPE, "register");
+            message.put(SOURCE_DEVICE, sdid);
+            message.put(AUTHORIZATION, "bearer " + mSession.getAccessToken());
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return message.toString();
+    }
+
+    /**
+     * Returns a full JSON payload to send a message for HeartRateTracker device type
+     * @param reading
+     * @return
+     */
+    private String getWSMessage(HeartRateReading reading, long cid){
+        // The encoder leaves out NaN metrics, i.e. readings taken before the window warmed up.
+        return mMessageEncoder.begin(reading.sdid, reading.ts)
+                .put(SAMISession.FIELD_HEART_RATE, reading.heartRate)
+                .put(SAMISession.FIELD_RMSSD, reading.rmssd)
+                .put(SAMISession.FIELD_SDNN, reading.sdnn)
+                .put(SAMISession.FIELD_PNN50, reading.pnn50)
+                .end(cid);
+    }
+
+    /**
+     * Returns the client message id SAMI echoes in {@code json}, whether an ack or an
+     * error, or -1 if there is none.
+     */
+    private static long parseAckCid(JSONObject json) {
+        try {
+            JSONObject body = json.optJSONObject("data");
+            if (body == null) {
+                body = json.optJSONObject("error");
+            }
+            if (body == null || !body.has("cid")) {
+                return -1;
+            }
+            return Long.parseLong(body.getString("cid"));
+        } catch (JSONException e) {
+            return -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
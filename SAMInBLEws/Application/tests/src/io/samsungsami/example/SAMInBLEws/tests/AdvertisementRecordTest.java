@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.samsungsami.example.SAMInBLEws.tests;
+
+import io.samsungsami.example.SAMInBLEws.AdvertisementRecord;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Parses advertisements laid out as heart rate straps and beacons send them: advertising
+ * data, then the scan response, zero padded to 62 bytes.
+ */
+public class AdvertisementRecordTest extends TestCase {
+
+    private static final UUID HEART_RATE = UUID.fromString("0000180d-0000-1000-8000-00805f9b34fb");
+    private static final UUID DEVICE_INFORMATION =
+            UUID.fromString("0000180a-0000-1000-8000-00805f9b34fb");
+    private static final UUID BATTERY = UUID.fromString("0000180f-0000-1000-8000-00805f9b34fb");
+    private static final UUID VENDOR = UUID.fromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e");
+
+    // Flags, complete 16-bit UUIDs (180D, 180A), TX power -4 dBm, manufacturer 0x006B with
+    // two bytes of data; scan response with the complete name "Polar H7 1A2B3C".
+    private static final int[] STRAP = {
+            0x02, 0x01, 0x06,
+            0x05, 0x03, 0x0d, 0x18, 0x0a, 0x18,
+            0x02, 0x0a, 0xfc,
+            0x05, 0xff, 0x6b, 0x00, 0x01, 0x02,
+            0x10, 0x09, 'P', 'o', 'l', 'a', 'r', ' ', 'H', '7', ' ', '1', 'A', '2', 'B', '3', 'C',
+    };
+
+    // Flags, complete 128-bit UUID list, shortened name "UART".
+    private static final int[] VENDOR_DEVICE = {
+            0x02, 0x01, 0x06,
+            0x11, 0x07, 0x9e, 0xca, 0xdc, 0x24, 0x0e, 0xe5, 0xa9, 0xe0,
+                        0x93, 0xf3, 0xa3, 0xb5, 0x01, 0x00, 0x40, 0x6e,
+            0x05, 0x08, 'U', 'A', 'R', 'T',
+    };
+
+    private static byte[] record(int[] values) {
+        final byte[] bytes = new byte[62];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    public void testNullRecord() {
+        assertNull(AdvertisementRecord.parse(null));
+    }
+
+    public void testSixteenBitServiceUuids() {
+        final AdvertisementRecord record = AdvertisementRecord.parse(record(STRAP));
+        final List<UUID> uuids = record.getServiceUuids();
+        assertEquals(2, uuids.size());
+        assertEquals(HEART_RATE, uuids.get(0));
+        assertEquals(DEVICE_INFORMATION, uuids.get(1));
+        assertTrue(record.hasServiceUuid(HEART_RATE));
+        assertTrue(record.hasServiceUuid(DEVICE_INFORMATION));
+        assertFalse(record.hasServiceUuid(BATTERY));
+        assertFalse(record.hasServiceUuid(VENDOR));
+    }
+
+    public void testOneHundredTwentyEightBitServiceUuids() {
+        final AdvertisementRecord record = AdvertisementRecord.parse(record(VENDOR_DEVICE));
+        final List<UUID> uuids = record.getServiceUuids();
+        assertEquals(1, uuids.size());
+        assertEquals(VENDOR, uuids.get(0));
+        assertTrue(record.hasServiceUuid(VENDOR));
+        assertFalse(record.hasServiceUuid(HEART_RATE));
+    }
+
+    public void testCompleteLocalName() {
+        final AdvertisementRecord record = AdvertisementRecord.parse(record(STRAP));
+        assertEquals("Polar H7 1A2B3C", record.getLocalName());
+        assertTrue(record.isNameComplete());
+    }
+
+    public void testShortenedLocalName() {
+        final AdvertisementRecord record = AdvertisementRecord.parse(record(VENDOR_DEVICE));
+        assertEquals("UART", record.getLocalName());
+        assertFalse(record.isNameComplete());
+    }
+
+    public void testCompleteNameWinsOverShortened() {
+        final AdvertisementRecord record = AdvertisementRecord.parse(record(new int[] {
+                0x05, 0x09, 'H', 'R', 'M', '1',
+                0x03, 0x08, 'H', 'R',
+        }));
+        assertEquals("HRM1", record.getLocalName());
+    }
+
+    public void testTxPower() {
+        assertEquals(-4, AdvertisementRecord.parse(record(STRAP)).getTxPowerLevel());
+        assertEquals(AdvertisementRecord.NO_TX_POWER,
+                AdvertisementRecord.parse(record(VENDOR_DEVICE)).getTxPowerLevel());
+    }
+
+    public void testManufacturerData() {
+        final AdvertisementRecord record = AdvertisementRecord.parse(record(STRAP));
+        assertEquals(0x006b, record.getManufacturerId());
+        assertEquals(2, record.getManufacturerDataLength());
+        final byte[] data = record.getManufacturerData();
+        assertEquals(2, data.length);
+        assertEquals(0x01, data[0]);
+        assertEquals(0x02, data[1]);
+        assertEquals(16, record.getManufacturerDataOffset());
+        assertSame(record.getBytes(), record.getBytes());
+    }
+
+    public void testNoManufacturerData() {
+        final AdvertisementRecord record = AdvertisementRecord.parse(record(VENDOR_DEVICE));
+        assertEquals(AdvertisementRecord.NO_MANUFACTURER, record.getManufacturerId());
+        assertNull(record.getManufacturerData());
+        assertEquals(-1, record.getManufacturerDataOffset());
+    }
+
+    public void testZeroLengthTerminatesRecord() {
+        // Anything after the zero length structure is padding, even if it looks like data.
+        final AdvertisementRecord record = AdvertisementRecord.parse(record(new int[] {
+                0x03, 0x03, 0x0d, 0x18,
+                0x00,
+                0x05, 0x09, 'J', 'U', 'N', 'K',
+        }));
+        assertEquals(1, record.getServiceUuids().size());
+        assertNull(record.getLocalName());
+    }
+
+    public void testLengthOverrunningBuffer() {
+        // The name claims 16 bytes but the record ends after 4 of them.
+        final byte[] bytes = new byte[] {
+                0x03, 0x03, 0x0d, 0x18,
+                0x11, 0x09, 'P', 'o', 'l', 'a',
+        };
+        final AdvertisementRecord record = AdvertisementRecord.parse(bytes);
+        assertTrue(record.hasServiceUuid(HEART_RATE));
+        assertNull(record.getLocalName());
+    }
+
+    public void testPartialUuidIgnored() {
+        // Three bytes of 16-bit UUIDs: one whole UUID and a stray byte.
+        final AdvertisementRecord record = AdvertisementRecord.parse(record(new int[] {
+                0x04, 0x03, 0x0d, 0x18, 0x0a,
+        }));
+        assertEquals(1, record.getServiceUuids().size());
+        assertFalse(record.hasServiceUuid(DEVICE_INFORMATION));
+    }
+
+    public void testEmptyRecord() {
+        final AdvertisementRecord record = AdvertisementRecord.parse(new byte[62]);
+        assertNull(record.getLocalName());
+        assertTrue(record.getServiceUuids().isEmpty());
+        assertEquals(AdvertisementRecord.NO_TX_POWER, record.getTxPowerLevel());
+    }
+}
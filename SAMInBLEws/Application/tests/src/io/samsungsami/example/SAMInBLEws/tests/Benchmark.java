@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.samsungsami.example.SAMInBLEws.tests;
+
+import android.os.Debug;
+import android.util.Log;
+
+/**
+ * Times a piece of code and counts what it allocates, for the before/after benchmarks. Run
+ * them on a device with {@code gradlew connectedAndroidTest} and read the results from logcat
+ * under the {@code Benchmark} tag; the numbers of an emulator or of a debuggable build with
+ * the debugger attached say little.
+ */
+final class Benchmark {
+    private static final String TAG = "Benchmark";
+
+    interface Body {
+        /**
+         * Runs one operation. Must do the same work on every call.
+         */
+        public void run(int iteration) throws Exception;
+    }
+
+    static final class Result {
+        final String name;
+        final double nsPerOp;
+        final double bytesPerOp;
+        final double allocsPerOp;
+
+        Result(String name, double nsPerOp, double bytesPerOp, double allocsPerOp) {
+            this.name = name;
+            this.nsPerOp = nsPerOp;
+            this.bytesPerOp = bytesPerOp;
+            this.allocsPerOp = allocsPerOp;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %.0f ns/op, %.1f bytes/op, %.1f allocs/op",
+                    name, nsPerOp, bytesPerOp, allocsPerOp);
+        }
+    }
+
+    private Benchmark() {
+    }
+
+    /**
+     * Runs {@code body} {@code iterations} times to warm it up, then as many times again to
+     * time it, then once more with allocation counting on, which slows everything down.
+     */
+    static Result measure(String name, int iterations, Body body) throws Exception {
+        for (int i = 0; i < iterations; i++) {
+            body.run(i);
+        }
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            body.run(i);
+        }
+        final long elapsed = System.nanoTime() - start;
+
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        try {
+            for (int i = 0; i < iterations; i++) {
+                body.run(i);
+            }
+        } finally {
+            Debug.stopAllocCounting();
+        }
+
+        final Result result = new Result(name, (double) elapsed / iterations,
+                (double) Debug.getThreadAllocSize() / iterations,
+                (double) Debug.getThreadAllocCount() / iterations);
+        Log.i(TAG, result.toString());
+        return result;
+    }
+
+    /**
+     * Logs how {@code after} compares with {@code before}.
+     */
+    static void compare(Result before, Result after) {
+        Log.i(TAG, String.format("%s vs %s: %.1fx faster, %.1fx fewer bytes",
+                after.name, before.name, before.nsPerOp / after.nsPerOp,
+                after.bytesPerOp > 0 ? before.bytesPerOp / after.bytesPerOp
+                        : Double.POSITIVE_INFINITY));
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.samsungsami.example.SAMInBLEws.tests;
+
+import io.samsungsami.example.SAMInBLEws.CompactFrameEncoder;
+import io.samsungsami.example.SAMInBLEws.SAMISession;
+import io.samsungsami.example.SAMInBLEws.SamiMessageEncoder;
+import io.samsungsami.example.SAMInBLEws.Websocket;
+import io.samsungsami.example.SAMInBLEws.WebsocketEvents;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.handshake.ServerHandshake;
+import org.java_websocket.server.WebSocketServer;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends ten minutes of heart rate readings with HRV metrics to a websocket server on the
+ * loopback interface standing in for the relay, once as the JSON text frames sent to SAMI,
+ * once as {@link CompactFrameEncoder} binary frames of one uplink batch each, and compares the
+ * bytes per reading that reach the server. Frame headers are counted as the client sends
+ * them: two bytes, the extended length if any, and the four byte mask.
+ */
+public class CompactFrameBenchmark extends TestCase {
+    private static final String TAG = "Benchmark";
+
+    private static final int PORT = 18765;
+    private static final int READINGS = 600;
+    private static final int BATCH_SIZE = SAMISession.DEFAULT_UPLINK_BATCH_SIZE;
+
+    private static final String SDID = "6f6e5d1a2b3c4d5e8f9a0b1c2d3e4f50";
+    private static final long TS = 1420070400000L;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private StandInServer mServer;
+    private Websocket mClient;
+    private long mHeaderBytes;
+
+    /**
+     * Counts what it receives and otherwise ignores it, as far as the size on the wire goes
+     * the same as the relay.
+     */
+    private static class StandInServer extends WebSocketServer {
+        final Semaphore messages = new Semaphore(0);
+        volatile long payloadBytes = 0;
+
+        StandInServer(int port) {
+            super(new InetSocketAddress("127.0.0.1", port));
+        }
+
+        @Override
+        public void onOpen(WebSocket conn, ClientHandshake handshake) {
+        }
+
+        @Override
+        public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+        }
+
+        @Override
+        public void onMessage(WebSocket conn, String message) {
+            payloadBytes += message.getBytes(UTF8).length;
+            messages.release();
+        }
+
+        @Override
+        public void onMessage(WebSocket conn, ByteBuffer message) {
+            payloadBytes += message.remaining();
+            messages.release();
+        }
+
+        @Override
+        public void onError(WebSocket conn, Exception ex) {
+            Log.w(TAG, "StandInServer: " + ex);
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new StandInServer(PORT);
+        mServer.start();
+        // The server binds on its own thread; retry until it accepts. Websocket.connect() is
+        // what the transport uses, so a ws:// relay URL is covered as it is in production.
+        for (int attempt = 0; attempt < 20 && mClient == null; attempt++) {
+            final Websocket client = new Websocket();
+            client.connect("ws://127.0.0.1:" + PORT, new WebsocketEvents() {
+                @Override
+                public void onOpen(ServerHandshake handshakedata) {
+                }
+
+                @Override
+                public void onMessage(String message) {
+                }
+
+                @Override
+                public void onClose(int code, String reason, boolean remote) {
+                }
+
+                @Override
+                public void onError(Exception ex) {
+                }
+            });
+            if (client.isConnected()) {
+                mClient = client;
+            } else {
+                Thread.sleep(100);
+            }
+        }
+        assertNotNull("stand-in server not reachable", mClient);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mClient != null) {
+            mClient.disconnect();
+        }
+        mServer.stop();
+        super.tearDown();
+    }
+
+    public void testTextVersusCompactFrames() throws Exception {
+        final double text = sendText();
+        final double compact = sendCompact();
+        Log.i(TAG, String.format("JSON text: %.1f bytes/reading, compact: %.1f bytes/reading,"
+                + " %.1fx smaller", text, compact, text / compact));
+        assertTrue("compact frames not smaller enough", compact * 5 < text);
+    }
+
+    private double sendText() throws Exception {
+        final SamiMessageEncoder encoder =
+                new SamiMessageEncoder("heart_rate", "rmssd", "sdnn", "pnn50");
+        final long start = mServer.payloadBytes + mHeaderBytes;
+        for (int i = 0; i < READINGS; i++) {
+            final String message = encoder.begin(SDID, TS + i * 1000L)
+                    .put(0, heartRate(i))
+                    .put(1, rmssd(i))
+                    .put(2, sdnn(i))
+                    .put(3, pnn50(i))
+                    .end(i);
+            mClient.send(message);
+            mHeaderBytes += headerBytes(message.getBytes(UTF8).length);
+        }
+        awaitMessages(READINGS);
+        return (double) (mServer.payloadBytes + mHeaderBytes - start) / READINGS;
+    }
+
+    private double sendCompact() throws Exception {
+        final CompactFrameEncoder encoder = new CompactFrameEncoder();
+        final long start = mServer.payloadBytes + mHeaderBytes;
+        int frames = 0;
+        for (int i = 0; i < READINGS; i++) {
+            encoder.add(SDID, heartRate(i), TS + i * 1000L, rmssd(i), sdnn(i), pnn50(i));
+            if ((i + 1) % BATCH_SIZE == 0 || i == READINGS - 1) {
+                final byte[] frame = encoder.finishFrame();
+                mClient.send(frame);
+                mHeaderBytes += headerBytes(frame.length);
+                frames++;
+            }
+        }
+        awaitMessages(frames);
+        assertEquals(READINGS, encoder.getReadingCount());
+        return (double) (mServer.payloadBytes + mHeaderBytes - start) / READINGS;
+    }
+
+    private void awaitMessages(int count) throws InterruptedException {
+        assertTrue("messages not received",
+                mServer.messages.tryAcquire(count, 10, TimeUnit.SECONDS));
+    }
+
+    // Header of a masked client frame carrying length bytes, RFC 6455 section 5.2.
+    private static int headerBytes(int length) {
+        final int extended = length < 126 ? 0 : length < 65536 ? 2 : 8;
+        return 2 + extended + 4;
+    }
+
+    // Values in the ranges a resting wearer produces, varying the way real ones do.
+    private static int heartRate(int i) {
+        return 60 + (i * 7) % 40;
+    }
+
+    private static float rmssd(int i) {
+        return 35f + (i % 13) * 0.7f;
+    }
+
+    private static float sdnn(int i) {
+        return 48.3f + i % 5;
+    }
+
+    private static float pnn50(int i) {
+        return 0.1f + (i % 7) * 0.01f;
+    }
+}
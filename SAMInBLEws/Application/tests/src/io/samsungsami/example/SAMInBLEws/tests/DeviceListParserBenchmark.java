@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.samsungsami.example.SAMInBLEws.tests;
+
+import io.samsungsami.example.SAMInBLEws.SAMIDeviceManager;
+import io.samsungsami.example.SAMInBLEws.SAMIDeviceWrapper;
+
+import junit.framework.TestCase;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads the users devices response of an account with thousands of devices, once by walking
+ * an org.json tree the way SAMIDeviceManager.updateDevices(JSONObject) used to, once with the
+ * streaming {@link SAMIDeviceManager#parseDevices}.
+ */
+public class DeviceListParserBenchmark extends TestCase {
+
+    private static final int DEVICES = 2000;
+    private static final int ITERATIONS = 20;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private byte[] mResponse;
+
+    // Keeps the results alive so that the parsing is not optimized away.
+    private int mCount;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResponse = buildResponse(DEVICES).getBytes(UTF8);
+    }
+
+    public void testJsonTreeVersusStreaming() throws Exception {
+        final Benchmark.Result tree = Benchmark.measure("org.json tree", ITERATIONS,
+                new Benchmark.Body() {
+                    @Override
+                    public void run(int iteration) throws Exception {
+                        mCount += parseWithJsonTree(mResponse).size();
+                    }
+                });
+        final Benchmark.Result streaming = Benchmark.measure("JsonParser", ITERATIONS,
+                new Benchmark.Body() {
+                    @Override
+                    public void run(int iteration) throws Exception {
+                        mCount += parseStreaming(mResponse).size();
+                    }
+                });
+        Benchmark.compare(tree, streaming);
+        assertTrue(mCount > 0);
+    }
+
+    public void testSameDevices() throws Exception {
+        final List<SAMIDeviceWrapper> tree = parseWithJsonTree(mResponse);
+        final List<SAMIDeviceWrapper> streaming = parseStreaming(mResponse);
+        assertEquals(DEVICES, streaming.size());
+        assertEquals(tree, streaming);
+    }
+
+    private static List<SAMIDeviceWrapper> parseWithJsonTree(byte[] response)
+            throws JSONException {
+        final JSONArray devices = new JSONObject(new String(response, UTF8))
+                .getJSONObject("data").getJSONArray("devices");
+        final ArrayList<SAMIDeviceWrapper> out = new ArrayList<SAMIDeviceWrapper>();
+        for (int i = 0; i < devices.length(); i++) {
+            final JSONObject device = devices.getJSONObject(i);
+            out.add(new SAMIDeviceWrapper(device.getString("dtid"), device.getString("id"),
+                    device.getString("name")));
+        }
+        return out;
+    }
+
+    private static List<SAMIDeviceWrapper> parseStreaming(byte[] response) throws Exception {
+        final ArrayList<SAMIDeviceWrapper> out = new ArrayList<SAMIDeviceWrapper>();
+        SAMIDeviceManager.parseDevices(new ByteArrayInputStream(response), out);
+        return out;
+    }
+
+    // A response with every field SAMI returns for a device, most of them thrown away.
+    private static String buildResponse(int count) {
+        final StringBuilder json = new StringBuilder("{\"data\":{\"devices\":[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"id\":\"").append(String.format("%032x", 0x5a5a0000L + i))
+                    .append("\",\"uid\":\"7d3b2f1c0a9e8d7c6b5a493827161504\"")
+                    .append(",\"dtid\":\"dt").append(String.format("%030x", i % 25))
+                    .append("\",\"name\":\"Heart rate strap ").append(i)
+                    .append("\",\"manifestVersion\":").append(1 + i % 3)
+                    .append(",\"manifestVersionPolicy\":\"LATEST\"")
+                    .append(",\"needProviderAuth\":false")
+                    .append(",\"properties\":{\"location\":\"wrist\",\"firmware\":\"1.2.")
+                    .append(i % 10).append("\"}")
+                    .append(",\"createdOn\":").append(1420070400L + i)
+                    .append(",\"connected\":").append(i % 2 == 0)
+                    .append(",\"eid\":null}");
+        }
+        json.append("]},\"total\":").append(count)
+                .append(",\"offset\":0,\"count\":").append(count).append('}');
+        return json.toString();
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.samsungsami.example.SAMInBLEws.tests;
+
+import io.samsungsami.example.SAMInBLEws.GattEvent;
+import io.samsungsami.example.SAMInBLEws.GattEventBus;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands heart rate readings from one thread to a subscriber on another, once through an
+ * Intent broadcast handled the way DeviceControlActivity used to, once through
+ * {@link GattEventBus}. Each reading waits for the previous one to arrive, so the time per
+ * operation is the delivery latency of one reading.
+ */
+public class GattEventBusBenchmark extends AndroidTestCase {
+
+    private static final int ITERATIONS = 500;
+
+    private static final String ADDRESS = "00:22:D0:00:00:01";
+
+    // The actions and extras BluetoothLeService used to broadcast.
+    private static final String ACTION_GATT_CONNECTED =
+            "com.example.bluetooth.le.ACTION_GATT_CONNECTED";
+    private static final String ACTION_GATT_DISCONNECTED =
+            "com.example.bluetooth.le.ACTION_GATT_DISCONNECTED";
+    private static final String ACTION_GATT_SERVICES_DISCOVERED =
+            "com.example.bluetooth.le.ACTION_GATT_SERVICES_DISCOVERED";
+    private static final String ACTION_DATA_AVAILABLE =
+            "com.example.bluetooth.le.ACTION_DATA_AVAILABLE";
+    private static final String EXTRA_DATA = "com.example.bluetooth.le.EXTRA_DATA";
+    private static final String EXTRA_ADDRESS = "com.example.bluetooth.le.EXTRA_ADDRESS";
+
+    private final Semaphore mDelivered = new Semaphore(0);
+    private volatile int mLastHeartRate;
+    private HandlerThread mThread;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mThread = new HandlerThread("GattEventBusBenchmark");
+        mThread.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mThread.quit();
+        super.tearDown();
+    }
+
+    public void testBroadcastVersusBus() throws Exception {
+        final Benchmark.Result broadcast = measureBroadcast();
+        final Benchmark.Result bus = measureBus();
+        Benchmark.compare(broadcast, bus);
+    }
+
+    private Benchmark.Result measureBroadcast() throws Exception {
+        final BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                final String action = intent.getAction();
+                if (!ADDRESS.equals(intent.getStringExtra(EXTRA_ADDRESS))) {
+                    return;
+                }
+                if (ACTION_GATT_CONNECTED.equals(action)) {
+                    return;
+                } else if (ACTION_GATT_DISCONNECTED.equals(action)) {
+                    return;
+                } else if (ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
+                    return;
+                } else if (ACTION_DATA_AVAILABLE.equals(action)) {
+                    mLastHeartRate = Integer.parseInt(intent.getStringExtra(EXTRA_DATA));
+                    mDelivered.release();
+                }
+            }
+        };
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(ACTION_GATT_CONNECTED);
+        filter.addAction(ACTION_GATT_DISCONNECTED);
+        filter.addAction(ACTION_GATT_SERVICES_DISCOVERED);
+        filter.addAction(ACTION_DATA_AVAILABLE);
+        getContext().registerReceiver(receiver, filter, null, new Handler(mThread.getLooper()));
+        try {
+            return Benchmark.measure("broadcast", ITERATIONS, new Benchmark.Body() {
+                @Override
+                public void run(int iteration) throws Exception {
+                    final int heartRate = 60 + iteration % 100;
+                    final Intent intent = new Intent(ACTION_DATA_AVAILABLE);
+                    intent.putExtra(EXTRA_ADDRESS, ADDRESS);
+                    intent.putExtra(EXTRA_DATA, String.valueOf(heartRate));
+                    getContext().sendBroadcast(intent);
+                    awaitDelivery(heartRate);
+                }
+            });
+        } finally {
+            getContext().unregisterReceiver(receiver);
+        }
+    }
+
+    private Benchmark.Result measureBus() throws Exception {
+        final GattEventBus bus = new GattEventBus(GattEventBus.DEFAULT_CAPACITY);
+        final GattEventBus.Subscription subscription = bus.subscribe(
+                new GattEventBus.Subscriber() {
+                    @Override
+                    public void onGattEvent(GattEvent event) {
+                        if (!ADDRESS.equals(event.getAddress())) {
+                            return;
+                        }
+                        if (event.getType() == GattEvent.TYPE_HEART_RATE) {
+                            mLastHeartRate = event.getHeartRate();
+                            mDelivered.release();
+                        }
+                    }
+                }, false);
+        try {
+            return Benchmark.measure("bus", ITERATIONS, new Benchmark.Body() {
+                @Override
+                public void run(int iteration) throws Exception {
+                    final int heartRate = 60 + iteration % 100;
+                    bus.publish(GattEvent.TYPE_HEART_RATE, ADDRESS, heartRate,
+                            System.currentTimeMillis());
+                    awaitDelivery(heartRate);
+                }
+            });
+        } finally {
+            bus.unsubscribe(subscription);
+        }
+    }
+
+    private void awaitDelivery(int heartRate) throws InterruptedException {
+        assertTrue("reading not delivered", mDelivered.tryAcquire(5, TimeUnit.SECONDS));
+        assertEquals(heartRate, mLastHeartRate);
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.samsungsami.example.SAMInBLEws.tests;
+
+import io.samsungsami.example.SAMInBLEws.HeartRateMeasurementDecoder;
+import io.samsungsami.example.SAMInBLEws.HeartRateSample;
+
+import junit.framework.TestCase;
+
+/**
+ * Decodes Heart Rate Measurement payloads built by hand from the layout in the Heart Rate
+ * Service specification, and truncated ones.
+ */
+public class HeartRateMeasurementDecoderTest extends TestCase {
+
+    private HeartRateSample mSample;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSample = new HeartRateSample();
+    }
+
+    private static byte[] bytes(int... values) {
+        final byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    public void testUint8HeartRateWithContact() {
+        // Flags: contact supported and detected, UINT8 format.
+        assertTrue(HeartRateMeasurementDecoder.decode(bytes(0x06, 0x48), mSample));
+        assertEquals(72, mSample.heartRate);
+        assertTrue(mSample.sensorContactSupported);
+        assertTrue(mSample.sensorContactDetected);
+        assertFalse(mSample.energyExpendedPresent);
+        assertEquals(0, mSample.rrIntervalCount);
+    }
+
+    public void testUint16HeartRate() {
+        assertTrue(HeartRateMeasurementDecoder.decode(bytes(0x01, 0x2c, 0x01), mSample));
+        assertEquals(300, mSample.heartRate);
+        assertFalse(mSample.sensorContactSupported);
+    }
+
+    public void testContactDetectedIgnoredWhenNotSupported() {
+        assertTrue(HeartRateMeasurementDecoder.decode(bytes(0x02, 0x48), mSample));
+        assertFalse(mSample.sensorContactSupported);
+        assertFalse(mSample.sensorContactDetected);
+    }
+
+    public void testEnergyExpendedPresent() {
+        // UINT8 heart rate 80, 300 kJ, one RR interval of 784/1024 s.
+        assertTrue(HeartRateMeasurementDecoder.decode(
+                bytes(0x18, 0x50, 0x2c, 0x01, 0x10, 0x03), mSample));
+        assertEquals(80, mSample.heartRate);
+        assertTrue(mSample.energyExpendedPresent);
+        assertEquals(300, mSample.energyExpended);
+        assertEquals(1, mSample.rrIntervalCount);
+        assertEquals(784, mSample.rrIntervals[0]);
+    }
+
+    public void testEnergyExpendedAbsent() {
+        assertTrue(HeartRateMeasurementDecoder.decode(bytes(0x10, 0x50, 0x10, 0x03), mSample));
+        assertFalse(mSample.energyExpendedPresent);
+        assertEquals(0, mSample.energyExpended);
+        assertEquals(784, mSample.rrIntervals[0]);
+    }
+
+    public void testSeveralRrIntervals() {
+        // Polar H7 style: contact detected, heart rate 74, two RR intervals.
+        assertTrue(HeartRateMeasurementDecoder.decode(
+                bytes(0x16, 0x4a, 0x1f, 0x03, 0x25, 0x03), mSample));
+        assertEquals(74, mSample.heartRate);
+        assertEquals(2, mSample.rrIntervalCount);
+        assertEquals(799, mSample.rrIntervals[0]);
+        assertEquals(805, mSample.rrIntervals[1]);
+        assertEquals(799 * 1000.0 / 1024, mSample.rrIntervalMs(0), 1e-9);
+    }
+
+    public void testMoreRrIntervalsThanTheSampleHolds() {
+        final int count = mSample.rrIntervals.length + 4;
+        final byte[] value = new byte[2 + count * 2];
+        value[0] = 0x10;
+        value[1] = 60;
+        for (int i = 0; i < count; i++) {
+            value[2 + i * 2] = (byte) i;
+            value[3 + i * 2] = 0x04;
+        }
+        assertTrue(HeartRateMeasurementDecoder.decode(value, mSample));
+        assertEquals(count, mSample.rrIntervalCount);
+        assertEquals(0x0400 + count - 1, mSample.rrIntervals[count - 1]);
+    }
+
+    public void testOddTrailingRrByteIgnored() {
+        assertTrue(HeartRateMeasurementDecoder.decode(bytes(0x10, 0x50, 0x10, 0x03, 0x20), mSample));
+        assertEquals(1, mSample.rrIntervalCount);
+    }
+
+    public void testTruncatedPackets() {
+        assertFalse(HeartRateMeasurementDecoder.decode(null, mSample));
+        assertFalse(HeartRateMeasurementDecoder.decode(bytes(), mSample));
+        assertFalse(HeartRateMeasurementDecoder.decode(bytes(0x00), mSample));
+        // UINT16 heart rate with one byte.
+        assertFalse(HeartRateMeasurementDecoder.decode(bytes(0x01, 0x48), mSample));
+        // Energy expended announced, one byte of it.
+        assertFalse(HeartRateMeasurementDecoder.decode(bytes(0x08, 0x48, 0x2c), mSample));
+    }
+
+    public void testTruncatedPacketClearsPreviousSample() {
+        assertTrue(HeartRateMeasurementDecoder.decode(
+                bytes(0x1e, 0x4a, 0x2c, 0x01, 0x1f, 0x03), mSample));
+        assertFalse(HeartRateMeasurementDecoder.decode(bytes(0x08, 0x48, 0x2c), mSample));
+        assertEquals(0, mSample.heartRate);
+        assertFalse(mSample.energyExpendedPresent);
+        assertEquals(0, mSample.rrIntervalCount);
+    }
+}
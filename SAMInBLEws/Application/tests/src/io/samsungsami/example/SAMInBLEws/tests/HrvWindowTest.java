@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.samsungsami.example.SAMInBLEws.tests;
+
+import io.samsungsami.example.SAMInBLEws.HeartRateSample;
+import io.samsungsami.example.SAMInBLEws.HrvWindow;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the running HRV metrics against values worked out by hand.
+ */
+public class HrvWindowTest extends TestCase {
+
+    // 800 ms and 900 ms in 1/1024 s.
+    private static final int RR_800 = 819;
+    private static final int RR_900 = 922;
+
+    public void testNotReadyUntilMinIntervals() {
+        final HrvWindow window = new HrvWindow(8, 4);
+        for (int i = 0; i < 3; i++) {
+            window.add(RR_800);
+        }
+        assertFalse(window.isReady());
+        window.add(RR_800);
+        assertTrue(window.isReady());
+    }
+
+    public void testSteadyRhythm() {
+        final HrvWindow window = new HrvWindow(8, 2);
+        for (int i = 0; i < 5; i++) {
+            window.add(RR_800);
+        }
+        assertEquals(0f, window.rmssd(), 1e-6f);
+        assertEquals(0f, window.sdnn(), 1e-6f);
+        assertEquals(0f, window.pnn50(), 1e-6f);
+    }
+
+    public void testAlternatingRhythm() {
+        final HrvWindow window = new HrvWindow(8, 2);
+        for (int i = 0; i < 4; i++) {
+            window.add(i % 2 == 0 ? RR_800 : RR_900);
+        }
+        final float diffMs = (RR_900 - RR_800) * 1000f / 1024;
+        assertEquals(diffMs, window.rmssd(), 1e-3f);
+        assertEquals(100f, window.pnn50(), 1e-6f);
+        // Two of each: the sample standard deviation is half the difference * sqrt(4/3).
+        assertEquals(diffMs / 2 * (float) Math.sqrt(4.0 / 3), window.sdnn(), 1e-3f);
+    }
+
+    public void testOldestIntervalsEvicted() {
+        final HrvWindow window = new HrvWindow(4, 2);
+        window.add(RR_800);
+        window.add(RR_900);
+        for (int i = 0; i < 4; i++) {
+            window.add(RR_800);
+        }
+        assertEquals(4, window.size());
+        assertEquals(0f, window.rmssd(), 1e-6f);
+    }
+
+    public void testArtifactsIgnored() {
+        final HrvWindow window = new HrvWindow();
+        window.add(100);
+        window.add(5000);
+        assertEquals(0, window.size());
+    }
+
+    public void testAddSample() {
+        final HeartRateSample sample = new HeartRateSample();
+        sample.rrIntervals[0] = RR_800;
+        sample.rrIntervals[1] = RR_900;
+        sample.rrIntervalCount = 2;
+        final HrvWindow window = new HrvWindow();
+        window.add(sample);
+        assertEquals(2, window.size());
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.samsungsami.example.SAMInBLEws.tests;
+
+import io.samsungsami.example.SAMInBLEws.SamiMessageEncoder;
+
+import junit.framework.TestCase;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Encodes the websocket message of a heart rate reading with its HRV metrics, once with two
+ * {@link JSONObject}s the way SAMISession used to, once with {@link SamiMessageEncoder}.
+ */
+public class SamiMessageEncoderBenchmark extends TestCase {
+
+    private static final int ITERATIONS = 20000;
+
+    private static final String SDID = "6f6e5d1a2b3c4d5e8f9a0b1c2d3e4f50";
+    private static final long TS = 1420070400000L;
+
+    private static final int FIELD_HEART_RATE = 0;
+    private static final int FIELD_RMSSD = 1;
+    private static final int FIELD_SDNN = 2;
+    private static final int FIELD_PNN50 = 3;
+
+    private final SamiMessageEncoder mEncoder =
+            new SamiMessageEncoder("heart_rate", "rmssd", "sdnn", "pnn50");
+
+    // Keeps the results alive so that the encoding is not optimized away.
+    private int mLength;
+
+    public void testJsonObjectVersusEncoder() throws Exception {
+        final Benchmark.Result jsonObject = Benchmark.measure("JSONObject", ITERATIONS,
+                new Benchmark.Body() {
+                    @Override
+                    public void run(int iteration) throws Exception {
+                        mLength += encodeWithJsonObject(iteration).length();
+                    }
+                });
+        final Benchmark.Result encoder = Benchmark.measure("SamiMessageEncoder", ITERATIONS,
+                new Benchmark.Body() {
+                    @Override
+                    public void run(int iteration) {
+                        mLength += encodeWithEncoder(iteration).length();
+                    }
+                });
+        Benchmark.compare(jsonObject, encoder);
+        assertTrue(mLength > 0);
+    }
+
+    public void testSameMessage() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            final JSONObject before = new JSONObject(encodeWithJsonObject(i));
+            final JSONObject after = new JSONObject(encodeWithEncoder(i));
+            assertEquals(before.getString("sdid"), after.getString("sdid"));
+            assertEquals(before.getLong("ts"), after.getLong("ts"));
+            final JSONObject beforeData = before.getJSONObject("data");
+            final JSONObject afterData = after.getJSONObject("data");
+            assertEquals(beforeData.length(), afterData.length());
+            assertEquals(beforeData.getInt("heart_rate"), afterData.getInt("heart_rate"));
+            assertEquals(beforeData.getDouble("rmssd"), afterData.getDouble("rmssd"), 1e-6);
+            assertEquals(beforeData.getDouble("sdnn"), afterData.getDouble("sdnn"), 1e-6);
+            assertEquals(beforeData.getDouble("pnn50"), afterData.getDouble("pnn50"), 1e-6);
+        }
+    }
+
+    private static String encodeWithJsonObject(int i) throws JSONException {
+        final JSONObject message = new JSONObject();
+        message.put("sdid", SDID);
+        message.put("ts", TS + i * 1000L);
+        final JSONObject data = new JSONObject();
+        data.put("heart_rate", 60 + i % 100);
+        data.put("rmssd", 42.5f + i % 10);
+        data.put("sdnn", 51.25f);
+        data.put("pnn50", 0.125f);
+        message.put("data", data);
+        return message.toString();
+    }
+
+    private String encodeWithEncoder(int i) {
+        return mEncoder.begin(SDID, TS + i * 1000L)
+                .put(FIELD_HEART_RATE, 60 + i % 100)
+                .put(FIELD_RMSSD, 42.5f + i % 10)
+                .put(FIELD_SDNN, 51.25f)
+                .put(FIELD_PNN50, 0.125f)
+                .end();
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2015 Samsung Electronics Co., Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.samsungsami.example.SAMInBLEws.tests;
+
+import io.samsungsami.example.SAMInBLEws.HeartRateReading;
+import io.samsungsami.example.SAMInBLEws.UplinkJournal;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+/**
+ * Reopens journals left on disk: by the first record layout, without HRV metrics, and with a
+ * record that passes its CRC but is not of the current layout.
+ */
+public class UplinkJournalTest extends TestCase {
+
+    private static final String SDID = "6f6e5d1a2b3c4d5e8f9a0b1c2d3e4f50";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private File mDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = File.createTempFile("journal", "");
+        assertTrue(mDir.delete());
+        assertTrue(mDir.mkdir());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        final File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+        super.tearDown();
+    }
+
+    public void testAppendAndRead() throws IOException {
+        final UplinkJournal journal = new UplinkJournal(mDir);
+        journal.append(SDID, new HeartRateReading(SDID, 72, 1000L, 42.5f, 51.25f, 0.125f));
+        final UplinkJournal.Record record = new UplinkJournal.Record();
+        assertTrue(journal.read(record));
+        assertEquals(SDID, record.sdid);
+        assertEquals(72, record.heartRate);
+        assertEquals(1000L, record.ts);
+        assertEquals(42.5f, record.rmssd, 0f);
+        assertEquals(51.25f, record.sdnn, 0f);
+        assertEquals(0.125f, record.pnn50, 0f);
+        assertFalse(journal.read(record));
+        journal.close();
+    }
+
+    public void testConvertsFirstLayout() throws IOException {
+        // Three readings, the first of them acknowledged.
+        final RandomAccessFile segment =
+                new RandomAccessFile(new File(mDir, "0000000000.seg"), "rw");
+        long ack = 0;
+        for (int i = 0; i < 3; i++) {
+            final ByteBuffer payload = ByteBuffer.allocate(8 + 4 + 2 + SDID.length());
+            payload.putLong(1000L * (i + 1)).putInt(60 + i)
+                    .putShort((short) SDID.length()).put(SDID.getBytes(UTF8));
+            writeRecord(segment, payload.array());
+            if (i == 0) {
+                ack = segment.getFilePointer();
+            }
+        }
+        segment.close();
+        final RandomAccessFile ackFile = new RandomAccessFile(new File(mDir, "journal.ack"), "rw");
+        ackFile.writeLong(ack);
+        ackFile.close();
+
+        UplinkJournal journal = new UplinkJournal(mDir);
+        assertFalse(new File(mDir, "0000000000.seg").exists());
+        final UplinkJournal.Record record = new UplinkJournal.Record();
+        for (int i = 1; i < 3; i++) {
+            assertTrue(journal.read(record));
+            assertEquals(SDID, record.sdid);
+            assertEquals(1000L * (i + 1), record.ts);
+            assertEquals(60 + i, record.heartRate);
+            assertTrue(Float.isNaN(record.rmssd));
+        }
+        assertFalse(journal.read(record));
+
+        // Converted once: reopening finds the same two readings.
+        journal.close();
+        journal = new UplinkJournal(mDir);
+        assertTrue(journal.read(record));
+        assertEquals(2000L, record.ts);
+        journal.acknowledge(record.position);
+        assertTrue(journal.read(record));
+        assertEquals(3000L, record.ts);
+        assertFalse(journal.read(record));
+        journal.close();
+    }
+
+    public void testSkipsMalformedRecord() throws IOException {
+        UplinkJournal journal = new UplinkJournal(mDir);
+        journal.close();
+        final File[] segments = mDir.listFiles();
+        File segment = null;
+        for (File file : segments) {
+            if (file.getName().endsWith(".seg")) {
+                segment = file;
+            }
+        }
+        assertNotNull(segment);
+
+        // Its CRC is right, but the sdid length does not match the payload.
+        final ByteBuffer bad = ByteBuffer.allocate(8 + 4 + 3 * 4 + 2 + 4);
+        bad.putLong(1000L).putInt(60).putFloat(1f).putFloat(1f).putFloat(1f)
+                .putShort((short) 40).put("abcd".getBytes(UTF8));
+        final RandomAccessFile out = new RandomAccessFile(segment, "rw");
+        writeRecord(out, bad.array());
+        out.close();
+
+        journal = new UplinkJournal(mDir);
+        journal.append(SDID, new HeartRateReading(SDID, 72, 2000L));
+        final UplinkJournal.Record record = new UplinkJournal.Record();
+        assertTrue(journal.read(record));
+        assertEquals(2000L, record.ts);
+        assertFalse(journal.read(record));
+        journal.close();
+    }
+
+    private static void writeRecord(RandomAccessFile out, byte[] payload) throws IOException {
+        final CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        out.seek(out.length());
+        out.writeInt(payload.length);
+        out.writeInt((int) crc.getValue());
+        out.write(payload);
+    }
+}